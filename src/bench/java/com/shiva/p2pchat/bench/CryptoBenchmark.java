@@ -0,0 +1,133 @@
+package com.shiva.p2pchat.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.crypto.KeyType;
+
+/* Per-message cost of the RSA path versus the AES-GCM session path. RSA can
+ only seal up to 245 bytes, so its sizes stop there. The key-type benchmarks
+ compare what each kind of node key costs per connection and at first start. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @State(Scope.Thread)
+    public static class RsaState {
+        @Param({"16", "128", "240"})
+        public int payloadSize;
+
+        KeyPair keyPair;
+        String plainText;
+        byte[] cipherText;
+        String encodedPublicKey;
+
+        @Setup
+        public void setUp() throws Exception {
+            keyPair = CryptoUtils.generateKeyPair();
+            plainText = text(payloadSize);
+            cipherText = CryptoUtils.encrypt(plainText, keyPair.getPublic());
+            encodedPublicKey = CryptoUtils.keyToString(keyPair.getPublic());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SessionState {
+        @Param({"16", "1024", "65536"})
+        public int payloadSize;
+
+        SecretKey sessionKey;
+        byte[] plainBytes;
+        byte[] cipherText;
+
+        @Setup
+        public void setUp() throws Exception {
+            sessionKey = CryptoUtils.generateSessionKey();
+            plainBytes = text(payloadSize).getBytes(StandardCharsets.UTF_8);
+            cipherText = CryptoUtils.encryptSession(plainBytes, sessionKey);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class KeyState {
+        @Param({"RSA", "X25519"})
+        public String keyType;
+
+        KeyPair keyPair;
+        SecretKey sessionKey;
+        byte[] wrappedKey;
+
+        @Setup
+        public void setUp() throws Exception {
+            keyPair = CryptoUtils.generateKeyPair(KeyType.valueOf(keyType));
+            sessionKey = CryptoUtils.generateSessionKey();
+            wrappedKey = CryptoUtils.wrapSessionKey(sessionKey, keyPair.getPublic());
+        }
+    }
+
+    private static String text(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    @Benchmark
+    public byte[] rsaEncrypt(RsaState state) throws Exception {
+        return CryptoUtils.encrypt(state.plainText, state.keyPair.getPublic());
+    }
+
+    @Benchmark
+    public String rsaDecrypt(RsaState state) throws Exception {
+        return CryptoUtils.decrypt(state.cipherText, state.keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public Object stringToPublicKey(RsaState state) throws Exception {
+        return CryptoUtils.stringToPublicKey(state.encodedPublicKey);
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair(KeyState state) throws Exception {
+        return CryptoUtils.generateKeyPair(KeyType.valueOf(state.keyType));
+    }
+
+    @Benchmark
+    public byte[] wrapSessionKey(KeyState state) throws Exception {
+        return CryptoUtils.wrapSessionKey(state.sessionKey, state.keyPair.getPublic());
+    }
+
+    @Benchmark
+    public SecretKey unwrapSessionKey(KeyState state) throws Exception {
+        return CryptoUtils.unwrapSessionKey(state.wrappedKey, state.keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] sessionEncrypt(SessionState state) throws Exception {
+        return CryptoUtils.encryptSession(state.plainBytes, state.sessionKey);
+    }
+
+    @Benchmark
+    public byte[] sessionDecrypt(SessionState state) throws Exception {
+        return CryptoUtils.decryptSession(state.cipherText, state.sessionKey);
+    }
+}
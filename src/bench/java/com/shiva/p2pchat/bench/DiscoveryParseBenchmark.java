@@ -0,0 +1,41 @@
+package com.shiva.p2pchat.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.discovery.DiscoveryPacket;
+
+/* Cost of handling one received discovery beacon. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DiscoveryParseBenchmark {
+
+    private byte[] beacon;
+
+    @Setup
+    public void setUp() throws Exception {
+        String fingerprint = CryptoUtils.fingerprint(CryptoUtils.generateKeyPair().getPublic());
+        beacon = DiscoveryPacket.beacon((byte) 0, 8888, 5, "benchmark-user", fingerprint);
+    }
+
+    @Benchmark
+    public DiscoveryPacket parseBeacon() {
+        return DiscoveryPacket.decode(ByteBuffer.wrap(beacon));
+    }
+}
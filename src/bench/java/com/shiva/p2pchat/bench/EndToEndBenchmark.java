@@ -0,0 +1,121 @@
+package com.shiva.p2pchat.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.shiva.p2pchat.core.ConnectionHandler;
+import com.shiva.p2pchat.core.ConnectionManager;
+import com.shiva.p2pchat.core.NioServer;
+import com.shiva.p2pchat.core.PeerNode;
+import com.shiva.p2pchat.core.ServerMode;
+import com.shiva.p2pchat.crypto.KeyManager;
+import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.model.Message;
+
+/* Loopback round-trip: an outbound send through ConnectionManager until the
+ receiving node's message handler runs. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    @Param({"BLOCKING", "NIO"})
+    public ServerMode serverMode;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private final Semaphore delivered = new Semaphore(0);
+    private ConnectionManager connectionManager;
+    private PeerDiscovery.DiscoveredPeer receiver;
+    private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private byte[] payload;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setUp() throws Exception {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The receiving node prints notifications
+
+        Path keyDirectory = Files.createTempDirectory("p2p-bench-keys");
+        KeyManager keyManager = new KeyManager(keyDirectory);
+        keyManager.loadOrCreateKeys();
+
+        PeerNode receivingNode = new PeerNode("receiver", 0, 0, keyManager) {
+            @Override
+            public void addMessageRequest(Message message, SecretKey sessionKey) {
+                delivered.release();
+            }
+        };
+
+        int port;
+        if (serverMode == ServerMode.NIO) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            nioServer = new NioServer(receivingNode, port, 2);
+            nioServer.start();
+        } else {
+            serverSocket = new ServerSocket(0);
+            port = serverSocket.getLocalPort();
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        Thread handler = new Thread(new ConnectionHandler(socket, receivingNode));
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                } catch (Exception e) {
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        receiver = new PeerDiscovery.DiscoveredPeer("127.0.0.1", port, keyManager.getPublicKey());
+        connectionManager = new ConnectionManager("sender");
+        payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        connectionManager.closeAll();
+        if (nioServer != null) nioServer.stop();
+        if (serverSocket != null) serverSocket.close();
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void sendAndReceive() throws Exception {
+        connectionManager.send(receiver, Message.MessageType.REQUEST, payload);
+        delivered.acquire();
+    }
+}
@@ -0,0 +1,405 @@
+package com.shiva.p2pchat.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+
+import com.shiva.p2pchat.core.NodeConfig;
+import com.shiva.p2pchat.core.PeerNode;
+import com.shiva.p2pchat.core.ServerMode;
+import com.shiva.p2pchat.core.ThreadMode;
+import com.shiva.p2pchat.crypto.KeyManager;
+import com.shiva.p2pchat.crypto.KeyType;
+import com.shiva.p2pchat.metrics.Histogram;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Message;
+import com.shiva.p2pchat.store.Inbox;
+import com.shiva.p2pchat.store.MessageStore;
+
+/* Load test for whole nodes. Starts N PeerNodes in this JVM, each with its own
+ ports and data directory, lets them find each other through real discovery,
+ then drives traffic through the normal send path (PeerNode, OutboundQueue,
+ PeerConnection) and receive path (server, InboundSession, PeerNode).
+
+ Mixes:
+ requests  senders fire message requests at random peers; inboxes are drained
+           every 100 ms the way a reader would
+ chat      each sender holds one conversation with a partner; both sides
+           record the messages to history
+ fanout    each message goes to every other node at once
+
+ Latency runs from the send call until the receiving node has handled the
+ message. Messages between two nodes arrive in the order they were queued,
+ so each arrival is matched to the oldest outstanding send on that pair
+ instead of carrying a timestamp in the payload.
+
+ mvn -Pbench test-compile exec:exec@load -Dload.args="--nodes 16 --mix requests --seconds 30"
+
+ Options (defaults): --nodes 8, --mix chat, --seconds 30, --warmup 5,
+ --size 64 (payload bytes), --window 64 (unacknowledged sends per sender),
+ --rate 0 (messages per second per sender, 0 = as fast as the window allows),
+ --senders 0 (0 = every node), --server blocking, --threads platform,
+ --seed 42 (target choice), --discoveryTimeout 60 (seconds), --keyType rsa */
+public class LoadTest {
+
+    private enum Mix { REQUESTS, CHAT, FANOUT }
+
+    private static final long DRAIN_INTERVAL_MS = 100;
+
+    private final Map<String, String> options;
+    private final int nodeCount;
+    private final Mix mix;
+    private final int window;
+    private final int rate;
+    private final String payload;
+
+    private final List<PeerNode> nodes = new ArrayList<>();
+    private final List<Inbox> inboxes = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Queue<Sent>> outstanding = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile Histogram latencies = new Histogram();
+    private volatile boolean measuring = false;
+    private volatile boolean running = true;
+
+    private static final class Sent {
+        final long sentAt = System.nanoTime();
+        volatile boolean failed;
+    }
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.nodeCount = intOption("nodes", 8);
+        this.mix = Mix.valueOf(options.getOrDefault("mix", "chat").toUpperCase());
+        this.window = intOption("window", 64);
+        this.rate = intOption("rate", 0);
+        char[] text = new char[intOption("size", 64)];
+        Arrays.fill(text, 'x');
+        this.payload = new String(text);
+        if (nodeCount < 2) {
+            throw new IllegalArgumentException("--nodes must be at least 2");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Nodes print every event
+        int status = 0;
+        try {
+            new LoadTest(options).run(out);
+        } catch (Exception e) {
+            out.println("Load test failed: " + e.getMessage());
+            status = 1;
+        }
+        System.exit(status); // Node executors are not daemon threads
+    }
+
+    private void run(PrintStream out) throws Exception {
+        long seconds = intOption("seconds", 30);
+        long warmup = intOption("warmup", 5);
+        int senderCount = intOption("senders", 0);
+        senderCount = senderCount <= 0 ? nodeCount : Math.min(senderCount, nodeCount);
+        ServerMode serverMode = ServerMode.fromString(options.get("server"));
+        ThreadMode threadMode = ThreadMode.fromString(options.get("threads"));
+        out.printf("Load test: %d nodes (%d sending), mix=%s, %d s after %d s warmup, payload %d B, window %d, rate %s, %s server, %s threads%n",
+                nodeCount, senderCount, mix.name().toLowerCase(), seconds, warmup, payload.length(), window,
+                rate == 0 ? "unlimited" : rate + "/s", serverMode, threadMode);
+
+        Path root = Files.createTempDirectory("p2p-load");
+        try {
+            startNodes(root, serverMode, threadMode);
+            awaitDiscovery(out, intOption("discoveryTimeout", 60));
+
+            ScheduledExecutorService drain = Executors.newSingleThreadScheduledExecutor(daemon("load-drain"));
+            if (mix == Mix.REQUESTS || mix == Mix.FANOUT) {
+                drain.scheduleWithFixedDelay(this::drainInboxes, DRAIN_INTERVAL_MS, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+            List<Thread> senders = new ArrayList<>();
+            for (int i = 0; i < senderCount; i++) {
+                int index = i;
+                Random random = new Random(seed + i);
+                Thread sender = new Thread(() -> sendLoop(index, random), "load-sender-" + i);
+                sender.setDaemon(true);
+                senders.add(sender);
+                sender.start();
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+            Map<String, long[]> gcBefore = gcTotals();
+            latencies = new Histogram();
+            sent.reset();
+            received.reset();
+            failed.reset();
+            long start = System.nanoTime();
+            measuring = true;
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            measuring = false;
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            Map<String, long[]> gcAfter = gcTotals();
+
+            running = false;
+            for (Thread sender : senders) {
+                sender.join(1000);
+            }
+            drain.shutdownNow();
+            report(out, elapsed, gcBefore, gcAfter);
+        } finally {
+            deleteQuietly(root);
+        }
+    }
+
+    private void startNodes(Path root, ServerMode serverMode, ThreadMode threadMode) throws Exception {
+        int discoveryPort;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            discoveryPort = probe.getLocalPort();
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            String name = "node" + i;
+            int tcpPort;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                tcpPort = probe.getLocalPort();
+            }
+            NodeConfig config = new NodeConfig(name, tcpPort, discoveryPort, null, root.resolve(name), serverMode, threadMode,
+                    true, 0, Inbox.DEFAULT_SENDER_MEMORY_BYTES, Inbox.DEFAULT_TOTAL_MEMORY_BYTES);
+            KeyManager keyManager = new KeyManager(config.getKeyDirectory(), KeyType.fromString(options.get("keyType")));
+            keyManager.loadOrCreateKeys();
+            Inbox inbox = new Inbox(config.getInboxSpillFile(), config.getInboxSenderBytes(), config.getInboxTotalBytes());
+            PeerNode node = new PeerNode(config, keyManager, new MessageStore(config.getMessageDirectory()), inbox) {
+                @Override
+                public void addMessageRequest(Message message, SecretKey sessionKey) {
+                    super.addMessageRequest(message, sessionKey);
+                    onReceived(message.getSenderUsername(), name);
+                }
+
+                @Override
+                public void displayChatMessage(String fromUser, String message) {
+                    super.displayChatMessage(fromUser, message);
+                    onReceived(fromUser, name);
+                }
+
+                @Override
+                public boolean isInChatWith(String partner) {
+                    return mix == Mix.CHAT; // Chat messages go to history rather than the inbox
+                }
+            };
+            nodes.add(node);
+            inboxes.add(inbox);
+            names.add(name);
+            threadMode.newThread("load-" + name, node::start).start(); // Headless start blocks until shutdown
+        }
+    }
+
+    private void awaitDiscovery(PrintStream out, int timeoutSeconds) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (true) {
+            int converged = 0;
+            for (PeerNode node : nodes) {
+                if (node.getPeerDiscovery().getOnlinePeers().size() >= nodeCount - 1) {
+                    converged++;
+                }
+            }
+            if (converged == nodeCount) {
+                out.printf("Discovery converged in %.1f s%n", (System.nanoTime() - start) / 1e9);
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("only " + converged + " of " + nodeCount + " nodes saw every peer within "
+                        + timeoutSeconds + " s");
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    private void sendLoop(int index, Random random) {
+        PeerNode node = nodes.get(index);
+        String self = names.get(index);
+        Semaphore permits = new Semaphore(window);
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        long next = System.nanoTime();
+        try {
+            while (running) {
+                if (interval > 0) {
+                    next += interval;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                switch (mix) {
+                    case REQUESTS:
+                        int target = random.nextInt(nodeCount - 1);
+                        send(node, self, names.get(target >= index ? target + 1 : target), permits);
+                        break;
+                    case CHAT:
+                        send(node, self, names.get(partner(index)), permits);
+                        break;
+                    case FANOUT:
+                        for (String other : names) {
+                            if (!other.equals(self)) {
+                                send(node, self, other, permits);
+                            }
+                        }
+                        break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Pairs 0-1, 2-3, ...; with an odd count the last node talks to node 0.
+    private int partner(int index) {
+        if (index % 2 == 1) {
+            return index - 1;
+        }
+        return (index + 1) % nodeCount;
+    }
+
+    private void send(PeerNode node, String from, String to, Semaphore permits) throws InterruptedException {
+        permits.acquire();
+        Sent entry = new Sent();
+        outstanding.computeIfAbsent(from + "->" + to, k -> new ConcurrentLinkedQueue<>()).add(entry);
+        CompletableFuture<Void> delivered = mix == Mix.CHAT
+                ? node.sendChatMessage(to, payload)
+                : node.sendMessageRequest(to, payload);
+        delivered.whenComplete((ignored, e) -> {
+            if (e != null) {
+                entry.failed = true;
+                if (measuring) failed.increment();
+            } else if (measuring) {
+                sent.increment();
+            }
+            permits.release();
+        });
+    }
+
+    // A failed send is settled before the next one on its pair is queued, so skipping failures keeps the match exact.
+    private void onReceived(String from, String to) {
+        Queue<Sent> pending = outstanding.get(from + "->" + to);
+        if (pending == null) {
+            return;
+        }
+        Sent entry;
+        do {
+            entry = pending.poll();
+        } while (entry != null && entry.failed);
+        if (entry != null && measuring) {
+            latencies.record(System.nanoTime() - entry.sentAt);
+            received.increment();
+        }
+    }
+
+    private void drainInboxes() {
+        for (Inbox inbox : inboxes) {
+            try {
+                for (String sender : inbox.counts().keySet()) {
+                    inbox.take(sender);
+                }
+            } catch (IOException e) {
+                // Counted by the node's own error handling; keep draining the rest
+            }
+        }
+    }
+
+    private void report(PrintStream out, double elapsed, Map<String, long[]> gcBefore, Map<String, long[]> gcAfter) {
+        Histogram latency = latencies;
+        out.printf("Sent       %d (%.1f msg/s)%n", sent.sum(), sent.sum() / elapsed);
+        out.printf("Received   %d (%.1f msg/s)%n", received.sum(), received.sum() / elapsed);
+        out.printf("Failed     %d%n", failed.sum());
+        out.printf("Latency    p50=%.1f us p99=%.1f us p999=%.1f us max=%.1f us mean=%.1f us%n",
+                latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0, latency.percentile(99.9) / 1000.0,
+                latency.getMax() / 1000.0, latency.getMean() / 1000.0);
+
+        long collections = 0;
+        long gcMillis = 0;
+        StringBuilder collectors = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : gcAfter.entrySet()) {
+            long[] before = gcBefore.getOrDefault(entry.getKey(), new long[2]);
+            long count = entry.getValue()[0] - before[0];
+            long millis = entry.getValue()[1] - before[1];
+            collections += count;
+            gcMillis += millis;
+            collectors.append(collectors.length() == 0 ? "" : ", ").append(entry.getKey()).append(": ").append(count)
+                    .append(" in ").append(millis).append(" ms");
+        }
+        out.printf("GC         %d collections, %d ms (%.2f%% of run) [%s]%n", collections, gcMillis,
+                gcMillis / (elapsed * 10), collectors);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        out.printf("Threads    live=%d peak=%d%n", threads.getThreadCount(), threads.getPeakThreadCount());
+        out.printf("Heap       used=%.1f MB committed=%.1f MB%n", memory.getHeapMemoryUsage().getUsed() / 1048576.0,
+                memory.getHeapMemoryUsage().getCommitted() / 1048576.0);
+
+        out.println("Node metrics (all nodes combined, warmup included):");
+        Metrics.REGISTRY.report().forEach(line -> out.println("  " + line));
+    }
+
+    private static Map<String, long[]> gcTotals() {
+        Map<String, long[]> totals = new HashMap<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals.put(collector.getName(), new long[] {collector.getCollectionCount(), collector.getCollectionTime()});
+        }
+        return totals;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static void deleteQuietly(Path root) {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+        }
+    }
+}
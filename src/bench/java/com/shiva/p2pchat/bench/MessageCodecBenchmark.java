@@ -0,0 +1,70 @@
+package com.shiva.p2pchat.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.shiva.p2pchat.model.Message;
+import com.shiva.p2pchat.protocol.MessageDecoder;
+import com.shiva.p2pchat.protocol.MessageEncoder;
+
+/* Message round-trips through Java serialization and the binary frame codec. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private Message message;
+    private final MessageEncoder encoder = new MessageEncoder();
+    private final MessageDecoder decoder = new MessageDecoder();
+    private final ByteArrayOutputStream frameOut = new ByteArrayOutputStream();
+
+    @Setup
+    public void setUp() {
+        message = new Message(Message.MessageType.CHAT, "benchmark-user", new byte[payloadSize]);
+    }
+
+    @Benchmark
+    public Message javaSerializationRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (Message) in.readObject();
+        }
+    }
+
+    @Benchmark
+    public Message binaryFrameRoundTrip() throws Exception {
+        frameOut.reset();
+        encoder.write(message, frameOut);
+        return decoder.read(new DataInputStream(new ByteArrayInputStream(frameOut.toByteArray())));
+    }
+
+    @Benchmark
+    public int binaryFrameEncode() {
+        return encoder.encode(message).remaining();
+    }
+}
@@ -0,0 +1,64 @@
+package com.shiva.p2pchat.bench;
+
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.discovery.PeerRegistry;
+
+/* Peer lookups and listings should not depend on how many peers are online. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PeerRegistryBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int peerCount;
+
+    private PeerRegistry registry;
+    private String target;
+
+    @Setup
+    public void setUp() throws Exception {
+        registry = new PeerRegistry();
+        PublicKey publicKey = CryptoUtils.generateKeyPair().getPublic();
+        for (int i = 0; i < peerCount; i++) {
+            registry.put("user-" + i, new PeerDiscovery.DiscoveredPeer("10.0.0." + (i % 250), 8888 + i, publicKey));
+        }
+        target = "user-" + (peerCount / 2);
+        registry.snapshot();
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.close();
+    }
+
+    @Benchmark
+    public PeerDiscovery.DiscoveredPeer getPeer() {
+        return registry.get(target);
+    }
+
+    @Benchmark
+    public Map<String, PeerDiscovery.DiscoveredPeer> snapshot() {
+        return registry.snapshot();
+    }
+}
@@ -2,34 +2,56 @@ package com.shiva.p2pchat;
 
 import java.util.Scanner;
 
+import com.shiva.p2pchat.core.NodeConfig;
 import com.shiva.p2pchat.core.PeerNode;
+import com.shiva.p2pchat.core.ThreadMode;
 import com.shiva.p2pchat.crypto.KeyManager;
+import com.shiva.p2pchat.store.Inbox;
+import com.shiva.p2pchat.store.MessageStore;
 import com.shiva.p2pchat.ui.UI;
 
 public class Main {
 
-    private static final int TCP_PORT = 8888;
-    private static final int DISCOVERY_PORT = 8889;
-
     public static void main(String[] args) {
         UI.printHeader("P2P SECURE MESSENGER");
 
-        Scanner scanner = new Scanner(System.in);
-        System.out.print(UI.CYAN + "Enter your username: " + UI.RESET);
-        String username = scanner.nextLine();
+        NodeConfig config;
+        try {
+            config = NodeConfig.fromArgs(args);
+        } catch (Exception e) {
+            UI.printError("Invalid configuration: " + e.getMessage());
+            return;
+        }
+
+        String username = config.getUsername();
+        if (username == null) {
+            if (config.isHeadless()) {
+                UI.printError("Headless mode needs --username.");
+                return;
+            }
+            Scanner scanner = new Scanner(System.in);
+            System.out.print(UI.CYAN + "Enter your username: " + UI.RESET);
+            username = scanner.nextLine();
+        }
 
         if (username.isEmpty() || username.contains(" ")) {
             UI.printError("Username cannot be empty or contain spaces.");
             return;
         }
+        config = config.withUsername(username);
 
         try {
-            KeyManager keyManager = new KeyManager();
+            KeyManager keyManager = new KeyManager(config.getKeyDirectory(), config.getKeyType());
             keyManager.loadOrCreateKeys();
-            
+
             System.out.println(UI.GREEN + "\nWelcome, " + UI.BOLD + username + UI.RESET + UI.GREEN + "! Searching for peers..." + UI.RESET);
 
-            PeerNode node = new PeerNode(username, TCP_PORT, DISCOVERY_PORT, keyManager);
+            if (config.getThreadMode() == ThreadMode.VIRTUAL && !ThreadMode.virtualThreadsAvailable()) {
+                UI.printError("Virtual threads need Java 21+; falling back to platform threads.");
+                config = config.withThreadMode(ThreadMode.PLATFORM);
+            }
+            Inbox inbox = new Inbox(config.getInboxSpillFile(), config.getInboxSenderBytes(), config.getInboxTotalBytes());
+            PeerNode node = new PeerNode(config, keyManager, new MessageStore(config.getMessageDirectory()), inbox);
             node.start();
 
         } catch (Exception e) {
@@ -1,58 +1,77 @@
 package com.shiva.p2pchat.core;
 
-import java.io.ObjectInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.Socket;
-import java.security.PrivateKey;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
-import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.metrics.Metrics;
 import com.shiva.p2pchat.model.Message;
-import com.shiva.p2pchat.ui.UI;
+import com.shiva.p2pchat.protocol.MessageDecoder;
+import com.shiva.p2pchat.protocol.WireFormat;
 
+/* Blocking server side of a peer connection: one thread per socket, which
+ reads and frames messages; InboundSession handles them on worker threads.
+ Replies to the sender are written under a lock, since tickets are issued
+ from those workers. */
 public class ConnectionHandler implements Runnable {
 
     private final Socket socket;
-    private final PeerNode peerNode;
-    private final PrivateKey privateKey;
+    private final InboundSession session;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile DataOutputStream out;
 
     public ConnectionHandler(Socket socket, PeerNode peerNode) {
         this.socket = socket;
-        this.peerNode = peerNode;
-        this.privateKey = peerNode.getKeyManager().getPrivateKey();
+        this.session = new InboundSession(peerNode, this::reply);
     }
 
     @Override
     public void run() {
-        try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        Metrics.INBOUND_CONNECTIONS.incrementAndGet();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            if (!WireFormat.readMagic(in)) {
+                return; // Not a peer speaking our framing; never fall back to Java deserialization.
+            }
+            this.out = out;
+            session.setFeatures(WireFormat.acceptPreamble(in, out, WireFormat.SUPPORTED_FEATURES));
+
+            // Senders keep their connection open, so read messages until they hang up.
+            MessageDecoder decoder = new MessageDecoder();
             while (!socket.isClosed()) {
-                Message message = (Message) in.readObject();
-                handleMessage(message);
+                Message message = decoder.read(in);
+                Metrics.BYTES_IN.add(decoder.lastFrameLength());
+                if (message.getType() == Message.MessageType.SESSION_RESUME) {
+                    reply(ByteBuffer.wrap(session.resume(message)));
+                    continue;
+                }
+                session.submit(message);
+                session.awaitCapacity();
             }
+        } catch (EOFException e) {
+            // The sender closed the connection
         } catch (Exception e) {
+            Metrics.CONNECTION_ERRORS.increment();
+        } finally {
+            Metrics.INBOUND_CONNECTIONS.decrementAndGet();
         }
     }
 
-    private void handleMessage(Message message) {
+    private void reply(ByteBuffer bytes) {
+        writeLock.lock();
         try {
-            String content = CryptoUtils.decrypt(message.getEncryptedContent(), privateKey);
-            String sender = message.getSenderUsername();
-
-            switch (message.getType()) {
-                case REQUEST:
-                    peerNode.addMessageRequest(sender, content);
-                    break;
-                case ACCEPT_REQUEST:
-                    peerNode.startChatSession(sender, content);
-                    break;
-                case CHAT:
-                    if (peerNode.isInChatWith(sender)) {
-                        peerNode.displayChatMessage(sender, content);
-                    } else {
-                        peerNode.addMessageRequest(sender, content);
-                    }
-                    break;
-            }
-        } catch (Exception e) {
-            UI.printError("Failed to handle message: " + e.getMessage());
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            out.flush();
+        } catch (IOException e) {
+            // The sender has gone; it will do a full handshake next time.
+        } finally {
+            writeLock.unlock();
         }
     }
 }
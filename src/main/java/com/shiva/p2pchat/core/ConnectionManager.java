@@ -0,0 +1,95 @@
+package com.shiva.p2pchat.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.discovery.PeerListener;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Message;
+
+/* Keeps one persistent outbound connection per peer so that many messages
+ can share a socket instead of paying a connect/teardown for each one.
+ As a PeerListener it drops connections to peers that leave or move. */
+public class ConnectionManager implements PeerListener {
+
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final long REAP_INTERVAL_MS = 10_000;
+
+    private final String localUsername;
+    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final LongSupplier connectionsGauge = connections::size;
+    private final TicketCache tickets = new TicketCache();
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "connection-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ConnectionManager(String localUsername) {
+        this.localUsername = localUsername;
+        Metrics.REGISTRY.gauge("connections.outbound", connectionsGauge);
+        reaper.scheduleWithFixedDelay(this::closeIdleConnections, REAP_INTERVAL_MS, REAP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /* Encrypts content with the connection's session key and sends it,
+     opening (and handshaking) the connection first if needed. */
+    public void send(PeerDiscovery.DiscoveredPeer peer, Message.MessageType type, byte[] content) throws Exception {
+        String id = peer.getId();
+        while (true) {
+            PeerConnection connection = connections.computeIfAbsent(id,
+                    k -> new PeerConnection(peer.ip, peer.port, peer.publicKey, localUsername, tickets));
+            if (!connection.usesKey(peer.publicKey)) {
+                // The peer now advertises a different key, so the old session is useless.
+                if (connections.remove(id, connection)) {
+                    connection.retire();
+                }
+                continue;
+            }
+            if (connection.send(type, content)) {
+                return;
+            }
+            connections.remove(id, connection);
+        }
+    }
+
+    @Override
+    public void peerLeft(String username, PeerDiscovery.DiscoveredPeer peer) {
+        close(peer);
+    }
+
+    @Override
+    public void peerChanged(String username, PeerDiscovery.DiscoveredPeer previous, PeerDiscovery.DiscoveredPeer current) {
+        // A new address gets its own connection, and a new key makes the old session useless.
+        if (!previous.getId().equals(current.getId()) || !previous.publicKey.equals(current.publicKey)) {
+            close(previous);
+        }
+    }
+
+    public void close(PeerDiscovery.DiscoveredPeer peer) {
+        PeerConnection connection = connections.remove(peer.getId());
+        if (connection != null) {
+            connection.retire();
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        connections.forEach((id, connection) -> {
+            if (connection.isIdle(now, IDLE_TIMEOUT_MS) && connections.remove(id, connection)) {
+                connection.retire();
+            }
+        });
+    }
+
+    public void closeAll() {
+        Metrics.REGISTRY.removeGauge("connections.outbound", connectionsGauge);
+        reaper.shutdownNow();
+        connections.values().forEach(PeerConnection::retire);
+        connections.clear();
+    }
+}
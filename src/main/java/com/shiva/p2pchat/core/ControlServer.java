@@ -0,0 +1,211 @@
+package com.shiva.p2pchat.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.shiva.p2pchat.group.Group;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.store.StoredMessage;
+
+/* Line-based command interface on a loopback port, for scripts and load
+ tests. Each command line gets its output lines, each starting with "- ",
+ followed by "OK" or "ERR <reason>".
+
+ online                    Users currently discovered
+ chat <user> <msg>         Send a message request; waits until it is written
+ say <user> <msg>          Send a chat message; waits until it is written
+ requests                  "<user> <count>" per sender with pending requests
+ read <user>               Pending requests from the user, left in the inbox
+ accept <user>             Accept the user's requests and return them
+ history <user> [page]     "<in|out> <timestamp> <text>", oldest first
+ sendfile <user> <path>    Offer a file
+ getfile <user>            Accept the user's file offers
+ files                     Transfers in progress
+ group <name> <user>...    Create a group and invite the users
+ gchat <group> <msg>       Send to a group; waits until every member has it
+ groups                    "<name>: <member>, ..." per group
+ stats                     The metrics report
+ quit                      Close this control connection
+ shutdown                  Stop the node */
+class ControlServer {
+
+    private static final long SEND_TIMEOUT_SECONDS = 10;
+
+    private final PeerNode peerNode;
+    private final int port;
+    private final ExecutorService executor;
+    private ServerSocket serverSocket;
+
+    ControlServer(PeerNode peerNode, int port, ExecutorService executor) {
+        this.peerNode = peerNode;
+        this.port = port;
+        this.executor = executor;
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        executor.submit(() -> {
+            try {
+                while (!serverSocket.isClosed()) {
+                    Socket client = serverSocket.accept();
+                    executor.submit(() -> serve(client));
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) peerNode.getConsole().error("Control listener failed: " + e.getMessage());
+            }
+        });
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void stop() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equalsIgnoreCase("quit")) {
+                    respond(out, new ArrayList<>(), "OK");
+                    return;
+                }
+                List<String> output = new ArrayList<>();
+                String status;
+                try {
+                    execute(line, output);
+                    status = "OK";
+                } catch (Exception e) {
+                    status = "ERR " + reason(e);
+                }
+                respond(out, output, status);
+                if (line.equalsIgnoreCase("shutdown")) {
+                    peerNode.shutdown();
+                }
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    private void execute(String line, List<String> output) throws Exception {
+        String[] parts = line.split("\\s+", 3);
+        String command = parts[0].toLowerCase();
+        switch (command) {
+            case "online":
+                peerNode.onlineUsers().forEach(output::add);
+                break;
+            case "chat":
+                await(peerNode.sendMessageRequest(argument(parts, 1, "chat <user> <msg>"), argument(parts, 2, "chat <user> <msg>")));
+                break;
+            case "say":
+                await(peerNode.sendChatMessage(argument(parts, 1, "say <user> <msg>"), argument(parts, 2, "say <user> <msg>")));
+                break;
+            case "requests":
+                peerNode.requestCounts().forEach((user, count) -> output.add(user + " " + count));
+                break;
+            case "read":
+                output.addAll(peerNode.readRequests(argument(parts, 1, "read <user>")));
+                break;
+            case "accept":
+                output.addAll(peerNode.acceptRequests(argument(parts, 1, "accept <user>")));
+                break;
+            case "history":
+                String user = argument(parts, 1, "history <user> [page]");
+                int page = parts.length == 3 ? Integer.parseInt(parts[2]) : 1;
+                for (StoredMessage message : peerNode.historyPage(user, page)) {
+                    output.add((message.getDirection() == StoredMessage.Direction.INBOUND ? "in " : "out ")
+                            + message.getTimestamp() + " " + message.getText());
+                }
+                break;
+            case "sendfile":
+                peerNode.offerFile(argument(parts, 1, "sendfile <user> <path>"), Paths.get(argument(parts, 2, "sendfile <user> <path>")));
+                break;
+            case "getfile":
+                if (peerNode.getFileTransfers().acceptFrom(argument(parts, 1, "getfile <user>")) == 0) {
+                    throw new IllegalArgumentException("No file offers from that user.");
+                }
+                break;
+            case "files":
+                output.addAll(peerNode.getFileTransfers().describe());
+                break;
+            case "group":
+                String members = argument(parts, 2, "group <name> <user> [user...]");
+                await(peerNode.createGroup(parts[1], Arrays.asList(members.split("[\\s,]+"))));
+                break;
+            case "gchat":
+                await(peerNode.sendGroupMessage(argument(parts, 1, "gchat <group> <msg>"), argument(parts, 2, "gchat <group> <msg>")));
+                break;
+            case "groups":
+                for (Group group : peerNode.getGroups().list()) {
+                    output.add(group.getName() + ": " + String.join(", ", group.getMembers()));
+                }
+                break;
+            case "stats":
+                output.addAll(Metrics.REGISTRY.report());
+                break;
+            case "shutdown":
+                break; // Answered first, then stopped by serve
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    private static String argument(String[] parts, int index, String usage) {
+        if (parts.length <= index) {
+            throw new IllegalArgumentException("Usage: " + usage);
+        }
+        return parts[index];
+    }
+
+    private static void await(CompletableFuture<Void> delivered) throws Exception {
+        try {
+            delivered.get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (TimeoutException e) {
+            throw new IOException("Not delivered within " + SEND_TIMEOUT_SECONDS + " seconds");
+        }
+    }
+
+    private static String reason(Exception e) {
+        String message = e.getMessage();
+        return message == null ? e.getClass().getSimpleName() : message.replace('\n', ' ');
+    }
+
+    private static void respond(Writer out, List<String> output, String status) throws IOException {
+        for (String line : output) {
+            out.write("- " + line.replace('\n', ' ') + "\n");
+        }
+        out.write(status + "\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,97 @@
+package com.shiva.p2pchat.core;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import com.shiva.p2pchat.metrics.Metrics;
+
+/* Runs the work for inbound messages (unwrapping session keys, decryption,
+ dispatch to PeerNode) on a worker pool, so a connection's reading thread
+ only frames bytes. Work for one sender runs one task at a time in the order
+ it was submitted; different senders are served in parallel. The inbound
+ counterpart of OutboundQueue. */
+class InboundDispatcher {
+
+    private final ExecutorService workers;
+    private final Map<String, SenderQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongSupplier queuedGauge = queued::get;
+
+    InboundDispatcher(ExecutorService workers) {
+        this.workers = workers;
+        Metrics.REGISTRY.gauge("inbound.queued", queuedGauge);
+    }
+
+    void dispatch(String sender, Runnable task) {
+        queued.incrementAndGet();
+        while (!queues.computeIfAbsent(sender, SenderQueue::new).offer(task)) {
+            // That queue just emptied and retired; the next one starts after it.
+        }
+    }
+
+    void shutdown() {
+        Metrics.REGISTRY.removeGauge("inbound.queued", queuedGauge);
+        workers.shutdownNow();
+        queues.clear();
+    }
+
+    /* Pending work for one sender, drained by at most one worker at a time.
+     An empty queue removes itself, and a retired queue refuses new work, so
+     a sender never has two queues running at once. */
+    private class SenderQueue implements Runnable {
+        private final String sender;
+        private final Queue<Runnable> pending = new ArrayDeque<>();
+        private boolean draining = false;
+        private boolean retired = false;
+
+        SenderQueue(String sender) {
+            this.sender = sender;
+        }
+
+        boolean offer(Runnable task) {
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                pending.add(task);
+                if (draining) {
+                    return true;
+                }
+                draining = true;
+            }
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = pending.poll();
+                    if (task == null) {
+                        draining = false;
+                        retired = true;
+                        queues.remove(sender, this);
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } finally {
+                    queued.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.shiva.p2pchat.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import javax.crypto.SecretKey;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.group.GroupManager;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Message;
+import com.shiva.p2pchat.protocol.MessageEncoder;
+import com.shiva.p2pchat.protocol.PayloadCompressor;
+import com.shiva.p2pchat.protocol.WireFormat;
+import com.shiva.p2pchat.relay.RelayManager;
+
+/* Per-connection receive state shared by the blocking and NIO servers:
+ remembers the session key and turns decoded frames into PeerNode calls.
+
+ The reading thread only submits frames; they are handled on the node's
+ InboundDispatcher, in order per sender. Once MAX_QUEUED frames from this
+ connection are waiting the reader should stop reading (awaitCapacity, or
+ resumeWhenDrained for NIO), so a fast sender is held back by TCP flow
+ control instead of filling the heap.
+
+ Replies (the SESSION_RESUME verdict and SESSION_TICKET) go back on the same
+ connection through a ReplyChannel supplied by the server. */
+class InboundSession {
+
+    static final int MAX_QUEUED = 256;
+    private static final int RESUME_NONCE_LENGTH = 16;
+
+    /* Writes bytes back to the sender, taking ownership of the buffer; safe
+     to call from any thread, and silent if the sender has gone. */
+    interface ReplyChannel {
+        void write(ByteBuffer bytes);
+    }
+
+    private final PeerNode peerNode;
+    private final PrivateKey privateKey;
+    private final InboundDispatcher dispatcher;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicReference<Runnable> resume = new AtomicReference<>();
+    // A lock rather than synchronized: a virtual reading thread waiting in a monitor pins its carrier.
+    private final ReentrantLock capacityLock = new ReentrantLock();
+    private final Condition capacity = capacityLock.newCondition();
+    private final Consumer<Message> handler;
+    private final ReplyChannel replies;
+    private volatile SecretKey sessionKey; // Set and read on dispatcher workers
+    private volatile byte features = WireFormat.NO_FEATURES;
+    private boolean started = false; // Reading thread only
+
+    InboundSession(PeerNode peerNode, ReplyChannel replies) {
+        this.peerNode = peerNode;
+        this.replies = replies;
+        this.privateKey = peerNode.getKeyManager().getPrivateKey();
+        this.dispatcher = peerNode.getInboundDispatcher();
+        this.handler = this::handleMessage;
+    }
+
+    // For tests: frames go to handler instead of a node.
+    InboundSession(InboundDispatcher dispatcher, Consumer<Message> handler) {
+        this.peerNode = null;
+        this.replies = null;
+        this.privateKey = null;
+        this.dispatcher = dispatcher;
+        this.handler = handler;
+    }
+
+    /* Called by the reading thread once the preamble is answered. */
+    void setFeatures(byte features) {
+        this.features = features;
+    }
+
+    /* Called by the reading thread for a SESSION_RESUME frame, in place of
+     submit: redeeming a ticket is one AES decryption, so it is done inline
+     and answered before any later frame is read. Returns the verdict for
+     the sender, followed by this side's nonce when it is an acceptance. Only
+     the first frame of a connection may resume. */
+    byte[] resume(Message message) {
+        if (started) {
+            return new byte[] {WireFormat.RESUME_REJECTED};
+        }
+        started = true;
+        try {
+            ByteBuffer content = ByteBuffer.wrap(message.getEncryptedContent());
+            byte[] ticket = new byte[content.getShort() & 0xFFFF];
+            content.get(ticket);
+            byte[] senderNonce = new byte[RESUME_NONCE_LENGTH];
+            content.get(senderNonce);
+            byte[] nonce = newResumeNonce();
+            SecretKey key = peerNode.getTicketIssuer().redeem(message.getSenderUsername(), ticket, senderNonce, nonce);
+            if (key != null) {
+                sessionKey = key;
+                Metrics.SESSIONS_RESUMED.increment();
+                return ByteBuffer.allocate(1 + nonce.length).put(WireFormat.RESUME_ACCEPTED).put(nonce).array();
+            }
+        } catch (BufferUnderflowException e) {
+            // Malformed; treat like an unknown ticket
+        }
+        Metrics.RESUMES_REJECTED.increment();
+        return new byte[] {WireFormat.RESUME_REJECTED};
+    }
+
+    /* The SESSION_RESUME content a sender builds from its ticket. */
+    static byte[] resumeContent(byte[] ticket, byte[] nonce) {
+        return ByteBuffer.allocate(2 + ticket.length + nonce.length)
+                .putShort((short) ticket.length).put(ticket).put(nonce).array();
+    }
+
+    /* The receiver's nonce that follows RESUME_ACCEPTED. */
+    static byte[] readResumeNonce(DataInputStream in) throws IOException {
+        byte[] nonce = new byte[RESUME_NONCE_LENGTH];
+        in.readFully(nonce);
+        return nonce;
+    }
+
+    static byte[] newResumeNonce() {
+        return CryptoUtils.randomBytes(RESUME_NONCE_LENGTH);
+    }
+
+    /* Called by the connection's reading thread for each decoded frame. */
+    void submit(Message message) {
+        started = true;
+        queued.incrementAndGet();
+        dispatcher.dispatch(message.getSenderUsername(), () -> {
+            try {
+                handler.accept(message);
+            } finally {
+                released();
+            }
+        });
+    }
+
+    boolean isFull() {
+        return queued.get() >= MAX_QUEUED;
+    }
+
+    /* Blocks the reading thread while the connection is full. */
+    void awaitCapacity() throws InterruptedException {
+        capacityLock.lock();
+        try {
+            while (isFull()) {
+                capacity.await();
+            }
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /* For readers that cannot block: runs the callback, on a worker thread,
+     once the connection is no longer full (at once if it already is not). */
+    void resumeWhenDrained(Runnable callback) {
+        resume.set(callback);
+        if (!isFull()) {
+            Runnable pending = resume.getAndSet(null);
+            if (pending != null) {
+                pending.run();
+            }
+        }
+    }
+
+    private void released() {
+        if (queued.decrementAndGet() == MAX_QUEUED - 1) {
+            capacityLock.lock();
+            try {
+                capacity.signalAll();
+            } finally {
+                capacityLock.unlock();
+            }
+            Runnable pending = resume.getAndSet(null);
+            if (pending != null) {
+                pending.run();
+            }
+        }
+    }
+
+    private void handleMessage(Message message) {
+        Metrics.MESSAGES_RECEIVED.increment();
+        try {
+            if (message.getType() == Message.MessageType.SESSION_KEY) {
+                sessionKey = CryptoUtils.unwrapSessionKey(message.getEncryptedContent(), privateKey);
+                if ((features & WireFormat.FEATURE_RESUMPTION) != 0) {
+                    issueTicket(message.getSenderUsername());
+                }
+                return;
+            }
+            dispatch(message, sessionKey);
+        } catch (Exception e) {
+            peerNode.getConsole().error("Failed to handle message: " + e.getMessage());
+        }
+    }
+
+    /* Sends the peer a ticket for this session, sealed with the session key:
+     lifetime in milliseconds (long) followed by the ticket. */
+    private void issueTicket(String sender) throws Exception {
+        byte[] ticket = peerNode.getTicketIssuer().issue(sender, sessionKey);
+        byte[] content = ByteBuffer.allocate(8 + ticket.length).putLong(TicketIssuer.TICKET_LIFETIME_MS).put(ticket).array();
+        Message reply = new Message(Message.MessageType.SESSION_TICKET, peerNode.getUsername(),
+                CryptoUtils.encryptSession(content, sessionKey));
+        ByteBuffer frame = new MessageEncoder().encode(reply);
+        replies.write(frame);
+    }
+
+    /* Handles a message whose content is sealed with key: the session key, or
+     for a relayed message the key its origin sealed it with. */
+    private void dispatch(Message message, SecretKey key) throws Exception {
+        String sender = message.getSenderUsername();
+        RelayManager relay = peerNode.getRelay();
+
+        // Requests stay encrypted in the inbox until the user opens them.
+        switch (message.getType()) {
+            case REQUEST:
+                peerNode.addMessageRequest(message, key);
+                break;
+            case ACCEPT_REQUEST:
+                peerNode.startChatSession(sender, decrypt(message.getEncryptedContent(), message.isCompressed(), key, privateKey));
+                break;
+            case CHAT:
+                if (peerNode.isInChatWith(sender)) {
+                    peerNode.displayChatMessage(sender, decrypt(message.getEncryptedContent(), message.isCompressed(), key, privateKey));
+                } else {
+                    peerNode.addMessageRequest(message, key);
+                }
+                break;
+            case GROUP_INVITE:
+                if (key != null) {
+                    byte[] invite = decryptBytes(message.getEncryptedContent(), message.isCompressed(), key);
+                    peerNode.groupJoined(sender, peerNode.getGroups().join(sender, invite));
+                }
+                break;
+            case GROUP_CHAT:
+                // Sealed with the group key, not the session key.
+                GroupManager.GroupMessage groupMessage = peerNode.getGroups().open(message.getEncryptedContent());
+                if (groupMessage != null) {
+                    peerNode.displayGroupMessage(groupMessage);
+                }
+                break;
+            case FILE_OFFER:
+            case FILE_CHUNK:
+            case FILE_ACK:
+                // Chunks can be far larger than one RSA block, so files need a session.
+                if (key != null) {
+                    byte[] content = decryptBytes(message.getEncryptedContent(), message.isCompressed(), key);
+                    peerNode.getFileTransfers().handle(sender, message.getType(), content);
+                }
+                break;
+            case PEER_TABLE:
+                if (relay != null && key != null) {
+                    relay.receiveTable(sender, decryptBytes(message.getEncryptedContent(), message.isCompressed(), key));
+                }
+                break;
+            case RELAY:
+                // Only ever from a neighbour's session; the inner message cannot be another RELAY.
+                if (relay != null && key != null) {
+                    byte[] content = decryptBytes(message.getEncryptedContent(), message.isCompressed(), key);
+                    RelayManager.Delivery delivery = relay.receive(sender, content);
+                    if (delivery != null) {
+                        dispatch(delivery.getMessage(), delivery.getKey());
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    static String decrypt(byte[] encryptedContent, boolean compressed, SecretKey sessionKey, PrivateKey privateKey) throws Exception {
+        if (sessionKey == null) {
+            // Peer skipped the handshake: fall back to per-message RSA.
+            long start = System.nanoTime();
+            String content = CryptoUtils.decrypt(encryptedContent, privateKey);
+            Metrics.DECRYPT_NANOS.recordSince(start);
+            return content;
+        }
+        return new String(decryptBytes(encryptedContent, compressed, sessionKey), StandardCharsets.UTF_8);
+    }
+
+    static byte[] decryptBytes(byte[] encryptedContent, boolean compressed, SecretKey sessionKey) throws Exception {
+        long start = System.nanoTime();
+        byte[] plainBytes = CryptoUtils.decryptSession(encryptedContent, sessionKey);
+        Metrics.DECRYPT_NANOS.recordSince(start);
+        return compressed ? PayloadCompressor.decompress(plainBytes) : plainBytes;
+    }
+}
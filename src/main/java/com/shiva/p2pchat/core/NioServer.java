@@ -0,0 +1,331 @@
+package com.shiva.p2pchat.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Message;
+import com.shiva.p2pchat.protocol.MessageDecoder;
+import com.shiva.p2pchat.protocol.WireFormat;
+
+/* Non-blocking alternative to the thread-per-connection listener.
+ A fixed set of event loops, each with its own Selector, serves every
+ inbound connection; the first loop also accepts and hands new channels
+ out round-robin. Decoded frames go to the same InboundSession logic
+ that ConnectionHandler uses; a loop stops reading a connection while too
+ many of its frames are waiting there, and picks it up again once they drain. */
+public class NioServer {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final PeerNode peerNode;
+    private final InetAddress bindAddress;
+    private final int port;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    public NioServer(PeerNode peerNode, int port, int eventLoops) {
+        this(peerNode, null, port, eventLoops);
+    }
+
+    /* A null bindAddress listens on every local address. */
+    public NioServer(PeerNode peerNode, InetAddress bindAddress, int port, int eventLoops) {
+        this.peerNode = peerNode;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(bindAddress, port));
+        serverChannel.configureBlocking(false);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void stop() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.close();
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<SelectionKey> resumed = new ConcurrentLinkedQueue<>();
+        private final Queue<SelectionKey> writable = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void assign(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        // Called from dispatcher workers when a paused connection has room again.
+        void resume(SelectionKey key) {
+            resumed.add(key);
+            selector.wakeup();
+        }
+
+        // Called from dispatcher workers when a connection has replies queued.
+        void flushLater(SelectionKey key) {
+            writable.add(key);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    registerPending();
+                    resumeReading();
+                    enableWrites();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+            } catch (IOException e) {
+                peerNode.getConsole().error("NIO event loop failed: " + e.getMessage());
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    NioConnection connection = new NioConnection(channel, peerNode, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    Metrics.INBOUND_CONNECTIONS.incrementAndGet();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void resumeReading() {
+            SelectionKey key;
+            while ((key = resumed.poll()) != null) {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        private void enableWrites() {
+            SelectionKey key;
+            while ((key = writable.poll()) != null) {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    return;
+                }
+                NioConnection connection = (NioConnection) key.attachment();
+                if (key.isWritable()) {
+                    connection.flush(key);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read(key);
+                    if (connection.session.isFull()) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        connection.session.resumeWhenDrained(() -> resume(key));
+                    }
+                }
+            } catch (Exception e) {
+                if (!(e instanceof EOFException)) {
+                    Metrics.CONNECTION_ERRORS.increment();
+                }
+                if (key.attachment() != null) {
+                    Metrics.INBOUND_CONNECTIONS.decrementAndGet();
+                }
+                key.cancel();
+                closeQuietly(key.channel());
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].assign(channel);
+            }
+        }
+
+        void close() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                selector.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /* Read-side state machine for one channel: preamble, then frames.
+     Replies queue up and are written by the loop whenever the channel takes them. */
+    private static class NioConnection {
+        private final SocketChannel channel;
+        private final InboundSession session;
+        private final MessageDecoder decoder = new MessageDecoder();
+        private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private ByteBuffer writeBuffer;
+        private boolean preambleDone = false;
+        private SelectionKey key;
+
+        NioConnection(SocketChannel channel, PeerNode peerNode, EventLoop loop) {
+            this.channel = channel;
+            this.session = new InboundSession(peerNode, bytes -> {
+                replies.add(bytes);
+                loop.flushLater(key);
+            });
+        }
+
+        void read(SelectionKey key) throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException("Peer closed connection");
+            }
+            readBuffer.flip();
+            try {
+                if (!preambleDone && !readPreamble(key)) {
+                    return;
+                }
+                readFrames(key);
+            } finally {
+                readBuffer.compact();
+            }
+        }
+
+        private boolean readPreamble(SelectionKey key) throws IOException {
+            if (readBuffer.remaining() < WireFormat.PREAMBLE_LENGTH) {
+                return false;
+            }
+            if (readBuffer.getInt() != WireFormat.MAGIC) {
+                throw new IOException("Not a peer connection");
+            }
+            writeBuffer = ByteBuffer.allocate(WireFormat.PREAMBLE_REPLY_LENGTH);
+            try {
+                session.setFeatures(WireFormat.acceptPreamble(readBuffer.get(), readBuffer.get(), WireFormat.SUPPORTED_FEATURES, writeBuffer));
+            } finally {
+                flush(key);
+            }
+            preambleDone = true;
+            return true;
+        }
+
+        private void readFrames(SelectionKey key) throws IOException {
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                MessageDecoder.checkLength(length);
+                if (readBuffer.remaining() < 4 + length) {
+                    growIfFull(4 + length);
+                    return;
+                }
+                readBuffer.position(readBuffer.position() + 4);
+                ByteBuffer body = readBuffer.slice();
+                body.limit(length);
+                readBuffer.position(readBuffer.position() + length);
+                Message message = decoder.decode(body);
+                Metrics.BYTES_IN.add(4 + length);
+                if (message.getType() == Message.MessageType.SESSION_RESUME) {
+                    replies.add(ByteBuffer.wrap(session.resume(message)));
+                    flush(key);
+                    continue;
+                }
+                session.submit(message);
+            }
+            shrinkIfDrained();
+        }
+
+        /* Called with the buffer flipped for reading; both keep the unread bytes.
+         The buffer only grows once what has arrived fills it, so a length
+         prefix alone cannot make it large, and it shrinks back when a frame
+         boundary leaves nothing pending. */
+        private void growIfFull(int frameLength) {
+            if (readBuffer.remaining() == readBuffer.capacity()) {
+                resize(Math.min(frameLength, readBuffer.capacity() * 2));
+            }
+        }
+
+        private void shrinkIfDrained() {
+            if (readBuffer.capacity() > READ_BUFFER_SIZE && readBuffer.remaining() < 4) {
+                resize(READ_BUFFER_SIZE);
+            }
+        }
+
+        private void resize(int capacity) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            resized.put(readBuffer);
+            resized.flip();
+            readBuffer = resized;
+        }
+
+        void flush(SelectionKey key) throws IOException {
+            while (true) {
+                if (writeBuffer == null && (writeBuffer = replies.poll()) == null) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+                channel.write(writeBuffer);
+                if (writeBuffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeBuffer = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
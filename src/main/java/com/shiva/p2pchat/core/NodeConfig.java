@@ -0,0 +1,256 @@
+package com.shiva.p2pchat.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import com.shiva.p2pchat.crypto.KeyType;
+import com.shiva.p2pchat.store.Inbox;
+
+/* Startup settings for one node. Each setting can come from a system property
+ (p2p.<name>), a properties file (<name>=value, given with --config <file>) or
+ a command-line flag (--<name> value or --<name>=value); later sources win in
+ that order. Everything a node writes lives under dataDir, so several nodes
+ can run on one host with different ports and data directories.
+
+ username             Required in headless mode; asked for otherwise
+ tcpPort              8888
+ discoveryPort        8889, shared by every node that should see each other
+ bind                 Address the TCP listener binds to (default: all)
+ dataDir              data
+ server               blocking | nio
+ threads              platform | virtual
+ headless             No console; drive the node through the control port
+ controlPort          Loopback port for line-based commands (0 = none)
+ inbox.senderBytes    In-memory request bytes per sender
+ inbox.totalBytes     In-memory request bytes overall
+ relay                Gossip routes with other relays and forward their messages
+ seeds                host[:discoveryPort],... of nodes on other subnets to beacon to
+ keyType              rsa | x25519, for keys created on first start */
+public class NodeConfig {
+
+    public static final int DEFAULT_TCP_PORT = 8888;
+    public static final int DEFAULT_DISCOVERY_PORT = 8889;
+    private static final Path DEFAULT_DATA_DIRECTORY = Paths.get("data");
+    private static final String PROPERTY_PREFIX = "p2p.";
+    private static final String CONFIG_FLAG = "config";
+    private static final String[] NAMES = {
+            "username", "tcpPort", "discoveryPort", "bind", "dataDir", "server", "threads",
+            "headless", "controlPort", "inbox.senderBytes", "inbox.totalBytes", "relay", "seeds", "keyType"
+    };
+
+    private final String username;
+    private final int tcpPort;
+    private final int discoveryPort;
+    private final InetAddress bindAddress;
+    private final Path dataDirectory;
+    private final ServerMode serverMode;
+    private final ThreadMode threadMode;
+    private final boolean headless;
+    private final int controlPort;
+    private final long inboxSenderBytes;
+    private final long inboxTotalBytes;
+    private final boolean relay;
+    private final List<InetSocketAddress> seeds;
+    private final KeyType keyType;
+
+    public NodeConfig(String username, int tcpPort, int discoveryPort, ServerMode serverMode, ThreadMode threadMode) {
+        this(username, tcpPort, discoveryPort, null, DEFAULT_DATA_DIRECTORY, serverMode, threadMode, false, 0,
+                Inbox.DEFAULT_SENDER_MEMORY_BYTES, Inbox.DEFAULT_TOTAL_MEMORY_BYTES);
+    }
+
+    public NodeConfig(String username, int tcpPort, int discoveryPort, InetAddress bindAddress, Path dataDirectory,
+                      ServerMode serverMode, ThreadMode threadMode, boolean headless, int controlPort,
+                      long inboxSenderBytes, long inboxTotalBytes) {
+        this(username, tcpPort, discoveryPort, bindAddress, dataDirectory, serverMode, threadMode, headless, controlPort,
+                inboxSenderBytes, inboxTotalBytes, false, Collections.emptyList(), KeyType.RSA);
+    }
+
+    public NodeConfig(String username, int tcpPort, int discoveryPort, InetAddress bindAddress, Path dataDirectory,
+                      ServerMode serverMode, ThreadMode threadMode, boolean headless, int controlPort,
+                      long inboxSenderBytes, long inboxTotalBytes, boolean relay, List<InetSocketAddress> seeds,
+                      KeyType keyType) {
+        this.username = username;
+        this.tcpPort = tcpPort;
+        this.discoveryPort = discoveryPort;
+        this.bindAddress = bindAddress;
+        this.dataDirectory = dataDirectory;
+        this.serverMode = serverMode;
+        this.threadMode = threadMode;
+        this.headless = headless;
+        this.controlPort = controlPort;
+        this.inboxSenderBytes = inboxSenderBytes;
+        this.inboxTotalBytes = inboxTotalBytes;
+        this.relay = relay;
+        this.seeds = Collections.unmodifiableList(new ArrayList<>(seeds));
+        this.keyType = keyType;
+    }
+
+    /* Reads system properties, then the --config file if one is given, then the other flags. */
+    public static NodeConfig fromArgs(String[] args) throws IOException {
+        Properties settings = new Properties();
+        for (String name : NAMES) {
+            String value = System.getProperty(PROPERTY_PREFIX + name);
+            if (value != null) {
+                settings.setProperty(name, value);
+            }
+        }
+        Properties flags = parseFlags(args);
+        String configFile = flags.getProperty(CONFIG_FLAG);
+        if (configFile != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(configFile))) {
+                settings.load(reader);
+            }
+            flags.remove(CONFIG_FLAG);
+        }
+        settings.putAll(flags);
+        return fromProperties(settings);
+    }
+
+    private static Properties parseFlags(String[] args) {
+        Properties flags = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            String name = arg.substring(2);
+            String value;
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                value = args[++i];
+            } else {
+                value = "true"; // A bare flag such as --headless
+            }
+            if (!name.equals(CONFIG_FLAG) && !isKnown(name)) {
+                throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+            flags.setProperty(name, value);
+        }
+        return flags;
+    }
+
+    private static boolean isKnown(String name) {
+        for (String known : NAMES) {
+            if (known.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static NodeConfig fromProperties(Properties settings) throws UnknownHostException {
+        String bind = settings.getProperty("bind");
+        int discoveryPort = port(settings, "discoveryPort", DEFAULT_DISCOVERY_PORT);
+        return new NodeConfig(
+                settings.getProperty("username"),
+                port(settings, "tcpPort", DEFAULT_TCP_PORT),
+                discoveryPort,
+                bind == null || bind.isEmpty() ? null : InetAddress.getByName(bind),
+                Paths.get(settings.getProperty("dataDir", DEFAULT_DATA_DIRECTORY.toString())),
+                ServerMode.fromString(settings.getProperty("server")),
+                ThreadMode.fromString(settings.getProperty("threads")),
+                Boolean.parseBoolean(settings.getProperty("headless", "false")),
+                port(settings, "controlPort", 0),
+                Long.parseLong(settings.getProperty("inbox.senderBytes", String.valueOf(Inbox.DEFAULT_SENDER_MEMORY_BYTES))),
+                Long.parseLong(settings.getProperty("inbox.totalBytes", String.valueOf(Inbox.DEFAULT_TOTAL_MEMORY_BYTES))),
+                Boolean.parseBoolean(settings.getProperty("relay", "false")),
+                seeds(settings.getProperty("seeds", ""), discoveryPort),
+                KeyType.fromString(settings.getProperty("keyType")));
+    }
+
+    private static List<InetSocketAddress> seeds(String value, int defaultPort) {
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        for (String seed : value.split(",")) {
+            seed = seed.trim();
+            if (seed.isEmpty()) {
+                continue;
+            }
+            int colon = seed.lastIndexOf(':');
+            String host = colon < 0 ? seed : seed.substring(0, colon);
+            int port = colon < 0 ? defaultPort : Integer.parseInt(seed.substring(colon + 1));
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            if (address.isUnresolved()) {
+                throw new IllegalArgumentException("Unknown seed host: " + host);
+            }
+            seeds.add(address);
+        }
+        return seeds;
+    }
+
+    private static int port(Properties settings, String name, int defaultPort) {
+        String value = settings.getProperty(name);
+        if (value == null) {
+            return defaultPort;
+        }
+        int port = Integer.parseInt(value.trim());
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException(name + " must be between 0 and 65535: " + port);
+        }
+        return port;
+    }
+
+    /* Same settings with the username filled in, for when it was asked for interactively. */
+    public NodeConfig withUsername(String username) {
+        return new NodeConfig(username, tcpPort, discoveryPort, bindAddress, dataDirectory, serverMode, threadMode,
+                headless, controlPort, inboxSenderBytes, inboxTotalBytes, relay, seeds, keyType);
+    }
+
+    /* Same settings on platform threads, for runtimes without virtual threads. */
+    public NodeConfig withThreadMode(ThreadMode threadMode) {
+        return new NodeConfig(username, tcpPort, discoveryPort, bindAddress, dataDirectory, serverMode, threadMode,
+                headless, controlPort, inboxSenderBytes, inboxTotalBytes, relay, seeds, keyType);
+    }
+
+    public String getUsername() { return username; }
+
+    public int getTcpPort() { return tcpPort; }
+
+    public int getDiscoveryPort() { return discoveryPort; }
+
+    /* Null means every local address. */
+    public InetAddress getBindAddress() { return bindAddress; }
+
+    public Path getDataDirectory() { return dataDirectory; }
+
+    public Path getKeyDirectory() { return dataDirectory.resolve("user"); }
+
+    public Path getMessageDirectory() { return dataDirectory.resolve("messages"); }
+
+    public Path getInboxSpillFile() { return dataDirectory.resolve("inbox").resolve("spill.dat"); }
+
+    public Path getDownloadDirectory() { return dataDirectory.resolve("downloads"); }
+
+    public Path getContactFile() { return dataDirectory.resolve("contacts.dat"); }
+
+    public ServerMode getServerMode() { return serverMode; }
+
+    public ThreadMode getThreadMode() { return threadMode; }
+
+    public boolean isHeadless() { return headless; }
+
+    public int getControlPort() { return controlPort; }
+
+    public long getInboxSenderBytes() { return inboxSenderBytes; }
+
+    public long getInboxTotalBytes() { return inboxTotalBytes; }
+
+    public boolean isRelay() { return relay; }
+
+    /* Discovery addresses of nodes beyond the broadcast domain. */
+    public List<InetSocketAddress> getSeeds() { return seeds; }
+
+    public KeyType getKeyType() { return keyType; }
+}
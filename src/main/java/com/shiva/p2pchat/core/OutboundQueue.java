@@ -0,0 +1,134 @@
+package com.shiva.p2pchat.core;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Message;
+
+/* Hands outbound messages to background workers so callers never wait on a
+ connect, encryption or socket write. Messages to one peer are sent one at a
+ time in the order they were queued; different peers are served in parallel. */
+public class OutboundQueue {
+
+    private static final int MAX_PENDING_PER_PEER = 1024;
+
+    private final ConnectionManager connectionManager;
+    private final ExecutorService workers;
+    private final Map<String, PeerQueue> queues = new ConcurrentHashMap<>();
+
+    public OutboundQueue(ConnectionManager connectionManager, ExecutorService workers) {
+        this.connectionManager = connectionManager;
+        this.workers = workers;
+    }
+
+    /* Queues the message and returns a future that completes once it has been
+     written to the peer's connection, or fails with the reason it could not be. */
+    public CompletableFuture<Void> send(PeerDiscovery.DiscoveredPeer peer, Message.MessageType type, byte[] content) {
+        OutboundMessage message = new OutboundMessage(peer, type, content);
+        while (!queues.computeIfAbsent(peer.getId(), PeerQueue::new).offer(message)) {
+            // That queue just emptied and retired; the next one starts after it.
+        }
+        return message.delivered;
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+        queues.clear();
+    }
+
+    private static class OutboundMessage {
+        final PeerDiscovery.DiscoveredPeer peer;
+        final Message.MessageType type;
+        final byte[] content;
+        final CompletableFuture<Void> delivered = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+
+        OutboundMessage(PeerDiscovery.DiscoveredPeer peer, Message.MessageType type, byte[] content) {
+            this.peer = peer;
+            this.type = type;
+            this.content = content;
+        }
+    }
+
+    /* Pending messages for one peer, drained by at most one worker at a time.
+     As with InboundDispatcher's queues, an empty queue removes itself and a
+     retired queue refuses new work, so peers that come and go leave nothing
+     behind and a peer never has two queues running at once. */
+    private class PeerQueue implements Runnable {
+        private final String peerId;
+        private final Queue<OutboundMessage> pending = new ArrayDeque<>();
+        private boolean draining = false;
+        private boolean retired = false;
+
+        PeerQueue(String peerId) {
+            this.peerId = peerId;
+        }
+
+        boolean offer(OutboundMessage message) {
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                if (pending.size() >= MAX_PENDING_PER_PEER) {
+                    message.delivered.completeExceptionally(new IllegalStateException("Too many messages queued for this peer"));
+                    return true;
+                }
+                pending.add(message);
+                if (draining) {
+                    return true;
+                }
+                draining = true;
+            }
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                failAll(e);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                OutboundMessage message;
+                synchronized (this) {
+                    message = pending.poll();
+                    if (message == null) {
+                        retire();
+                        return;
+                    }
+                }
+                try {
+                    connectionManager.send(message.peer, message.type, message.content);
+                    Metrics.SEND_NANOS.recordSince(message.queuedAt);
+                    message.delivered.complete(null);
+                } catch (Exception e) {
+                    Metrics.SEND_FAILURES.increment();
+                    message.delivered.completeExceptionally(e);
+                }
+            }
+        }
+
+        private synchronized void failAll(Exception cause) {
+            OutboundMessage message;
+            while ((message = pending.poll()) != null) {
+                message.delivered.completeExceptionally(cause);
+            }
+            retire();
+        }
+
+        // Called holding the lock
+        private void retire() {
+            draining = false;
+            retired = true;
+            queues.remove(peerId, this);
+        }
+    }
+}
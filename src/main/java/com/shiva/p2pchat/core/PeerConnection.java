@@ -0,0 +1,333 @@
+package com.shiva.p2pchat.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.SecretKey;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Message;
+import com.shiva.p2pchat.protocol.MessageDecoder;
+import com.shiva.p2pchat.protocol.MessageEncoder;
+import com.shiva.p2pchat.protocol.PayloadCompressor;
+import com.shiva.p2pchat.protocol.WireFormat;
+
+/* A single long-lived outbound connection to one peer.
+ The socket is opened lazily on first use and reopened after a failure.
+ A failed write is reported rather than retried, since the peer may already
+ have the message; only opening the connection is retried.
+ Each time it opens, a fresh AES session key is wrapped with the peer's
+ public key and sent ahead of any other message.
+
+ A peer that supports resumption answers the session key with a ticket,
+ picked up from the socket before later sends and when the connection is
+ retired. While a ticket is cached the next socket resumes instead: the
+ preamble and SESSION_RESUME go out together and the peer's verdict comes
+ back with the preamble reply, so reconnecting costs one round trip and no
+ public-key operation on either side. */
+class PeerConnection {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final long STALE_CHECK_MS = 1000; // Quiet this long before a send checks for a close from the peer
+
+    private final String ip;
+    private final int port;
+    private final PublicKey publicKey;
+    private final String localUsername;
+    private final TicketCache tickets;
+    private final String peerFingerprint; // Key for tickets
+    // A lock rather than synchronized: blocking I/O inside a monitor pins virtual threads.
+    private final ReentrantLock lock = new ReentrantLock();
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private final MessageEncoder encoder = new MessageEncoder();
+    private final MessageDecoder decoder = new MessageDecoder();
+    private SecretKey sessionKey;
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private byte features = WireFormat.NO_FEATURES; // Agreed with the peer for the current socket
+    private boolean ticketPending = false; // The peer owes a ticket for the current socket
+    private volatile long lastUsed = System.currentTimeMillis();
+    private boolean retired = false;
+
+    PeerConnection(String ip, int port, PublicKey publicKey, String localUsername, TicketCache tickets) {
+        this.ip = ip;
+        this.port = port;
+        this.publicKey = publicKey;
+        this.localUsername = localUsername;
+        this.tickets = tickets;
+        String fingerprint;
+        try {
+            fingerprint = CryptoUtils.fingerprint(publicKey);
+        } catch (NoSuchAlgorithmException e) {
+            fingerprint = null; // Never resume
+        }
+        this.peerFingerprint = fingerprint;
+    }
+
+    /* Returns false if the connection was retired by the idle reaper,
+     in which case the caller should fetch a fresh one. */
+    boolean send(Message.MessageType type, byte[] content) throws Exception {
+        lock.lock();
+        try {
+            if (retired) {
+                return false;
+            }
+            if (peerClosed()) {
+                // The peer dropped the connection while it sat idle; writing would appear to work and lose the message.
+                close();
+            }
+            try {
+                ensureOpen();
+            } catch (ConnectException | SocketTimeoutException e) {
+                throw e; // Unreachable or unresponsive; trying again at once would only double the wait
+            } catch (IOException e) {
+                // Nothing of this message has gone out yet, so one more attempt cannot duplicate it.
+                close();
+                ensureOpen();
+            }
+            try {
+                write(type, content);
+            } catch (IOException e) {
+                // Some of the message may have reached the peer; resending could deliver it twice.
+                close();
+                throw e;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(Message.MessageType type, byte[] content) throws Exception {
+        readTickets();
+        if (type == Message.MessageType.GROUP_CHAT) {
+            // Already sealed once for every member of the group.
+            checkFits(content.length, content.length);
+            writeMessage(new Message(type, localUsername, content));
+            Metrics.MESSAGES_SENT.increment();
+            lastUsed = System.currentTimeMillis();
+            return;
+        }
+        int length = content.length;
+        byte flags = 0;
+        if ((features & WireFormat.FEATURE_COMPRESSION) != 0) {
+            byte[] compressed = compressor.compress(content);
+            if (compressed != null) {
+                content = compressed;
+                flags |= Message.FLAG_COMPRESSED;
+            }
+        }
+        checkFits(length, content.length + CryptoUtils.SESSION_OVERHEAD);
+        long encryptStart = System.nanoTime();
+        byte[] encryptedContent = CryptoUtils.encryptSession(content, sessionKey);
+        Metrics.ENCRYPT_NANOS.recordSince(encryptStart);
+        writeMessage(new Message(type, flags, localUsername, encryptedContent, System.currentTimeMillis()));
+        Metrics.MESSAGES_SENT.increment();
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /* The encoder would refuse an oversized frame too, but with nothing the
+     user can act on. Checked before anything is written, so the connection
+     stays usable. */
+    private void checkFits(int length, int payloadLength) {
+        if (!WireFormat.fitsFrame(localUsername, payloadLength)) {
+            throw new IllegalArgumentException("Message too large to send: " + length + " bytes"
+                    + (payloadLength < length ? ", " + payloadLength + " once compressed" : "")
+                    + ". A message must fit in " + WireFormat.MAX_FRAME_LENGTH / 1024 + " KB after compression.");
+        }
+    }
+
+    private void writeMessage(Message message) throws IOException {
+        ByteBuffer frame = encoder.encode(message);
+        int length = frame.remaining();
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+        out.flush();
+        Metrics.BYTES_OUT.add(length);
+    }
+
+    private void ensureOpen() throws Exception {
+        if (socket != null && !socket.isClosed()) {
+            return;
+        }
+        long connectStart = System.nanoTime();
+        Socket newSocket = new Socket();
+        try {
+            newSocket.setTcpNoDelay(true);
+            newSocket.setKeepAlive(true);
+            newSocket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MS);
+            socket = newSocket;
+            out = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+            TicketCache.Ticket ticket = peerFingerprint == null ? null : tickets.get(peerFingerprint);
+            if (ticket != null && resume(newSocket, ticket)) {
+                Metrics.CONNECT_NANOS.recordSince(connectStart);
+                return;
+            }
+            if (ticket == null) {
+                negotiateFraming(newSocket);
+            }
+
+            sessionKey = CryptoUtils.generateSessionKey();
+            byte[] wrappedKey = CryptoUtils.wrapSessionKey(sessionKey, publicKey);
+            writeMessage(new Message(Message.MessageType.SESSION_KEY, localUsername, wrappedKey));
+            ticketPending = peerFingerprint != null && (features & WireFormat.FEATURE_RESUMPTION) != 0;
+            Metrics.CONNECT_NANOS.recordSince(connectStart);
+        } catch (Exception e) {
+            close();
+            newSocket.close();
+            throw e;
+        }
+    }
+
+    /* Checks whether a socket that has been quiet for a while was closed by
+     the peer. The peer only ever sends tickets, so anything other than end of
+     stream is left in the buffer for readTickets. */
+    private boolean peerClosed() {
+        if (socket == null || socket.isClosed() || System.currentTimeMillis() - lastUsed < STALE_CHECK_MS) {
+            return false;
+        }
+        try {
+            if (in.available() > 0) {
+                return false;
+            }
+            socket.setSoTimeout(1);
+            in.mark(1);
+            if (in.read() < 0) {
+                return true;
+            }
+            in.reset();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return false; // Still open, nothing to read
+        } catch (IOException e) {
+            return true;
+        } finally {
+            try {
+                if (!socket.isClosed()) {
+                    socket.setSoTimeout(0);
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void negotiateFraming(Socket newSocket) throws IOException {
+        WireFormat.writePreamble(out, WireFormat.SUPPORTED_FEATURES);
+        out.flush();
+        newSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        features = WireFormat.readPreambleReply(in);
+        newSocket.setSoTimeout(0);
+    }
+
+    /* Sends the preamble and SESSION_RESUME together (the ticket shows the
+     peer understands it) and reads the reply, the verdict and, with an
+     acceptance, the peer's nonce for the session key. Returns false
+     after a rejection, with the preamble done and the socket ready for
+     SESSION_KEY. */
+    private boolean resume(Socket newSocket, TicketCache.Ticket ticket) throws IOException {
+        byte[] nonce = InboundSession.newResumeNonce();
+        byte[] peerNonce = null;
+        byte verdict;
+        try {
+            WireFormat.writePreamble(out, WireFormat.SUPPORTED_FEATURES);
+            writeMessage(new Message(Message.MessageType.SESSION_RESUME, localUsername,
+                    InboundSession.resumeContent(ticket.ticket, nonce)));
+            newSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            features = WireFormat.readPreambleReply(in);
+            verdict = in.readByte();
+            if (verdict == WireFormat.RESUME_ACCEPTED) {
+                peerNonce = InboundSession.readResumeNonce(in);
+            }
+            newSocket.setSoTimeout(0);
+        } catch (IOException e) {
+            // Perhaps the peer could not make sense of the ticket; do not offer it again.
+            tickets.remove(peerFingerprint);
+            throw e;
+        }
+        if (verdict != WireFormat.RESUME_ACCEPTED) {
+            tickets.remove(peerFingerprint);
+            return false;
+        }
+        sessionKey = CryptoUtils.deriveSessionKey(ticket.secret, nonce, peerNonce);
+        return true;
+    }
+
+    /* Takes any tickets the peer has sent since the last look, without
+     blocking unless part of a frame has already arrived. A lost ticket only
+     costs a full handshake on the next connection. */
+    private void readTickets() {
+        try {
+            while (ticketPending && in.available() > 0) {
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                Message message = decoder.read(in);
+                socket.setSoTimeout(0);
+                if (message.getType() != Message.MessageType.SESSION_TICKET) {
+                    continue;
+                }
+                ByteBuffer content = ByteBuffer.wrap(CryptoUtils.decryptSession(message.getEncryptedContent(), sessionKey));
+                long lifetimeMs = content.getLong();
+                byte[] ticket = new byte[content.remaining()];
+                content.get(ticket);
+                tickets.put(peerFingerprint, ticket, sessionKey, lifetimeMs);
+                ticketPending = false;
+            }
+        } catch (Exception e) {
+            // Stop reading a stream that may be out of step; the next write finds out if it is broken.
+            ticketPending = false;
+        }
+    }
+
+    boolean usesKey(PublicKey key) {
+        return publicKey.equals(key);
+    }
+
+    boolean isIdle(long now, long idleTimeoutMs) {
+        return now - lastUsed > idleTimeoutMs;
+    }
+
+    void retire() {
+        lock.lock();
+        try {
+            retired = true;
+            readTickets();
+            close();
+            compressor.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            socket = null;
+            out = null;
+            in = null;
+            sessionKey = null;
+            ticketPending = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
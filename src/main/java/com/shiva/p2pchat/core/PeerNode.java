@@ -1,20 +1,42 @@
 package com.shiva.p2pchat.core;
 
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.net.Socket;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+import javax.crypto.SecretKey;
 
 import com.shiva.p2pchat.crypto.CryptoUtils;
 import com.shiva.p2pchat.crypto.KeyManager;
 import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.discovery.PeerListener;
+import com.shiva.p2pchat.group.Group;
+import com.shiva.p2pchat.group.GroupManager;
+import com.shiva.p2pchat.metrics.Metrics;
 import com.shiva.p2pchat.model.Message;
+import com.shiva.p2pchat.protocol.WireFormat;
+import com.shiva.p2pchat.relay.RelayManager;
+import com.shiva.p2pchat.store.Inbox;
+import com.shiva.p2pchat.store.MessageStore;
+import com.shiva.p2pchat.store.StoredMessage;
+import com.shiva.p2pchat.ui.ConsoleRenderer;
+import com.shiva.p2pchat.transfer.FileTransferManager;
 import com.shiva.p2pchat.ui.UI;
 
 public class PeerNode {
@@ -27,39 +49,146 @@ public class PeerNode {
     private volatile AppState currentState = AppState.MAIN_MENU;
     private volatile String currentChatPartner = null;
     private final Object printLock = new Object(); 
+    private static final int HISTORY_PAGE_SIZE = 20;
 
     private final String username;
     private final int tcpPort;
+    private final InetAddress bindAddress;
+    private final boolean headless;
+    private final int controlPort;
+    private final ServerMode serverMode;
+    private final ThreadMode threadMode;
     private final KeyManager keyManager;
     private final PeerDiscovery peerDiscovery;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ConnectionManager connectionManager;
+    private final OutboundQueue outboundQueue;
+    private final InboundDispatcher inboundDispatcher;
+    private final TicketIssuer ticketIssuer = new TicketIssuer();
+    private final ExecutorService executorService;
+    private NioServer nioServer;
+    private ControlServer controlServer;
     private volatile boolean running = true;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private final MessageStore messageStore;
+    private final Inbox messageRequests;
+    private final LongSupplier inboxDepthGauge;
+    private final FileTransferManager fileTransfers;
+    private final GroupManager groups;
+    private final RelayManager relay; // Null unless relay is enabled
+    private final ConsoleRenderer console; // Output from network threads goes through here
+
+    public PeerNode(String username, int tcpPort, int discoveryPort, KeyManager keyManager) throws IOException {
+        this(username, tcpPort, discoveryPort, keyManager, ServerMode.BLOCKING, ThreadMode.PLATFORM);
+    }
+
+    public PeerNode(String username, int tcpPort, int discoveryPort, KeyManager keyManager,
+                    ServerMode serverMode, ThreadMode threadMode) throws IOException {
+        this(username, tcpPort, discoveryPort, keyManager, serverMode, threadMode, new MessageStore(), new Inbox());
+    }
 
-    private final Map<String, List<String>> messageRequests = new ConcurrentHashMap<>();
+    public PeerNode(String username, int tcpPort, int discoveryPort, KeyManager keyManager,
+                    ServerMode serverMode, ThreadMode threadMode, MessageStore messageStore, Inbox inbox) {
+        this(new NodeConfig(username, tcpPort, discoveryPort, serverMode, threadMode), keyManager, messageStore, inbox);
+    }
 
-    public PeerNode(String username, int tcpPort, int discoveryPort, KeyManager keyManager) {
-        this.username = username;
-        this.tcpPort = tcpPort;
+    public PeerNode(NodeConfig config, KeyManager keyManager, MessageStore messageStore, Inbox inbox) {
+        this.username = config.getUsername();
+        this.messageStore = messageStore;
+        this.messageRequests = inbox;
+        this.inboxDepthGauge = inbox::size;
+        this.tcpPort = config.getTcpPort();
+        this.bindAddress = config.getBindAddress();
+        this.headless = config.isHeadless();
+        this.controlPort = config.getControlPort();
+        this.serverMode = config.getServerMode();
+        this.threadMode = config.getThreadMode();
+        this.executorService = threadMode.newExecutor();
         this.keyManager = keyManager;
-        this.peerDiscovery = new PeerDiscovery(username, tcpPort, discoveryPort, CryptoUtils.keyToString(keyManager.getPublicKey()));
+        this.connectionManager = new ConnectionManager(username);
+        this.outboundQueue = new OutboundQueue(connectionManager, threadMode.newExecutor());
+        this.inboundDispatcher = new InboundDispatcher(threadMode.newWorkerPool());
+        this.fileTransfers = new FileTransferManager(this::deliver, threadMode.newExecutor(), this::notifyUser,
+                config.getDownloadDirectory());
+        this.console = new ConsoleRenderer(printLock, headless ? null : this::currentPrompt);
+        this.peerDiscovery = new PeerDiscovery(username, tcpPort, config.getDiscoveryPort(),
+                CryptoUtils.keyToString(keyManager.getPublicKey()), threadMode, config.isRelay(), config.getSeeds(),
+                config.getContactFile(), console);
+        this.groups = new GroupManager(username, this::deliver, this::publicKeyOf, keyManager.getPrivateKey());
+        this.relay = config.isRelay()
+                ? new RelayManager(username, peerDiscovery, outboundQueue::send, keyManager.getPrivateKey()) : null;
     }
 
     public KeyManager getKeyManager() { return keyManager; }
 
+    public FileTransferManager getFileTransfers() { return fileTransfers; }
+
+    public PeerDiscovery getPeerDiscovery() { return peerDiscovery; }
+
+    public GroupManager getGroups() { return groups; }
+
+    public RelayManager getRelay() { return relay; }
+
+    ConsoleRenderer getConsole() { return console; }
+
+    InboundDispatcher getInboundDispatcher() { return inboundDispatcher; }
+
+    TicketIssuer getTicketIssuer() { return ticketIssuer; }
+
+    String getUsername() { return username; }
+
     /* Starts the main application loops:
      1. Peer Discovery (UDP)
      2. Server Listener (TCP)
-     3. User Input */
+     3. Control socket, if a control port is configured
+     4. User Input, or in headless mode a wait until shutdown */
 
     public void start() {
+        threadMode.newThread("console-renderer", console).start();
+        peerDiscovery.addPeerListener(connectionManager);
+        peerDiscovery.addPeerListener(new PresenceNotifier());
+        Metrics.REGISTRY.gauge("inbox.depth", inboxDepthGauge);
+        Metrics.REGISTRY.exposeViaJmx();
         executorService.submit(peerDiscovery);
+        if (relay != null) relay.start();
         startServerListener();
-        handleUserInput(); 
+        startControlServer();
+        if (headless) {
+            UI.printSystem("Running headless as '" + username + "' on port " + tcpPort + ".");
+            awaitShutdown();
+        } else {
+            handleUserInput();
+        }
+    }
+
+    private void startControlServer() {
+        if (controlPort == 0) {
+            return;
+        }
+        controlServer = new ControlServer(this, controlPort, executorService);
+        try {
+            controlServer.start();
+            UI.printSystem("Control commands accepted on 127.0.0.1:" + controlServer.getPort() + ".");
+        } catch (IOException e) {
+            UI.printError("Control listener failed: " + e.getMessage());
+        }
+    }
+
+    private void awaitShutdown() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private void startServerListener() {
+        if (serverMode == ServerMode.NIO) {
+            startNioServer();
+            return;
+        }
         executorService.submit(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(tcpPort)) {
+            try (ServerSocket serverSocket = new ServerSocket(tcpPort, 50, bindAddress)) {
                 while (running) {
                     Socket clientSocket = serverSocket.accept();
                     executorService.submit(new ConnectionHandler(clientSocket, this));
@@ -70,6 +199,16 @@ public class PeerNode {
         });
     }
 
+    private void startNioServer() {
+        int eventLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        nioServer = new NioServer(this, bindAddress, tcpPort, eventLoops);
+        try {
+            nioServer.start();
+        } catch (Exception e) {
+            UI.printError("Server listener failed: " + e.getMessage());
+        }
+    }
+
     private void handleUserInput() {
         Scanner scanner = new Scanner(System.in);
         while (running) {
@@ -109,6 +248,50 @@ public class PeerNode {
                         UI.printError("Usage: chat <username> <message>");
                     }
                     break;
+                case "history":
+                    if (parts.length >= 2) {
+                        showHistory(parts[1], parts.length == 3 ? parts[2] : "1");
+                    } else {
+                        UI.printError("Usage: history <username> [page]");
+                    }
+                    break;
+                case "sendfile":
+                    if (parts.length == 3) {
+                        sendFile(parts[1], parts[2]);
+                    } else {
+                        UI.printError("Usage: sendfile <username> <path>");
+                    }
+                    break;
+                case "getfile":
+                    if (parts.length >= 2) {
+                        acceptFiles(parts[1]);
+                    } else {
+                        UI.printError("Usage: getfile <username>");
+                    }
+                    break;
+                case "files":
+                    listTransfers();
+                    break;
+                case "group":
+                    if (parts.length == 3) {
+                        createGroup(parts[1], parts[2]);
+                    } else {
+                        UI.printError("Usage: group <name> <user> [user...]");
+                    }
+                    break;
+                case "gchat":
+                    if (parts.length == 3) {
+                        sendGroupMessage(parts[1], parts[2]);
+                    } else {
+                        UI.printError("Usage: gchat <group> <message>");
+                    }
+                    break;
+                case "groups":
+                    listGroups();
+                    break;
+                case "stats":
+                    showStats();
+                    break;
                 case "exit":
                     stop();
                     break;
@@ -163,30 +346,37 @@ public class PeerNode {
 
     private void listPeers() {
         UI.printHeader("Online Users");
-        Map<String, ?> peers = peerDiscovery.getOnlinePeers();
-        if (peers.isEmpty()) {
+        Set<String> users = onlineUsers();
+        if (users.isEmpty()) {
             System.out.println("No other users found.");
         } else {
-            peers.keySet().forEach(user -> System.out.println(UI.GREEN + "- " + user + UI.RESET));
+            users.forEach(user -> System.out.println(UI.GREEN + "- " + user + reachability(peerDiscovery.getPeer(user)) + UI.RESET));
         }
     }
 
+    private static String reachability(PeerDiscovery.DiscoveredPeer peer) {
+        if (peer == null) {
+            return " (via relay)";
+        }
+        return peer.unconfirmed ? " (probably online)" : "";
+    }
+
     private void listRequests() {
-        UI.printHeader("Message Requests (" + messageRequests.size() + ")");
-        if (messageRequests.isEmpty()) {
+        Map<String, Integer> counts = requestCounts();
+        UI.printHeader("Message Requests (" + counts.size() + ")");
+        if (counts.isEmpty()) {
             System.out.println("Your inbox is empty.");
         } else {
-            messageRequests.keySet().forEach(user -> 
-                System.out.println(UI.YELLOW + "- " + user + " (" + messageRequests.get(user).size() + " new)" + UI.RESET)
+            counts.forEach((user, count) ->
+                System.out.println(UI.YELLOW + "- " + user + " (" + count + " new)" + UI.RESET)
             );
         }
     }
 
     private void readMessagesFrom(String user) {
-        List<String> messages = messageRequests.get(user);
-        if (messages != null) {
+        if (messageRequests.contains(user)) {
             UI.printHeader("Messages from " + user);
-            for (String msg : messages) {
+            for (String msg : readRequests(user)) {
                 System.out.println(UI.WHITE + "- \"" + msg + "\"" + UI.RESET);
             }
         } else {
@@ -195,17 +385,14 @@ public class PeerNode {
     }
 
     private void acceptChatRequest(String user) {
-        if (!messageRequests.containsKey(user)) {
-            UI.printError("No request from that user.");
+        List<String> messages;
+        try {
+            messages = acceptRequests(user);
+        } catch (IllegalArgumentException e) {
+            UI.printError(e.getMessage());
             return;
         }
         
-        List<String> messages = messageRequests.remove(user);
-        currentChatPartner = user;
-        currentState = AppState.IN_CHAT; 
-
-        sendMessage(user, "I've accepted your chat request. Let's talk!", Message.MessageType.ACCEPT_REQUEST);
-        
         UI.printHeader("Chat with " + user);
         UI.printSystem("Type 'quit' to exit the chat.\n");
         for (String msg : messages) {
@@ -213,75 +400,365 @@ public class PeerNode {
         }
     }
 
-    private void sendMessageRequest(String targetUsername, String message) {
+    /* Users seen directly, then those reachable only through relays. */
+    Set<String> onlineUsers() {
+        if (relay == null) {
+            return peerDiscovery.getOnlinePeers().keySet();
+        }
+        Set<String> users = new LinkedHashSet<>(peerDiscovery.getOnlinePeers().keySet());
+        users.addAll(relay.remoteUsers());
+        return users;
+    }
+
+    private boolean isReachable(String user) {
+        return peerDiscovery.getPeer(user) != null || (relay != null && relay.canReach(user));
+    }
+
+    Map<String, Integer> requestCounts() {
+        return messageRequests.counts();
+    }
+
+    /* The sender's pending requests, decrypted and left in the inbox. */
+    List<String> readRequests(String user) {
+        if (!messageRequests.contains(user)) {
+            throw new IllegalArgumentException("No messages from that user.");
+        }
+        return openRequests(user, false);
+    }
+
+    /* Accepts the sender's requests, opens a chat with them and returns the requests. */
+    List<String> acceptRequests(String user) {
+        if (!messageRequests.contains(user)) {
+            throw new IllegalArgumentException("No request from that user.");
+        }
+        List<String> messages = openRequests(user, true);
+        currentChatPartner = user;
+        currentState = AppState.IN_CHAT;
+
+        sendMessage(user, "I've accepted your chat request. Let's talk!", Message.MessageType.ACCEPT_REQUEST);
+        return messages;
+    }
+
+    /* Decrypts a sender's pending requests. Accepted requests leave the inbox
+     and become part of the conversation history. */
+    private List<String> openRequests(String user, boolean accept) {
+        List<String> messages = new ArrayList<>();
+        try {
+            List<Inbox.PendingMessage> pending = accept ? messageRequests.take(user) : messageRequests.peek(user);
+            for (Inbox.PendingMessage request : pending) {
+                String text = InboundSession.decrypt(request.getEncryptedContent(), request.isCompressed(),
+                        request.getSessionKey(), keyManager.getPrivateKey());
+                if (accept) {
+                    record(user, StoredMessage.Direction.INBOUND, request.getTimestamp(), text);
+                }
+                messages.add(text);
+            }
+        } catch (Exception e) {
+            UI.printError("Could not open messages from " + user + ": " + e.getMessage());
+        }
+        return messages;
+    }
+
+    private void showHistory(String user, String pageArgument) {
+        int page;
+        try {
+            page = Integer.parseInt(pageArgument);
+        } catch (NumberFormatException e) {
+            page = 0;
+        }
+        try {
+            List<StoredMessage> messages = historyPage(user, page);
+            UI.printHeader("History with " + user + " (page " + page + ")");
+            for (StoredMessage msg : messages) {
+                UI.printChat(msg.getDirection() == StoredMessage.Direction.INBOUND ? user : "You", msg.getText());
+            }
+        } catch (IllegalArgumentException e) {
+            UI.printError(e.getMessage());
+        } catch (IOException e) {
+            UI.printError("Could not read history: " + e.getMessage());
+        }
+    }
+
+    /* One page of a conversation, oldest first; page 1 is the most recent messages. */
+    List<StoredMessage> historyPage(String user, int page) throws IOException {
+        if (page < 1) {
+            throw new IllegalArgumentException("Page must be a positive number.");
+        }
+        long end = messageStore.count(user) - (long) (page - 1) * HISTORY_PAGE_SIZE;
+        if (end <= 0) {
+            throw new IllegalArgumentException(page == 1 ? "No history with that user." : "No such page.");
+        }
+        long start = Math.max(0, end - HISTORY_PAGE_SIZE);
+        return messageStore.read(user, start, (int) (end - start));
+    }
+
+    // Returns the message's index in the conversation, or -1 if it could not be saved.
+    private long record(String peer, StoredMessage.Direction direction, String message) {
+        return record(peer, direction, System.currentTimeMillis(), message);
+    }
+
+    private long record(String peer, StoredMessage.Direction direction, long timestamp, String message) {
+        try {
+            return messageStore.append(peer, direction, timestamp, message);
+        } catch (IOException e) {
+            console.error("Could not save message: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    public CompletableFuture<Void> sendMessageRequest(String targetUsername, String message) {
         if (username.equals(targetUsername)) {
             UI.printError("You can't chat with yourself.");
-            return;
+            return CompletableFuture.failedFuture(new IllegalArgumentException("You can't chat with yourself."));
         }
-        sendMessage(targetUsername, message, Message.MessageType.REQUEST);
-        UI.printSystem("Message request sent to '" + targetUsername + "'.");
+        CompletableFuture<Void> delivered = sendMessage(targetUsername, message, Message.MessageType.REQUEST);
+        delivered.thenRun(() -> console.system("Message request sent to '" + targetUsername + "'."));
+        return delivered;
     }
 
-    private void sendChatMessage(String targetUsername, String message) {
-        sendMessage(targetUsername, message, Message.MessageType.CHAT);
+    public CompletableFuture<Void> sendChatMessage(String targetUsername, String message) {
+        return sendMessage(targetUsername, message, Message.MessageType.CHAT);
     }
 
-    private void sendMessage(String targetUsername, String message, Message.MessageType type) {
+    /* Queues the message and returns at once; delivery failures are reported when they happen. */
+    private CompletableFuture<Void> sendMessage(String targetUsername, String message, Message.MessageType type) {
+        if (!isReachable(targetUsername)) {
+            UI.printError("User '" + targetUsername + "' is not online or discoverable.");
+            return CompletableFuture.failedFuture(new IllegalStateException("Peer not online"));
+        }
+
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            WireFormat.checkMessageLength(content.length);
+        } catch (IllegalArgumentException e) {
+            UI.printError(e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+
+        record(targetUsername, StoredMessage.Direction.OUTBOUND, message);
+        CompletableFuture<Void> delivered = deliver(targetUsername, type, content);
+        delivered.whenComplete((ignored, e) -> {
+            if (e != null) {
+                console.error("Error sending message to " + targetUsername + ": " + e.getMessage());
+            }
+        });
+        return delivered;
+    }
+    
+    // Queues content without recording it or reporting failures; callers decide.
+    private CompletableFuture<Void> deliver(String targetUsername, Message.MessageType type, byte[] content) {
         PeerDiscovery.DiscoveredPeer peer = peerDiscovery.getPeer(targetUsername);
+        if (peer == null && relay != null && relay.canReach(targetUsername)) {
+            return relay.send(targetUsername, type, content);
+        }
         if (peer == null) {
-            UI.printError("User '" + targetUsername + "' is not online or discoverable.");
-            return;
+            return CompletableFuture.failedFuture(new IllegalStateException("User '" + targetUsername + "' is not online"));
         }
+        return outboundQueue.send(peer, type, content);
+    }
 
-        try (Socket socket = new Socket(peer.ip, peer.port);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-            
-            byte[] encryptedContent = CryptoUtils.encrypt(message, peer.publicKey);
-            Message msgObject = new Message(type, username, encryptedContent);
-            out.writeObject(msgObject);
-            out.flush();
+    private void sendFile(String targetUsername, String path) {
+        try {
+            offerFile(targetUsername, Paths.get(path));
+            UI.printSystem("File offered to '" + targetUsername + "'. Waiting for them to accept.");
+        } catch (IllegalArgumentException e) {
+            UI.printError(e.getMessage());
+        } catch (Exception e) {
+            UI.printError("Could not send file: " + e.getMessage());
+        }
+    }
+
+    void offerFile(String targetUsername, Path path) throws Exception {
+        if (peerDiscovery.getPeer(targetUsername) == null) {
+            throw new IllegalArgumentException("User '" + targetUsername + "' is not online or discoverable.");
+        }
+        fileTransfers.sendFile(targetUsername, path);
+    }
 
+    private void acceptFiles(String user) {
+        try {
+            if (fileTransfers.acceptFrom(user) == 0) {
+                UI.printError("No file offers from that user.");
+            }
+        } catch (IOException e) {
+            UI.printError("Could not accept file: " + e.getMessage());
+        }
+    }
+
+    private void listTransfers() {
+        UI.printHeader("File Transfers");
+        List<String> transfers = fileTransfers.describe();
+        if (transfers.isEmpty()) {
+            System.out.println("No transfers in progress.");
+        } else {
+            transfers.forEach(line -> System.out.println(UI.WHITE + line + UI.RESET));
+        }
+    }
+
+    private void showStats() {
+        UI.printHeader("Stats");
+        Metrics.REGISTRY.report().forEach(line -> System.out.println(UI.WHITE + line + UI.RESET));
+    }
+
+    private void createGroup(String name, String members) {
+        try {
+            createGroup(name, Arrays.asList(members.split("[\\s,]+"))).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    console.error("Some members of '" + name + "' could not be invited: " + e.getMessage());
+                } else {
+                    console.system("Group '" + name + "' created. Type 'gchat " + name + " <message>' to write to it.");
+                }
+            });
         } catch (Exception e) {
-            UI.printError("Error sending message to " + targetUsername + ": " + e.getMessage());
+            UI.printError(e instanceof IllegalArgumentException ? e.getMessage() : "Could not create group: " + e.getMessage());
         }
     }
-    
+
+    /* Creates the group and invites its members. */
+    CompletableFuture<Void> createGroup(String name, List<String> members) throws Exception {
+        return groups.create(name, members);
+    }
+
+    /* Seals the message once for the whole group and queues it to every member. */
+    public CompletableFuture<Void> sendGroupMessage(String name, String message) {
+        CompletableFuture<Void> delivered;
+        try {
+            delivered = groups.send(name, message);
+        } catch (Exception e) {
+            UI.printError(e instanceof IllegalArgumentException ? e.getMessage() : "Could not send to group: " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+        record("#" + name, StoredMessage.Direction.OUTBOUND, message);
+        delivered.whenComplete((ignored, e) -> {
+            if (e != null) {
+                console.error("Not every member of '" + name + "' got the message: " + e.getMessage());
+            }
+        });
+        return delivered;
+    }
+
+    private void listGroups() {
+        List<Group> all = groups.list();
+        UI.printHeader("Groups (" + all.size() + ")");
+        if (all.isEmpty()) {
+            System.out.println("You are not in any group.");
+        } else {
+            all.forEach(group -> System.out.println(UI.GREEN + "- " + group.getName() + ": "
+                    + String.join(", ", group.getMembers()) + UI.RESET));
+        }
+    }
+
+    private PublicKey publicKeyOf(String user) {
+        PeerDiscovery.DiscoveredPeer peer = peerDiscovery.getPeer(user);
+        if (peer == null) {
+            return relay == null ? null : relay.publicKeyOf(user);
+        }
+        return peer.publicKey;
+    }
+
+    private void notifyUser(String message) {
+        console.notice(message);
+    }
+
+    void shutdown() {
+        synchronized (printLock) {
+            stop();
+        }
+    }
+
     private void stop() {
         UI.printSystem("Shutting down...");
         this.running = false;
+        Metrics.REGISTRY.removeGauge("inbox.depth", inboxDepthGauge);
+        if (controlServer != null) controlServer.stop();
         peerDiscovery.stop();
+        if (relay != null) relay.stop();
+        outboundQueue.shutdown();
+        inboundDispatcher.shutdown();
+        connectionManager.closeAll();
+        messageStore.close();
+        messageRequests.close();
+        fileTransfers.close();
+        if (nioServer != null) nioServer.stop();
+        console.stop(); // Last, so whatever the rest reported is shown
         executorService.shutdownNow();
+        stopped.countDown();
         System.exit(0);
     }
 
-    public void addMessageRequest(String fromUser, String message) {
-        synchronized (printLock) {
-            messageRequests.computeIfAbsent(fromUser, k -> new ArrayList<>()).add(message);
-            if (currentState == AppState.MAIN_MENU) {
-                UI.printNotification("New request from '" + fromUser + "'. Type 'requests' to view.");
-            }
+    /* Files a still-encrypted request; sessionKey is null for RSA-encrypted bodies. */
+    public void addMessageRequest(Message message, SecretKey sessionKey) {
+        String fromUser = message.getSenderUsername();
+        try {
+            messageRequests.add(fromUser, message.getTimestamp(), message.getEncryptedContent(), sessionKey,
+                    message.isCompressed());
+        } catch (IOException e) {
+            console.error("Could not store request from " + fromUser + ": " + e.getMessage());
+            return;
+        }
+        if (headless || currentState == AppState.MAIN_MENU) {
+            console.request(fromUser);
         }
     }
 
     public void startChatSession(String partner, String initialMessage) {
-        synchronized (printLock) {
-            currentChatPartner = partner;
-            currentState = AppState.IN_CHAT;
-            UI.printHeader("Chat with " + partner);
-            UI.printSystem("Type 'quit' to exit the chat.\n");
-            UI.printChat(partner, initialMessage);
-            System.out.print(UI.CHAT_PROMPT); 
-        }
+        currentChatPartner = partner;
+        currentState = AppState.IN_CHAT;
+        record(partner, StoredMessage.Direction.INBOUND, initialMessage);
+        console.header("Chat with " + partner);
+        if (!headless) console.system("Type 'quit' to exit the chat.\n");
+        console.chat(partner, initialMessage);
     }
 
     public void displayChatMessage(String fromUser, String message) {
-        synchronized (printLock) {
-            UI.printChat(fromUser, message);
-            System.out.print(UI.CHAT_PROMPT); // Re-print prompt
+        record(fromUser, StoredMessage.Direction.INBOUND, message);
+        console.chat(fromUser, message);
+    }
+
+    public void groupJoined(String inviter, Group group) {
+        notifyUser("'" + inviter + "' added you to group '" + group.getName() + "' with "
+                + String.join(", ", group.getMembers()) + ". Type 'gchat " + group.getName() + " <message>' to write to it.");
+    }
+
+    public void displayGroupMessage(GroupManager.GroupMessage message) {
+        Group group = message.getGroup();
+        record(group.getConversation(), StoredMessage.Direction.INBOUND, message.getSender() + ": " + message.getText());
+        console.chat(message.getSender() + " @ " + group.getConversation(), message.getText());
+    }
+
+    private String currentPrompt() {
+        switch (currentState) {
+            case IN_CHAT:
+                return UI.CHAT_PROMPT;
+            case INBOX_VIEW:
+                return UI.INBOX_PROMPT;
+            default:
+                return UI.MAIN_PROMPT;
         }
     }
 
     public boolean isInChatWith(String partner) {
         return partner != null && partner.equals(currentChatPartner);
     }
+
+    private class PresenceNotifier implements PeerListener {
+        @Override
+        public void peerJoined(String username, PeerDiscovery.DiscoveredPeer peer) {
+            // Remembered from the last run rather than newly arrived.
+            if (!peer.unconfirmed) {
+                console.joined(username);
+            }
+        }
+
+        @Override
+        public void peerLeft(String username, PeerDiscovery.DiscoveredPeer peer) {
+            if (peer.unconfirmed) {
+                return;
+            }
+            console.left(username);
+            if (isInChatWith(username)) {
+                console.system(username + " is no longer reachable.");
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package com.shiva.p2pchat.core;
+
+/* How the TCP listener serves inbound peer connections. */
+public enum ServerMode {
+    BLOCKING, // One ConnectionHandler thread per connection
+    NIO;      // A few selector event loops shared by all connections
+
+    public static ServerMode fromString(String value) {
+        return value == null ? BLOCKING : valueOf(value.trim().toUpperCase());
+    }
+}
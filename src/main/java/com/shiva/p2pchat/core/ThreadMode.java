@@ -0,0 +1,66 @@
+package com.shiva.p2pchat.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/* Which kind of thread runs connection handlers, the accept loop and discovery.
+ Virtual threads need a Java 21 runtime; they are looked up reflectively so
+ the project still compiles and runs on Java 11 with the PLATFORM default. */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static ThreadMode fromString(String value) {
+        return value == null ? PLATFORM : valueOf(value.trim().toUpperCase());
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    public ExecutorService newExecutor() {
+        if (this == PLATFORM) {
+            return Executors.newCachedThreadPool();
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer", e);
+        }
+    }
+
+    /* A pool for CPU-bound work. Platform mode gets a fork-join pool with one
+     daemon worker per core; virtual threads are already spread over the cores. */
+    public ExecutorService newWorkerPool() {
+        if (this == PLATFORM) {
+            return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        }
+        return newExecutor();
+    }
+
+    /* Creates an unstarted daemon thread of this mode (virtual threads are always daemon). */
+    public Thread newThread(String name, Runnable task) {
+        if (this == PLATFORM) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class).invoke(builder, name);
+            Method unstarted = builderType.getMethod("unstarted", Runnable.class);
+            return (Thread) unstarted.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer", e);
+        }
+    }
+}
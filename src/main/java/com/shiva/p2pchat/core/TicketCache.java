@@ -0,0 +1,55 @@
+package com.shiva.p2pchat.core;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+/* Session tickets this node holds for peers it connects to, keyed by the
+ fingerprint of the peer's public key, so a ticket survives the peer moving
+ to a new address but not a new key. Least recently used entries are dropped
+ once the cache is full; expired ones when they are next looked up. */
+class TicketCache {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final long EXPIRY_MARGIN_MS = 60_000; // Clock skew and time in flight
+
+    static class Ticket {
+        final byte[] ticket;   // Opaque, sealed by the peer
+        final SecretKey secret; // Key of the session the ticket was issued on
+        final long expiresAt;
+
+        Ticket(byte[] ticket, SecretKey secret, long expiresAt) {
+            this.ticket = ticket;
+            this.secret = secret;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Ticket> tickets = Collections.synchronizedMap(
+            new LinkedHashMap<String, Ticket>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            });
+
+    void put(String fingerprint, byte[] ticket, SecretKey secret, long lifetimeMs) {
+        tickets.put(fingerprint, new Ticket(ticket, secret, System.currentTimeMillis() + lifetimeMs - EXPIRY_MARGIN_MS));
+    }
+
+    /* Returns the peer's ticket, or null if there is none that is still valid. */
+    Ticket get(String fingerprint) {
+        Ticket ticket = tickets.get(fingerprint);
+        if (ticket != null && ticket.expiresAt < System.currentTimeMillis()) {
+            tickets.remove(fingerprint, ticket);
+            return null;
+        }
+        return ticket;
+    }
+
+    void remove(String fingerprint) {
+        tickets.remove(fingerprint);
+    }
+}
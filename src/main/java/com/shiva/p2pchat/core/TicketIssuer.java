@@ -0,0 +1,84 @@
+package com.shiva.p2pchat.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+
+/* Issues session tickets to peers that connect to this node, and redeems
+ them when those peers reconnect. A ticket is the secret of the session it
+ was issued on, with the sender's name and an expiry, sealed with a ticket
+ key only this node knows; the sender keeps it (see TicketCache) and hands
+ it back in SESSION_RESUME, so resuming costs one AES decryption here
+ instead of a private-key operation.
+
+ Nothing is stored per peer. The ticket key is random per process and
+ rotates every TICKET_LIFETIME_MS; the previous key is kept for one more
+ period so a ticket issued just before a rotation still redeems. Tickets die
+ with the process, which only costs their holders a full handshake. */
+class TicketIssuer {
+
+    static final long TICKET_LIFETIME_MS = 30 * 60_000;
+    private static final String SECRET_ALGORITHM = "AES";
+
+    private volatile SecretKey currentKey;
+    private volatile SecretKey previousKey;
+    private volatile long rotatedAt; // The first ticket issued creates the first key
+
+    byte[] issue(String peer, SecretKey secret) throws Exception {
+        rotateIfDue();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(System.currentTimeMillis() + TICKET_LIFETIME_MS);
+            byte[] name = peer.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(name.length);
+            out.write(name);
+            out.write(secret.getEncoded());
+        }
+        return CryptoUtils.encryptSession(bytes.toByteArray(), currentKey);
+    }
+
+    /* Returns the key for the resumed connection, or null if the ticket is
+     expired, forged, sealed with a retired key or issued to someone else. */
+    SecretKey redeem(String peer, byte[] ticket, byte[] senderNonce, byte[] receiverNonce) {
+        for (SecretKey key : new SecretKey[] {currentKey, previousKey}) {
+            if (key == null) {
+                continue;
+            }
+            byte[] plain;
+            try {
+                plain = CryptoUtils.decryptSession(ticket, key);
+            } catch (Exception e) {
+                continue; // Not this key's
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(plain);
+            long expiresAt = buffer.getLong();
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            if (expiresAt < System.currentTimeMillis() || !peer.equals(new String(name, StandardCharsets.UTF_8))) {
+                return null;
+            }
+            byte[] secret = new byte[buffer.remaining()];
+            buffer.get(secret);
+            return CryptoUtils.deriveSessionKey(new SecretKeySpec(secret, SECRET_ALGORITHM), senderNonce, receiverNonce);
+        }
+        return null;
+    }
+
+    private synchronized void rotateIfDue() throws NoSuchAlgorithmException {
+        long now = System.currentTimeMillis();
+        if (currentKey != null && now - rotatedAt < TICKET_LIFETIME_MS) {
+            return;
+        }
+        SecretKey next = CryptoUtils.generateSessionKey();
+        previousKey = currentKey;
+        currentKey = next;
+        rotatedAt = now;
+    }
+}
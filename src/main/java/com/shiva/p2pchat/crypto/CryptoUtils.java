@@ -1,55 +1,277 @@
 package com.shiva.p2pchat.crypto;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAKey;
+import java.security.spec.NamedParameterSpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
+/* Every JCA engine here (Cipher, KeyFactory, KeyAgreement, MessageDigest,
+ KeyGenerator) is looked up once per thread and re-initialised for each use,
+ instead of going through the provider lookup on every call. Engines are not
+ thread-safe, hence one set per thread; virtual threads, which are not
+ reused, get no benefit but no harm either. */
 public class CryptoUtils {
 
     private static final String ALGORITHM = "RSA";
+    private static final String KEY_WRAP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final String SESSION_ALGORITHM = "AES";
+    private static final String SESSION_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int SESSION_KEY_BITS = 256;
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    public static final int SESSION_OVERHEAD = GCM_IV_LENGTH + GCM_TAG_BITS / 8; // What encryptSession adds
+
+    private static final String AGREEMENT_ALGORITHM = "XDH";
+    private static final int X25519_ENCODED_LENGTH = 44;
+    private static final byte[] WRAP_KEY_LABEL = "p2pchat x25519 wrap".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESUME_KEY_LABEL = "p2pchat resume".getBytes(StandardCharsets.US_ASCII);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyFactory>> KEY_FACTORIES = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<KeyAgreement> AGREEMENT = ThreadLocal.withInitial(() -> engine(() -> KeyAgreement.getInstance(AGREEMENT_ALGORITHM)));
+    private static final ThreadLocal<KeyPairGenerator> EPHEMERAL_KEYS = ThreadLocal.withInitial(() -> engine(() -> {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(KeyType.X25519.getAlgorithm());
+        generator.initialize(NamedParameterSpec.X25519, RANDOM);
+        return generator;
+    }));
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> engine(() -> MessageDigest.getInstance("SHA-256")));
+    private static final ThreadLocal<KeyGenerator> SESSION_KEYS = ThreadLocal.withInitial(() -> engine(() -> {
+        KeyGenerator generator = KeyGenerator.getInstance(SESSION_ALGORITHM);
+        generator.init(SESSION_KEY_BITS, RANDOM);
+        return generator;
+    }));
+
+    private interface EngineFactory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private static <T> T engine(EngineFactory<T> factory) {
+        try {
+            return factory.create();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Crypto engine unavailable: " + e.getMessage(), e);
+        }
+    }
+
+    private static Cipher cipher(String transformation) throws GeneralSecurityException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    private static KeyFactory keyFactory(KeyType type) throws GeneralSecurityException {
+        Map<String, KeyFactory> factories = KEY_FACTORIES.get();
+        KeyFactory factory = factories.get(type.getAlgorithm());
+        if (factory == null) {
+            factory = KeyFactory.getInstance(type.getAlgorithm());
+            factories.put(type.getAlgorithm(), factory);
+        }
+        return factory;
+    }
 
     public static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
-        KeyPairGenerator generator = KeyPairGenerator.getInstance(ALGORITHM);
-        generator.initialize(2048); // 2048-bit key size for strong security
+        return generateKeyPair(KeyType.RSA);
+    }
+
+    public static KeyPair generateKeyPair(KeyType type) throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(type.getAlgorithm());
+        if (type == KeyType.RSA) {
+            generator.initialize(2048); // 2048-bit key size for strong security
+        } else {
+            try {
+                generator.initialize(NamedParameterSpec.X25519);
+            } catch (InvalidAlgorithmParameterException e) {
+                throw new NoSuchAlgorithmException("X25519 not supported", e);
+            }
+        }
         return generator.generateKeyPair();
     }
 
+    /* Per-message sealing for peers that skipped the session handshake. RSA
+     keys seal the text directly (at most 245 bytes); X25519 keys cannot, so
+     the text goes under a one-off session key wrapped for the recipient. */
     public static byte[] encrypt(String plainText, PublicKey publicKey) throws Exception {
-        Cipher encryptCipher = Cipher.getInstance(ALGORITHM);
+        byte[] plainBytes = plainText.getBytes();
+        if (KeyType.of(publicKey) == KeyType.X25519) {
+            SecretKey messageKey = generateSessionKey();
+            byte[] wrapped = wrapSessionKey(messageKey, publicKey);
+            byte[] sealed = encryptSession(plainBytes, messageKey);
+            return ByteBuffer.allocate(2 + wrapped.length + sealed.length)
+                    .putShort((short) wrapped.length).put(wrapped).put(sealed).array();
+        }
+        Cipher encryptCipher = cipher(ALGORITHM);
         encryptCipher.init(Cipher.ENCRYPT_MODE, publicKey);
-        return encryptCipher.doFinal(plainText.getBytes());
+        return encryptCipher.doFinal(plainBytes);
     }
 
     public static String decrypt(byte[] cipherText, PrivateKey privateKey) throws Exception {
-        Cipher decryptCipher = Cipher.getInstance(ALGORITHM);
+        if (KeyType.of(privateKey) == KeyType.X25519) {
+            int wrappedLength = ByteBuffer.wrap(cipherText).getShort() & 0xFFFF;
+            SecretKey messageKey = unwrapSessionKey(Arrays.copyOfRange(cipherText, 2, 2 + wrappedLength), privateKey);
+            return new String(decryptSession(Arrays.copyOfRange(cipherText, 2 + wrappedLength, cipherText.length), messageKey));
+        }
+        Cipher decryptCipher = cipher(ALGORITHM);
         decryptCipher.init(Cipher.DECRYPT_MODE, privateKey);
         byte[] decryptedBytes = decryptCipher.doFinal(cipherText);
         return new String(decryptedBytes);
     }
 
+    /* Session mode: the long-term keys are used once per connection to wrap a
+     fresh AES key, and every message after that is sealed with AES-GCM. */
+
+    public static SecretKey generateSessionKey() throws NoSuchAlgorithmException {
+        return SESSION_KEYS.get().generateKey();
+    }
+
+    /* RSA recipients get OAEP. X25519 recipients get an ephemeral X25519 public
+     key (X.509, 44 bytes) followed by the session key sealed with AES-GCM under
+     SHA-256(label, shared secret, ephemeral key). */
+    public static byte[] wrapSessionKey(SecretKey sessionKey, PublicKey publicKey) throws Exception {
+        if (KeyType.of(publicKey) == KeyType.X25519) {
+            KeyPair ephemeral = EPHEMERAL_KEYS.get().generateKeyPair();
+            byte[] ephemeralKey = ephemeral.getPublic().getEncoded();
+            SecretKey wrapKey = agreeWrapKey(ephemeral.getPrivate(), publicKey, ephemeralKey);
+            byte[] sealed = encryptSession(sessionKey.getEncoded(), wrapKey);
+            return ByteBuffer.allocate(ephemeralKey.length + sealed.length).put(ephemeralKey).put(sealed).array();
+        }
+        Cipher wrapCipher = cipher(KEY_WRAP_TRANSFORMATION);
+        wrapCipher.init(Cipher.WRAP_MODE, publicKey);
+        return wrapCipher.wrap(sessionKey);
+    }
+
+    /* The length wrapSessionKey returns for this recipient, without wrapping anything. */
+    public static int wrappedKeyLength(PublicKey publicKey) {
+        if (KeyType.of(publicKey) == KeyType.X25519) {
+            return X25519_ENCODED_LENGTH + SESSION_KEY_BITS / 8 + SESSION_OVERHEAD;
+        }
+        return (((RSAKey) publicKey).getModulus().bitLength() + 7) / 8;
+    }
+
+    public static SecretKey unwrapSessionKey(byte[] wrappedKey, PrivateKey privateKey) throws Exception {
+        if (KeyType.of(privateKey) == KeyType.X25519) {
+            int keyLength = X25519_ENCODED_LENGTH;
+            byte[] ephemeralKey = Arrays.copyOf(wrappedKey, keyLength);
+            PublicKey ephemeral = keyFactory(KeyType.X25519).generatePublic(new X509EncodedKeySpec(ephemeralKey));
+            SecretKey wrapKey = agreeWrapKey(privateKey, ephemeral, ephemeralKey);
+            byte[] keyBytes = decryptSession(Arrays.copyOfRange(wrappedKey, keyLength, wrappedKey.length), wrapKey);
+            return new SecretKeySpec(keyBytes, SESSION_ALGORITHM);
+        }
+        Cipher unwrapCipher = cipher(KEY_WRAP_TRANSFORMATION);
+        unwrapCipher.init(Cipher.UNWRAP_MODE, privateKey);
+        return (SecretKey) unwrapCipher.unwrap(wrappedKey, SESSION_ALGORITHM, Cipher.SECRET_KEY);
+    }
+
+    private static SecretKey agreeWrapKey(PrivateKey privateKey, PublicKey publicKey, byte[] ephemeralKey)
+            throws GeneralSecurityException {
+        KeyAgreement agreement = AGREEMENT.get();
+        agreement.init(privateKey);
+        agreement.doPhase(publicKey, true);
+        MessageDigest digest = SHA256.get();
+        digest.update(WRAP_KEY_LABEL);
+        digest.update(agreement.generateSecret());
+        digest.update(ephemeralKey);
+        return new SecretKeySpec(digest.digest(), SESSION_ALGORITHM);
+    }
+
+    /* The key for a resumed session: SHA-256 over a label, the secret from the
+     session that issued the ticket and a nonce from each side of this
+     connection. The receiver's nonce is what keeps a recorded SESSION_RESUME
+     from being replayed: played again, it gets a new nonce and so a key the
+     recorded frames were not sealed with. */
+    public static SecretKey deriveSessionKey(SecretKey secret, byte[] senderNonce, byte[] receiverNonce) {
+        MessageDigest digest = SHA256.get();
+        digest.update(RESUME_KEY_LABEL);
+        digest.update(secret.getEncoded());
+        digest.update(senderNonce);
+        digest.update(receiverNonce);
+        return new SecretKeySpec(digest.digest(), SESSION_ALGORITHM);
+    }
+
+    public static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    // Output layout: 12-byte random IV followed by the ciphertext and GCM tag.
+    public static byte[] encryptSession(byte[] plainBytes, SecretKey sessionKey) throws Exception {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        Cipher encryptCipher = cipher(SESSION_TRANSFORMATION);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, sessionKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+
+        ByteBuffer output = ByteBuffer.allocate(GCM_IV_LENGTH + encryptCipher.getOutputSize(plainBytes.length));
+        output.put(iv);
+        encryptCipher.doFinal(ByteBuffer.wrap(plainBytes), output);
+        return output.array();
+    }
+
+    public static byte[] decryptSession(byte[] cipherText, SecretKey sessionKey) throws Exception {
+        Cipher decryptCipher = cipher(SESSION_TRANSFORMATION);
+        decryptCipher.init(Cipher.DECRYPT_MODE, sessionKey, new GCMParameterSpec(GCM_TAG_BITS, cipherText, 0, GCM_IV_LENGTH));
+        return decryptCipher.doFinal(cipherText, GCM_IV_LENGTH, cipherText.length - GCM_IV_LENGTH);
+    }
+
     public static String keyToString(Key key) {
         return Base64.getEncoder().encodeToString(key.getEncoded());
     }
 
+    private static final int FINGERPRINT_BYTES = 8;
+
+    /* Short, stable identifier for a public key: the first 8 bytes of the
+     SHA-256 of its encoding, in hex. Cheap to compute without decoding the key. */
+    public static String fingerprint(byte[] encodedKey) throws NoSuchAlgorithmException {
+        byte[] digest = SHA256.get().digest(encodedKey);
+        StringBuilder hex = new StringBuilder(FINGERPRINT_BYTES * 2);
+        for (int i = 0; i < FINGERPRINT_BYTES; i++) {
+            hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public static String fingerprint(Key key) throws NoSuchAlgorithmException {
+        return fingerprint(key.getEncoded());
+    }
+
+    // The key type is read from the encoding, so RSA and X25519 keys both decode.
     public static PublicKey stringToPublicKey(String keyString) throws Exception {
         byte[] keyBytes = Base64.getDecoder().decode(keyString);
         X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-        KeyFactory keyFactory = KeyFactory.getInstance(ALGORITHM);
-        return keyFactory.generatePublic(spec);
+        return keyFactory(KeyType.ofEncoded(keyBytes)).generatePublic(spec);
     }
      public static PrivateKey stringToPrivateKey(String keyString) throws Exception {
         byte[] keyBytes = Base64.getDecoder().decode(keyString);
         PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-        KeyFactory keyFactory = KeyFactory.getInstance(ALGORITHM);
-        return keyFactory.generatePrivate(spec);
+        return keyFactory(KeyType.ofEncoded(keyBytes)).generatePrivate(spec);
     }
 }
\ No newline at end of file
@@ -8,29 +8,48 @@ import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 
+/* Loads the node's key pair from the key directory, or creates one of the
+ configured type there. Keys already on disk are used whatever their type, so
+ changing the type only affects nodes that have no keys yet. */
 public class KeyManager {
 
-    private static final Path PUBLIC_KEY_PATH = Paths.get("data/user/public.key");
-    private static final Path PRIVATE_KEY_PATH = Paths.get("data/user/private.key");
+    private static final Path DEFAULT_KEY_DIRECTORY = Paths.get("data/user");
 
+    private final Path publicKeyPath;
+    private final Path privateKeyPath;
+    private final KeyType keyType;
     private PublicKey publicKey;
     private PrivateKey privateKey;
 
+    public KeyManager() {
+        this(DEFAULT_KEY_DIRECTORY);
+    }
+
+    public KeyManager(Path keyDirectory) {
+        this(keyDirectory, KeyType.RSA);
+    }
+
+    public KeyManager(Path keyDirectory, KeyType keyType) {
+        this.publicKeyPath = keyDirectory.resolve("public.key");
+        this.privateKeyPath = keyDirectory.resolve("private.key");
+        this.keyType = keyType;
+    }
+
     public void loadOrCreateKeys() throws Exception {
-        Files.createDirectories(PUBLIC_KEY_PATH.getParent());
+        Files.createDirectories(publicKeyPath.getParent());
         
-        if (Files.exists(PUBLIC_KEY_PATH) && Files.size(PUBLIC_KEY_PATH) > 0 && 
-            Files.exists(PRIVATE_KEY_PATH) && Files.size(PRIVATE_KEY_PATH) > 0) {
+        if (Files.exists(publicKeyPath) && Files.size(publicKeyPath) > 0 && 
+            Files.exists(privateKeyPath) && Files.size(privateKeyPath) > 0) {
             
             System.out.println("Loading existing keys...");
-            String publicKeyStr = new String(Files.readAllBytes(PUBLIC_KEY_PATH));
-            String privateKeyStr = new String(Files.readAllBytes(PRIVATE_KEY_PATH));
+            String publicKeyStr = new String(Files.readAllBytes(publicKeyPath));
+            String privateKeyStr = new String(Files.readAllBytes(privateKeyPath));
             this.publicKey = CryptoUtils.stringToPublicKey(publicKeyStr);
             this.privateKey = CryptoUtils.stringToPrivateKey(privateKeyStr);
             
         } else {
             System.out.println("No valid keys found. Generating new key pair...");
-            KeyPair keyPair = CryptoUtils.generateKeyPair();
+            KeyPair keyPair = CryptoUtils.generateKeyPair(keyType);
             this.publicKey = keyPair.getPublic();
             this.privateKey = keyPair.getPrivate();
             saveKeys();
@@ -39,8 +58,8 @@ public class KeyManager {
     }
 
     private void saveKeys() throws IOException {
-        Files.write(PUBLIC_KEY_PATH, CryptoUtils.keyToString(publicKey).getBytes());
-        Files.write(PRIVATE_KEY_PATH, CryptoUtils.keyToString(privateKey).getBytes());
+        Files.write(publicKeyPath, CryptoUtils.keyToString(publicKey).getBytes());
+        Files.write(privateKeyPath, CryptoUtils.keyToString(privateKey).getBytes());
     }
 
     public PublicKey getPublicKey() {
@@ -50,4 +69,9 @@ public class KeyManager {
     public PrivateKey getPrivateKey() {
         return privateKey;
     }
+
+    /* The type of the keys in use, which may differ from the configured one. */
+    public KeyType getKeyType() {
+        return KeyType.of(publicKey);
+    }
 }
\ No newline at end of file
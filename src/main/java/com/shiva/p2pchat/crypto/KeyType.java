@@ -0,0 +1,66 @@
+package com.shiva.p2pchat.crypto;
+
+import java.security.Key;
+import java.security.interfaces.XECKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.NamedParameterSpec;
+
+/* The kind of key pair a node identifies itself with. Peers can mix kinds:
+ whoever wraps a session key uses the recipient's kind.
+
+ RSA     2048-bit; session keys wrapped with OAEP. Slow to generate (seconds)
+         and 294 bytes encoded.
+ X25519  Session keys wrapped with an ephemeral X25519 agreement and AES-GCM.
+         Generated in well under a millisecond and 44 bytes encoded. */
+public enum KeyType {
+    RSA("RSA"),
+    X25519("XDH");
+
+    // DER for the X25519 algorithm identifier, OID 1.3.101.110
+    private static final byte[] X25519_OID = {0x06, 0x03, 0x2b, 0x65, 0x6e};
+
+    private final String algorithm; // JCA KeyFactory / KeyPairGenerator name
+
+    KeyType(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    String getAlgorithm() { return algorithm; }
+
+    public static KeyType fromString(String value) {
+        return value == null ? RSA : valueOf(value.trim().toUpperCase());
+    }
+
+    /* Providers name X25519 keys "XDH" or "X25519"; any other kind of key
+     (EC, DSA, X448) is refused rather than wrapped under the wrong scheme. */
+    public static KeyType of(Key key) {
+        String algorithm = key.getAlgorithm();
+        if ("RSA".equals(algorithm)) {
+            return RSA;
+        }
+        if ("X25519".equals(algorithm)
+                || "XDH".equals(algorithm) && (!(key instanceof XECKey) || isX25519(((XECKey) key).getParams()))) {
+            return X25519;
+        }
+        throw new IllegalArgumentException("Unsupported key algorithm: " + algorithm);
+    }
+
+    private static boolean isX25519(AlgorithmParameterSpec params) {
+        return params instanceof NamedParameterSpec && "X25519".equalsIgnoreCase(((NamedParameterSpec) params).getName());
+    }
+
+    /* Reads the algorithm identifier near the start of an X.509 or PKCS#8 encoding. */
+    static KeyType ofEncoded(byte[] encoded) {
+        int end = Math.min(encoded.length, 24) - X25519_OID.length;
+        for (int i = 0; i <= end; i++) {
+            boolean match = true;
+            for (int j = 0; j < X25519_OID.length && match; j++) {
+                match = encoded[i + j] == X25519_OID[j];
+            }
+            if (match) {
+                return X25519;
+            }
+        }
+        return RSA;
+    }
+}
@@ -0,0 +1,58 @@
+package com.shiva.p2pchat.discovery;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/* How often this node beacons. Every node on a LAN sees about the same
+ membership, so if each waits (members / LAN_BEACONS_PER_SECOND) seconds
+ between beacons, the LAN as a whole carries about LAN_BEACONS_PER_SECOND
+ beacons however many nodes there are. With a fixed interval every node
+ receives every other node's beacon each interval, N squared in total.
+
+ The interval stays within MIN_INTERVAL_MS and MAX_INTERVAL_MS, and is
+ halved for CHURN_WINDOW_MS after a peer joins, leaves or moves, so a
+ changing network settles quickly and a quiet one backs off. Each wait is
+ jittered by up to JITTER either way so nodes that start together do not
+ stay in step. */
+class BeaconSchedule {
+
+    static final long MIN_INTERVAL_MS = 5_000;
+    static final long MAX_INTERVAL_MS = 30_000;
+    private static final double LAN_BEACONS_PER_SECOND = 4;
+    static final long CHURN_WINDOW_MS = 60_000;
+    static final double JITTER = 0.25;
+
+    private final LongSupplier clock;
+    private volatile long lastChange = Long.MIN_VALUE / 2;
+
+    BeaconSchedule() {
+        this(System::currentTimeMillis);
+    }
+
+    BeaconSchedule(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /* A peer joined, left or moved. */
+    void changed() {
+        lastChange = clock.getAsLong();
+    }
+
+    long interval(int peers) {
+        long interval = (long) ((peers + 1) * 1000 / LAN_BEACONS_PER_SECOND);
+        if (clock.getAsLong() - lastChange < CHURN_WINDOW_MS) {
+            interval /= 2;
+        }
+        return Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, interval));
+    }
+
+    static long jittered(long interval) {
+        return jittered(interval, ThreadLocalRandom.current().nextDouble());
+    }
+
+    // random is in [0, 1)
+    static long jittered(long interval, double random) {
+        double factor = 1 - JITTER + 2 * JITTER * random;
+        return (long) (interval * factor);
+    }
+}
@@ -0,0 +1,95 @@
+package com.shiva.p2pchat.discovery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import com.shiva.p2pchat.model.Contact;
+
+/* Recently seen peers on disk, so a restarted node can reach them before
+ their next beacon arrives. Only the MAX_CONTACTS most recently seen are
+ kept, and none older than MAX_AGE_MS.
+
+ File: MAGIC (int), count (int), then per contact
+       username (UTF), ip (UTF), TCP port (unsigned short), last seen (long),
+       key length (unsigned short), public key (X.509 encoding)
+
+ Saves go to a temporary file that then replaces the old one, so a crash
+ mid-save leaves the previous list. A file that cannot be read is ignored. */
+public class ContactStore {
+
+    private static final int MAGIC = 0x50324354; // "P2CT"
+    static final int MAX_CONTACTS = 256;
+    static final long MAX_AGE_MS = 7L * 24 * 60 * 60_000;
+
+    private final Path file;
+
+    public ContactStore(Path file) {
+        this.file = file;
+    }
+
+    /* Most recently seen first. Keys are returned as strings only (getPublicKey is null). */
+    public List<Contact> load() {
+        List<Contact> contacts = new ArrayList<>();
+        long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return contacts;
+            }
+            int count = Math.min(in.readInt(), MAX_CONTACTS);
+            for (int i = 0; i < count; i++) {
+                String username = in.readUTF();
+                String ip = in.readUTF();
+                int port = in.readUnsignedShort();
+                long lastSeen = in.readLong();
+                byte[] key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                if (lastSeen >= oldest) {
+                    contacts.add(new Contact(username, ip, port, null, Base64.getEncoder().encodeToString(key), lastSeen));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // First run
+        } catch (IOException | RuntimeException e) {
+            // Damaged; keep what was read and start over at the next save
+        }
+        contacts.sort(Comparator.comparingLong(Contact::getLastSeen).reversed());
+        return contacts;
+    }
+
+    public void save(Collection<Contact> contacts) throws IOException {
+        List<Contact> recent = new ArrayList<>(contacts);
+        recent.sort(Comparator.comparingLong(Contact::getLastSeen).reversed());
+        if (recent.size() > MAX_CONTACTS) {
+            recent = recent.subList(0, MAX_CONTACTS);
+        }
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(recent.size());
+            for (Contact contact : recent) {
+                byte[] key = Base64.getDecoder().decode(contact.getPublicKeyString());
+                out.writeUTF(contact.getUsername());
+                out.writeUTF(contact.getIpAddress());
+                out.writeShort(contact.getPort());
+                out.writeLong(contact.getLastSeen());
+                out.writeShort(key.length);
+                out.write(key);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,133 @@
+package com.shiva.p2pchat.discovery;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/* Binary discovery datagrams.
+
+ Every packet: MAGIC (short), version, type, flags,
+               TCP port (unsigned short), beacon interval in seconds (unsigned short),
+               username length (byte), username (UTF-8)
+ BEACON then:       fingerprint length (byte), key fingerprint (ASCII hex)
+ KEY_RESPONSE then: key length (unsigned short), public key (X.509 encoding)
+ KEY_REQUEST:       nothing more
+
+ A beacon is about 30 bytes plus the username, and decoding one is a few
+ reads from the receive buffer. */
+public final class DiscoveryPacket {
+
+    static final byte BEACON = 1;
+    static final byte KEY_REQUEST = 2;
+    static final byte KEY_RESPONSE = 3;
+
+    static final byte FLAG_RELAY = 0x01; // Forwards messages for others, see RelayManager
+    static final byte FLAG_REPLY = 0x02; // Keep beaconing to me directly (seeds on other subnets)
+    static final byte FLAG_HELLO = 0x04; // Just started: answer once with a beacon
+    static final byte FLAG_BYE = 0x08;   // Shutting down: forget me now rather than at expiry
+
+    private static final short MAGIC = 0x5044; // "PD"
+    private static final byte VERSION = 1;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int HEADER_LENGTH = 2 + 1 + 1 + 1 + 2 + 2 + 1; // Up to the username
+
+    final byte type;
+    final byte flags;
+    final int port;
+    final int intervalSeconds;
+    final String username;
+    final String fingerprint; // BEACON only
+    final String keyString;   // KEY_RESPONSE only, Base64 as PublicKeyCache takes it
+
+    private DiscoveryPacket(byte type, byte flags, int port, int intervalSeconds, String username,
+                            String fingerprint, String keyString) {
+        this.type = type;
+        this.flags = flags;
+        this.port = port;
+        this.intervalSeconds = intervalSeconds;
+        this.username = username;
+        this.fingerprint = fingerprint;
+        this.keyString = keyString;
+    }
+
+    boolean has(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    public static byte[] beacon(byte flags, int port, int intervalSeconds, String username, String fingerprint) {
+        byte[] fp = fingerprint.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = header(BEACON, flags, port, intervalSeconds, username, 1 + fp.length);
+        buffer.put((byte) fp.length).put(fp);
+        return buffer.array();
+    }
+
+    static byte[] keyRequest(String username) {
+        return header(KEY_REQUEST, (byte) 0, 0, 0, username, 0).array();
+    }
+
+    static byte[] keyResponse(byte flags, int port, int intervalSeconds, String username, byte[] publicKey) {
+        ByteBuffer buffer = header(KEY_RESPONSE, flags, port, intervalSeconds, username, 2 + publicKey.length);
+        buffer.putShort((short) publicKey.length).put(publicKey);
+        return buffer.array();
+    }
+
+    private static ByteBuffer header(byte type, byte flags, int port, int intervalSeconds, String username, int bodyLength) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Username too long for discovery");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + name.length + bodyLength);
+        buffer.putShort(MAGIC).put(VERSION).put(type).put(flags)
+                .putShort((short) port).putShort((short) Math.min(intervalSeconds, 0xFFFF))
+                .put((byte) name.length).put(name);
+        return buffer;
+    }
+
+    /* Returns null for datagrams that are not discovery packets of this
+     version, and for truncated ones or ones whose lengths run past the end:
+     anyone can send to the discovery port, so a bad datagram is routine. */
+    public static DiscoveryPacket decode(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_LENGTH || buffer.getShort() != MAGIC || buffer.get() != VERSION) {
+            return null;
+        }
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        int port = buffer.getShort() & 0xFFFF;
+        int intervalSeconds = buffer.getShort() & 0xFFFF;
+        String username = string(buffer, buffer.get() & 0xFF, StandardCharsets.UTF_8);
+        if (username == null) {
+            return null;
+        }
+        switch (type) {
+            case BEACON:
+                String fingerprint = buffer.hasRemaining() ? string(buffer, buffer.get() & 0xFF, StandardCharsets.US_ASCII) : null;
+                if (fingerprint == null) {
+                    return null;
+                }
+                return new DiscoveryPacket(type, flags, port, intervalSeconds, username, fingerprint, null);
+            case KEY_RESPONSE:
+                if (buffer.remaining() < 2 || (buffer.getShort(buffer.position()) & 0xFFFF) > buffer.remaining() - 2) {
+                    return null;
+                }
+                byte[] key = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(key);
+                return new DiscoveryPacket(type, flags, port, intervalSeconds, username, null,
+                        Base64.getEncoder().encodeToString(key));
+            case KEY_REQUEST:
+                return new DiscoveryPacket(type, flags, port, intervalSeconds, username, null, null);
+            default:
+                return null;
+        }
+    }
+
+    // Null if the string runs past the end of the buffer.
+    private static String string(ByteBuffer buffer, int length, Charset charset) {
+        if (length > buffer.remaining()) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, charset);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
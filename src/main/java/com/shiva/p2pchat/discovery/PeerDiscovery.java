@@ -1,68 +1,279 @@
 package com.shiva.p2pchat.discovery;
 
-import java.lang.reflect.Type;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
-import java.net.SocketException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.shiva.p2pchat.core.ThreadMode;
 import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Contact;
+import com.shiva.p2pchat.ui.ConsoleRenderer;
 import com.shiva.p2pchat.ui.UI;
 
 public class PeerDiscovery implements Runnable {
 
+    /* Beacons are small binary packets (DiscoveryPacket) carrying only a key
+     fingerprint; the full key is fetched once with a unicast request. Beacons
+     go out from each node's own exchange channel, and key requests and
+     replies travel between exchange channels, so several nodes on one host
+     can share the discovery port (bound with SO_REUSEADDR) and still get
+     their unicast replies.
+
+     Beacons go to the MULTICAST_GROUP on every up interface that supports
+     multicast (to the broadcast addresses where none does), at an interval
+     BeaconSchedule adapts to the size of the network and how much it is
+     changing. Each beacon states that interval, and a peer expires after
+     EXPIRY_BEACONS of its own intervals without one. A node's first beacon
+     says hello, and everyone who hears it answers with one unicast beacon,
+     so a newcomer learns the network at once however long the interval; its
+     last says goodbye, so it leaves at once too.
+
+     Beacons also go straight to each seed: the discovery address of a node on
+     another subnet. A beacon sent to a seed asks for beacons back ("reply"),
+     so the seed and this node see each other as if they shared a LAN for as
+     long as this node keeps beaconing.
+
+     Peers seen recently are remembered in the contact file (ContactStore).
+     At startup they are listed as online straight away, marked unconfirmed,
+     so they can be messaged before their first beacon arrives; each is sent
+     a hello until it answers or expires like any other silent peer. */
+    static final String MULTICAST_GROUP = "239.255.80.67"; // Organization-local scope
+    private static final long KEY_REQUEST_RETRY_MS = 2000;
+    private static final long KEY_RESPONSE_SPACING_MS = 125; // Per requesting address, after a burst
+    private static final int KEY_RESPONSE_BURST = 8;          // Several nodes may share one address
+    private static final int MAX_KEY_REQUESTERS = 1024;
+    private static final int EXPIRY_BEACONS = 4;
+    private static final long CONTACT_SAVE_INTERVAL_MS = 60_000;
+    private static final int RECEIVE_BUFFER_SIZE = 2048;
+
     private final String username;
     private final int tcpPort;
     private final String publicKeyStr;
+    private final byte[] publicKeyBytes;
+    private final String publicKeyFingerprint;
     private final int discoveryPort;
-    private final Map<String, DiscoveredPeer> onlinePeers = new ConcurrentHashMap<>();
-    private final Gson gson = new Gson();
+    private final ThreadMode threadMode;
+    private final boolean relay;
+    private final List<InetSocketAddress> seeds;
+    private final Map<SocketAddress, Long> replyTargets = new ConcurrentHashMap<>(); // To when they asked for
+    private final PeerRegistry onlinePeers;
+    private final ConsoleRenderer console; // Null without a node: messages then go straight to the terminal
+    private final PublicKeyCache keyCache = new PublicKeyCache();
+    private final Map<String, Long> pendingKeyRequests = new ConcurrentHashMap<>();
+    private final Map<InetAddress, Long> keyRequesterBusyUntil = new ConcurrentHashMap<>();
+    private final BeaconSchedule schedule = new BeaconSchedule();
+    private final ContactStore contacts; // Null when nothing is remembered between runs
+    private final Map<String, Contact> remembered = new ConcurrentHashMap<>();
+    private long contactsSavedAt = System.currentTimeMillis();
+    private volatile long intervalMs = BeaconSchedule.MIN_INTERVAL_MS; // Advertised in every packet
     private volatile boolean running = true;
+    private DatagramChannel listenerChannel;
+    private DatagramChannel exchangeChannel;
+    private final List<NetworkInterface> multicastInterfaces = new ArrayList<>();
+    private List<InetAddress> broadcastAddresses = Collections.emptyList(); // Only without multicast
+    private InetSocketAddress groupAddress;
 
     public static class DiscoveredPeer {
         public String ip;
         public int port;
         public PublicKey publicKey;
-        public long lastSeen;
+        public String fingerprint;
+        public boolean relay; // Forwards messages for others, see RelayManager
+        public volatile boolean unconfirmed; // From the contact file, not heard from since startup
+        public volatile long lastSeen;
+        public volatile long expiryMs = PeerRegistry.DEFAULT_EXPIRY_MS; // Silence after which it is gone
 
         public DiscoveredPeer(String ip, int port, PublicKey publicKey) {
+            this(ip, port, publicKey, null);
+        }
+
+        public DiscoveredPeer(String ip, int port, PublicKey publicKey, String fingerprint) {
+            this(ip, port, publicKey, fingerprint, false);
+        }
+
+        public DiscoveredPeer(String ip, int port, PublicKey publicKey, String fingerprint, boolean relay) {
             this.ip = ip;
             this.port = port;
             this.publicKey = publicKey;
+            this.fingerprint = fingerprint;
+            this.relay = relay;
             this.lastSeen = System.currentTimeMillis();
         }
+
+        boolean matches(String ip, int port, String fingerprint, boolean relay) {
+            return this.port == port && this.ip.equals(ip) && Objects.equals(this.fingerprint, fingerprint)
+                    && this.relay == relay;
+        }
+
+        public String getId() {
+            return ip + ":" + port;
+        }
     }
 
     public PeerDiscovery(String username, int tcpPort, int discoveryPort, String publicKeyStr) {
+        this(username, tcpPort, discoveryPort, publicKeyStr, ThreadMode.PLATFORM);
+    }
+
+    public PeerDiscovery(String username, int tcpPort, int discoveryPort, String publicKeyStr, ThreadMode threadMode) {
+        this(username, tcpPort, discoveryPort, publicKeyStr, threadMode, false, Collections.emptyList());
+    }
+
+    public PeerDiscovery(String username, int tcpPort, int discoveryPort, String publicKeyStr, ThreadMode threadMode,
+                         boolean relay, List<InetSocketAddress> seeds) {
+        this(username, tcpPort, discoveryPort, publicKeyStr, threadMode, relay, seeds, null, null);
+    }
+
+    /* contactFile may be null to start cold and remember nothing. console is
+     where discovery reports problems, so they do not land in the middle of
+     the user's prompt. */
+    public PeerDiscovery(String username, int tcpPort, int discoveryPort, String publicKeyStr, ThreadMode threadMode,
+                         boolean relay, List<InetSocketAddress> seeds, Path contactFile, ConsoleRenderer console) {
         this.username = username;
+        this.console = console;
+        this.onlinePeers = new PeerRegistry(this::error);
+        this.contacts = contactFile == null ? null : new ContactStore(contactFile);
+        this.relay = relay;
+        this.seeds = seeds;
         this.tcpPort = tcpPort;
         this.discoveryPort = discoveryPort;
         this.publicKeyStr = publicKeyStr;
+        this.threadMode = threadMode;
+        try {
+            this.publicKeyFingerprint = keyCache.add(publicKeyStr);
+            this.publicKeyBytes = Base64.getDecoder().decode(publicKeyStr);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid public key", e);
+        }
+        onlinePeers.addListener(new PeerListener() {
+            @Override
+            public void peerJoined(String username, DiscoveredPeer peer) { schedule.changed(); }
+
+            @Override
+            public void peerLeft(String username, DiscoveredPeer peer) { schedule.changed(); }
+
+            @Override
+            public void peerChanged(String username, DiscoveredPeer previous, DiscoveredPeer current) { schedule.changed(); }
+        });
     }
 
     @Override
     public void run() {
-        Thread listenerThread = new Thread(this::listenForPeers);
-        Thread broadcastThread = new Thread(this::broadcastPresence);
-
-        listenerThread.setDaemon(true);
-        broadcastThread.setDaemon(true);
+        try {
+            groupAddress = new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), discoveryPort);
+            exchangeChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            exchangeChannel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            exchangeChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+            exchangeChannel.bind(null);
+            listenerChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            listenerChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            listenerChannel.bind(new InetSocketAddress(discoveryPort));
+            joinMulticastGroup();
+        } catch (IOException e) {
+            error("Discovery failed: " + e.getMessage());
+            return;
+        }
+        loadContacts();
+        Thread listenerThread = threadMode.newThread("discovery-listener", () -> receive(listenerChannel));
+        Thread exchangeThread = threadMode.newThread("discovery-keys", () -> receive(exchangeChannel));
+        Thread broadcastThread = threadMode.newThread("discovery-broadcaster", this::broadcastPresence);
 
         listenerThread.start();
+        exchangeThread.start();
         broadcastThread.start();
     }
 
-    private InetAddress findBroadcastAddress() throws SocketException {
+    // Every interface that can, so nodes with several networks are seen on all of them.
+    private void joinMulticastGroup() throws IOException {
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (networkInterface.isLoopback() || !networkInterface.isUp() || !networkInterface.supportsMulticast()
+                    || !hasIpv4Address(networkInterface)) {
+                continue;
+            }
+            try {
+                listenerChannel.join(groupAddress.getAddress(), networkInterface);
+                multicastInterfaces.add(networkInterface);
+            } catch (IOException e) {
+                // Not usable for multicast after all; the others still are.
+            }
+        }
+    }
+
+    private static boolean hasIpv4Address(NetworkInterface networkInterface) {
+        for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+            if (address.getAddress().getAddress().length == 4) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void loadContacts() {
+        if (contacts == null) {
+            return;
+        }
+        byte[] probe = beacon(DiscoveryPacket.FLAG_HELLO);
+        for (Contact contact : contacts.load()) {
+            remembered.put(contact.getUsername(), contact);
+            if (contact.getUsername().equals(username) || onlinePeers.get(contact.getUsername()) != null) {
+                continue;
+            }
+            try {
+                String fingerprint = keyCache.add(contact.getPublicKeyString());
+                DiscoveredPeer peer = new DiscoveredPeer(contact.getIpAddress(), contact.getPort(), keyCache.get(fingerprint), fingerprint);
+                peer.unconfirmed = true;
+                onlinePeers.put(contact.getUsername(), peer);
+                send(probe, new InetSocketAddress(contact.getIpAddress(), discoveryPort));
+            } catch (Exception e) {
+                // Unreadable key; the peer's next beacon will do
+            }
+        }
+    }
+
+    /* Remembers every confirmed peer, with when it was last heard from. */
+    private synchronized void saveContacts() {
+        if (contacts == null) {
+            return;
+        }
+        getOnlinePeers().forEach((name, peer) -> {
+            if (!peer.unconfirmed) {
+                remembered.put(name, new Contact(name, peer.ip, peer.port, peer.publicKey,
+                        CryptoUtils.keyToString(peer.publicKey), peer.lastSeen));
+            }
+        });
+        try {
+            contacts.save(remembered.values());
+        } catch (IOException e) {
+            error("Could not save contacts: " + e.getMessage());
+        }
+        contactsSavedAt = System.currentTimeMillis();
+    }
+
+    // Used only where no interface takes multicast.
+    private List<InetAddress> findBroadcastAddresses() throws IOException {
+        List<InetAddress> addresses = new ArrayList<>();
         Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
         while (interfaces.hasMoreElements()) {
             NetworkInterface networkInterface = interfaces.nextElement();
@@ -72,95 +283,286 @@ public class PeerDiscovery implements Runnable {
 
             for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
                 InetAddress broadcast = interfaceAddress.getBroadcast();
-                if (broadcast != null) {
-                    return broadcast; 
+                if (broadcast != null && !addresses.contains(broadcast)) {
+                    addresses.add(broadcast);
                 }
             }
         }
-        try {
-            return InetAddress.getByName("255.255.255.255");
-        } catch (UnknownHostException e) {
-            return null; 
+        if (addresses.isEmpty()) {
+            try {
+                addresses.add(InetAddress.getByName("255.255.255.255"));
+            } catch (UnknownHostException e) {
+            }
         }
+        return addresses;
     }
 
-
     private void broadcastPresence() {
-        try (DatagramSocket broadcastSocket = new DatagramSocket()) {
-            broadcastSocket.setBroadcast(true);
-
-            InetAddress broadcastAddress = findBroadcastAddress();
-            if (broadcastAddress == null) {
-                UI.printError("Could not find broadcast address. Discovery may fail.");
-                return;
+        try {
+            if (multicastInterfaces.isEmpty()) {
+                broadcastAddresses = findBroadcastAddresses();
             }
-            UI.printSystem("Broadcasting to: " + broadcastAddress.getHostAddress());
-
-
-            Map<String, String> broadcastData = new HashMap<>();
-            broadcastData.put("username", username);
-            broadcastData.put("port", String.valueOf(tcpPort));
-            broadcastData.put("publicKey", publicKeyStr);
-            String message = gson.toJson(broadcastData);
-            byte[] sendData = message.getBytes();
+            List<String> targets = new ArrayList<>();
+            multicastInterfaces.forEach(networkInterface -> targets.add(MULTICAST_GROUP + " on " + networkInterface.getName()));
+            broadcastAddresses.forEach(address -> targets.add(address.getHostAddress()));
+            seeds.forEach(seed -> targets.add(seed.getHostString() + ":" + seed.getPort() + " (seed)"));
+            system("Broadcasting to: " + String.join(", ", targets));
 
+            byte flags = DiscoveryPacket.FLAG_HELLO;
             while (running) {
+                intervalMs = schedule.interval(onlinePeers.snapshot().size());
+                byte[] beacon = beacon(flags);
+                for (NetworkInterface networkInterface : multicastInterfaces) {
+                    multicast(beacon, networkInterface);
+                }
+                for (InetAddress broadcastAddress : broadcastAddresses) {
+                    send(beacon, new InetSocketAddress(broadcastAddress, discoveryPort));
+                }
+                sendDirect();
+                flags = 0;
+
+                if (System.currentTimeMillis() - contactsSavedAt > CONTACT_SAVE_INTERVAL_MS) {
+                    saveContacts();
+                }
                 try {
-                    DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, broadcastAddress, discoveryPort);
-                    broadcastSocket.send(sendPacket);
-                    Thread.sleep(5000); // Broadcast every 5 seconds
-                } catch (Exception e) {
+                    Thread.sleep(BeaconSchedule.jittered(intervalMs));
+                } catch (InterruptedException e) {
+                    return;
                 }
             }
         } catch (Exception e) {
-            UI.printError("Broadcast service failed: " + e.getMessage());
+            error("Broadcast service failed: " + e.getMessage());
         }
     }
 
-    private void listenForPeers() {
-        try (DatagramSocket listenerSocket = new DatagramSocket(discoveryPort)) {
-            byte[] recvBuf = new byte[2048]; 
+    // Unicast beacons: to seeds, to peers from the contact file, and to whoever asked for them.
+    private void sendDirect() {
+        byte[] seedBeacon = beacon(DiscoveryPacket.FLAG_REPLY);
+        for (InetSocketAddress seed : seeds) {
+            send(seedBeacon, seed);
+        }
+        byte[] probe = beacon(DiscoveryPacket.FLAG_HELLO);
+        for (DiscoveredPeer peer : getOnlinePeers().values()) {
+            if (peer.unconfirmed) {
+                send(probe, new InetSocketAddress(peer.ip, discoveryPort));
+            }
+        }
+        byte[] beacon = beacon((byte) 0);
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<SocketAddress, Long>> it = replyTargets.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<SocketAddress, Long> target = it.next();
+            if (now > target.getValue()) {
+                it.remove();
+            } else {
+                send(beacon, target.getKey());
+            }
+        }
+    }
 
-            while (running) {
-                try {
-                    DatagramPacket receivePacket = new DatagramPacket(recvBuf, recvBuf.length);
-                    listenerSocket.receive(receivePacket);
-
-                    String jsonMessage = new String(receivePacket.getData(), 0, receivePacket.getLength());
-                    Type type = new TypeToken<Map<String, String>>() {}.getType();
-                    Map<String, String> receivedData = gson.fromJson(jsonMessage, type);
-
-                    String peerUsername = receivedData.get("username");
-                    if (peerUsername != null && !peerUsername.equals(username)) {
-                        int peerPort = Integer.parseInt(receivedData.get("port"));
-                        String peerIp = receivePacket.getAddress().getHostAddress();
-                        PublicKey peerPublicKey = CryptoUtils.stringToPublicKey(receivedData.get("publicKey"));
-
-                        if (!onlinePeers.containsKey(peerUsername)) {
-                            System.out.println(UI.YELLOW + "\n[SYSTEM] " + peerUsername + " joined the network." + UI.RESET);
-                        }
-                        onlinePeers.put(peerUsername, new DiscoveredPeer(peerIp, peerPort, peerPublicKey));
-                    }
-                } catch (Exception e) {
-                }
+    private byte[] beacon(byte flags) {
+        if (relay) {
+            flags |= DiscoveryPacket.FLAG_RELAY;
+        }
+        return DiscoveryPacket.beacon(flags, tcpPort, intervalSeconds(), username, publicKeyFingerprint);
+    }
+
+    private int intervalSeconds() {
+        return (int) ((intervalMs + 999) / 1000);
+    }
+
+    private void multicast(byte[] data, NetworkInterface networkInterface) {
+        try {
+            synchronized (exchangeChannel) {
+                exchangeChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+                exchangeChannel.send(ByteBuffer.wrap(data), groupAddress);
             }
         } catch (Exception e) {
-            UI.printError("Discovery listener failed: " + e.getMessage());
         }
     }
 
-    public Map<String, DiscoveredPeer> getOnlinePeers() {
+    // One unreachable target must not stop the others.
+    private void send(byte[] data, SocketAddress target) {
+        try {
+            exchangeChannel.send(ByteBuffer.wrap(data), target);
+        } catch (Exception e) {
+        }
+    }
+
+    private void receive(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        while (running && channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress source = channel.receive(buffer);
+                buffer.flip();
+                handlePacket(buffer, (InetSocketAddress) source);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (Exception e) {
+                if (running) Metrics.DISCOVERY_DROPPED.increment(); // Malformed packet
+            }
+        }
+    }
+
+    private void handlePacket(ByteBuffer buffer, InetSocketAddress source) throws Exception {
+        DiscoveryPacket packet = DiscoveryPacket.decode(buffer);
+        if (packet == null) {
+            Metrics.DISCOVERY_DROPPED.increment();
+            return;
+        }
+        Metrics.DISCOVERY_PARSED.increment();
+
+        String peerUsername = packet.username;
+        if (peerUsername.equals(username)) {
+            return; // Our own multicast, looped back
+        }
+        if (packet.type == DiscoveryPacket.KEY_REQUEST) {
+            sendKey(source);
+            return;
+        }
+
+        String peerIp = source.getAddress().getHostAddress();
+        DiscoveredPeer knownPeer = onlinePeers.get(peerUsername);
+        if (packet.has(DiscoveryPacket.FLAG_BYE)) {
+            replyTargets.remove(source);
+            if (knownPeer != null && knownPeer.ip.equals(peerIp) && knownPeer.port == packet.port) {
+                onlinePeers.remove(peerUsername, knownPeer);
+            }
+            return;
+        }
+
+        long expiryMs = Math.max(PeerRegistry.DEFAULT_EXPIRY_MS, EXPIRY_BEACONS * packet.intervalSeconds * 1000L);
+        if (packet.has(DiscoveryPacket.FLAG_REPLY)) {
+            if (replyTargets.put(source, System.currentTimeMillis() + expiryMs) == null) {
+                send(beacon((byte) 0), source); // Answer a new seed now rather than at the next beacon.
+            }
+        } else if (packet.has(DiscoveryPacket.FLAG_HELLO)) {
+            send(beacon((byte) 0), source);
+        }
+
+        // Key responses carry the full key instead of a fingerprint.
+        String fingerprint = packet.keyString != null ? keyCache.add(packet.keyString) : packet.fingerprint;
+        boolean peerRelay = packet.has(DiscoveryPacket.FLAG_RELAY);
+        if (knownPeer != null && knownPeer.matches(peerIp, packet.port, fingerprint, peerRelay)) {
+            knownPeer.lastSeen = System.currentTimeMillis(); // Nothing changed
+            knownPeer.expiryMs = expiryMs;
+            knownPeer.unconfirmed = false;
+            return;
+        }
+
+        PublicKey peerPublicKey = keyCache.get(fingerprint);
+        if (peerPublicKey == null) {
+            requestKey(source, fingerprint);
+            return;
+        }
+        pendingKeyRequests.remove(fingerprint);
+        DiscoveredPeer peer = new DiscoveredPeer(peerIp, packet.port, peerPublicKey, fingerprint, peerRelay);
+        peer.expiryMs = expiryMs;
+        onlinePeers.put(peerUsername, peer);
+    }
+
+    // Sent to the channel the beacon came from, which is where the peer listens for key requests.
+    private void requestKey(SocketAddress peer, String fingerprint) throws IOException {
         long now = System.currentTimeMillis();
-        onlinePeers.entrySet().removeIf(entry -> (now - entry.getValue().lastSeen) > 15000);
-        return new ConcurrentHashMap<>(onlinePeers);
+        Long requestedAt = pendingKeyRequests.get(fingerprint);
+        if (requestedAt != null && now - requestedAt < KEY_REQUEST_RETRY_MS) {
+            return;
+        }
+        pendingKeyRequests.put(fingerprint, now);
+        // Sent from the exchange channel so the reply comes back to this node, not another one sharing the port.
+        exchangeChannel.send(ByteBuffer.wrap(DiscoveryPacket.keyRequest(username)), peer);
+    }
+
+    /* A key response is many times the size of the request, and the source
+     of a datagram is whatever its sender wrote, so answering every request
+     would let a stream of spoofed ones aim this node's keys at someone else.
+     Each address gets a burst of KEY_RESPONSE_BURST responses and then one
+     per KEY_RESPONSE_SPACING_MS; a real requester asks again only after
+     KEY_REQUEST_RETRY_MS, so it never notices. */
+    private void sendKey(InetSocketAddress requester) throws IOException {
+        if (!keyResponseAllowed(requester.getAddress())) {
+            Metrics.DISCOVERY_DROPPED.increment();
+            return;
+        }
+        byte flags = relay ? DiscoveryPacket.FLAG_RELAY : 0;
+        byte[] data = DiscoveryPacket.keyResponse(flags, tcpPort, intervalSeconds(), username, publicKeyBytes);
+        exchangeChannel.send(ByteBuffer.wrap(data), requester);
+    }
+
+    // The stored time is when the address's budget is back to full; a spent burst puts it a burst ahead of now.
+    private boolean keyResponseAllowed(InetAddress address) {
+        long now = System.currentTimeMillis();
+        if (keyRequesterBusyUntil.size() >= MAX_KEY_REQUESTERS) {
+            keyRequesterBusyUntil.values().removeIf(busyUntil -> busyUntil <= now);
+            if (keyRequesterBusyUntil.size() >= MAX_KEY_REQUESTERS && !keyRequesterBusyUntil.containsKey(address)) {
+                return false;
+            }
+        }
+        boolean[] allowed = new boolean[1];
+        keyRequesterBusyUntil.compute(address, (key, busyUntil) -> {
+            long from = busyUntil == null ? now : Math.max(now, busyUntil);
+            if (from - now >= KEY_RESPONSE_BURST * KEY_RESPONSE_SPACING_MS) {
+                return busyUntil;
+            }
+            allowed[0] = true;
+            return from + KEY_RESPONSE_SPACING_MS;
+        });
+        return allowed[0];
+    }
+
+    private void system(String message) {
+        if (console != null) {
+            console.system(message);
+        } else {
+            UI.printSystem(message);
+        }
+    }
+
+    private void error(String message) {
+        if (console != null) {
+            console.error(message);
+        } else {
+            UI.printError(message);
+        }
+    }
+
+    public void addPeerListener(PeerListener listener) {
+        onlinePeers.addListener(listener);
+    }
+
+    public void removePeerListener(PeerListener listener) {
+        onlinePeers.removeListener(listener);
+    }
+
+    /* Immutable snapshot; cheap to call repeatedly while nobody joins or leaves. */
+    public Map<String, DiscoveredPeer> getOnlinePeers() {
+        return onlinePeers.snapshot();
     }
 
     public DiscoveredPeer getPeer(String username) {
-        return getOnlinePeers().get(username);
+        return onlinePeers.get(username);
     }
 
     public void stop() {
         this.running = false;
+        saveContacts();
+        if (exchangeChannel != null) {
+            byte[] bye = beacon(DiscoveryPacket.FLAG_BYE);
+            for (NetworkInterface networkInterface : multicastInterfaces) {
+                multicast(bye, networkInterface);
+            }
+            broadcastAddresses.forEach(address -> send(bye, new InetSocketAddress(address, discoveryPort)));
+            replyTargets.keySet().forEach(target -> send(bye, target));
+            closeQuietly(exchangeChannel);
+        }
+        if (listenerChannel != null) closeQuietly(listenerChannel);
+        onlinePeers.close();
     }
-}
 
+    private static void closeQuietly(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
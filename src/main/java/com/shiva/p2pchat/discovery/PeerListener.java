@@ -0,0 +1,17 @@
+package com.shiva.p2pchat.discovery;
+
+/* Presence events from discovery. Called on discovery threads, so
+ implementations should return quickly and must be thread-safe. */
+public interface PeerListener {
+
+    default void peerJoined(String username, PeerDiscovery.DiscoveredPeer peer) {
+    }
+
+    /* The peer stopped sending beacons and has expired. */
+    default void peerLeft(String username, PeerDiscovery.DiscoveredPeer peer) {
+    }
+
+    /* The peer is now seen at a different address or with a different public key. */
+    default void peerChanged(String username, PeerDiscovery.DiscoveredPeer previous, PeerDiscovery.DiscoveredPeer current) {
+    }
+}
@@ -0,0 +1,130 @@
+package com.shiva.p2pchat.discovery;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.shiva.p2pchat.ui.UI;
+
+/* Online peers by username. Lookups are a single map read; stale entries are
+ dropped by a background sweep rather than on every read, and listings share
+ one immutable snapshot that is only rebuilt after the membership changes.
+ Joins, departures and changes are reported to registered PeerListeners.
+ Each peer expires after its own expiryMs, which discovery scales with the
+ interval the peer says it beacons at. */
+public class PeerRegistry {
+
+    static final long DEFAULT_EXPIRY_MS = 15_000;
+    private static final long SWEEP_INTERVAL_MS = 1_000;
+
+    private final Map<String, PeerDiscovery.DiscoveredPeer> peers = new ConcurrentHashMap<>();
+    private volatile Map<String, PeerDiscovery.DiscoveredPeer> snapshot = Collections.emptyMap();
+    private volatile boolean snapshotStale = false;
+    private final List<PeerListener> listeners = new CopyOnWriteArrayList<>();
+    private final Consumer<String> errors;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "peer-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PeerRegistry() {
+        this(UI::printError);
+    }
+
+    /* errors receives failures of listeners, which run on the sweeper thread or a discovery thread. */
+    public PeerRegistry(Consumer<String> errors) {
+        this.errors = errors;
+        sweeper.scheduleWithFixedDelay(this::expireStalePeers, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /* Returns the peer, or null if it is unknown or has gone quiet since the last sweep. */
+    public PeerDiscovery.DiscoveredPeer get(String username) {
+        PeerDiscovery.DiscoveredPeer peer = peers.get(username);
+        if (peer == null || isExpired(peer, System.currentTimeMillis())) {
+            return null;
+        }
+        return peer;
+    }
+
+    public void addListener(PeerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(PeerListener listener) {
+        listeners.remove(listener);
+    }
+
+    /* Adds or replaces a peer and returns the entry it replaced, if any. */
+    public PeerDiscovery.DiscoveredPeer put(String username, PeerDiscovery.DiscoveredPeer peer) {
+        PeerDiscovery.DiscoveredPeer previous = peers.put(username, peer);
+        snapshotStale = true;
+        if (previous == null) {
+            fire(listener -> listener.peerJoined(username, peer));
+        } else if (isExpired(previous, System.currentTimeMillis())) {
+            // Came back before the sweep noticed it was gone.
+            fire(listener -> listener.peerLeft(username, previous));
+            fire(listener -> listener.peerJoined(username, peer));
+        } else {
+            fire(listener -> listener.peerChanged(username, previous, peer));
+        }
+        return previous;
+    }
+
+    /* Removes the peer if it is still the given entry, as when it says goodbye. */
+    public void remove(String username, PeerDiscovery.DiscoveredPeer peer) {
+        if (peers.remove(username, peer)) {
+            snapshotStale = true;
+            fire(listener -> listener.peerLeft(username, peer));
+        }
+    }
+
+    /* Immutable view of the current peers. Entries are live objects, so
+     lastSeen stays current without a rebuild. */
+    public Map<String, PeerDiscovery.DiscoveredPeer> snapshot() {
+        if (snapshotStale) {
+            synchronized (this) {
+                if (snapshotStale) {
+                    snapshotStale = false;
+                    snapshot = Collections.unmodifiableMap(new HashMap<>(peers));
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void expireStalePeers() {
+        long now = System.currentTimeMillis();
+        peers.forEach((username, peer) -> {
+            if (isExpired(peer, now) && peers.remove(username, peer)) {
+                snapshotStale = true;
+                fire(listener -> listener.peerLeft(username, peer));
+            }
+        });
+    }
+
+    private void fire(Consumer<PeerListener> event) {
+        for (PeerListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                errors.accept("Peer listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isExpired(PeerDiscovery.DiscoveredPeer peer, long now) {
+        return now - peer.lastSeen > peer.expiryMs;
+    }
+
+    public void close() {
+        sweeper.shutdownNow();
+    }
+}
@@ -0,0 +1,38 @@
+package com.shiva.p2pchat.discovery;
+
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+
+/* Decoded peer public keys keyed by fingerprint, so a key is only run
+ through KeyFactory the first time it is seen. Least recently used
+ entries are dropped once the cache is full. */
+public class PublicKeyCache {
+
+    private static final int MAX_ENTRIES = 4096;
+
+    private final Map<String, PublicKey> keys = Collections.synchronizedMap(
+            new LinkedHashMap<String, PublicKey>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PublicKey> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            });
+
+    public PublicKey get(String fingerprint) {
+        return keys.get(fingerprint);
+    }
+
+    /* Returns the fingerprint of the Base64 key, decoding and caching it if new. */
+    public String add(String keyString) throws Exception {
+        String fingerprint = CryptoUtils.fingerprint(Base64.getDecoder().decode(keyString));
+        if (!keys.containsKey(fingerprint)) {
+            keys.put(fingerprint, CryptoUtils.stringToPublicKey(keyString));
+        }
+        return fingerprint;
+    }
+}
@@ -0,0 +1,32 @@
+package com.shiva.p2pchat.group;
+
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+/* A group conversation: every member holds the same AES key. */
+public class Group {
+
+    private final String id;
+    final byte[] rawId;
+    private final String name;
+    private final List<String> members;
+    final SecretKey key;
+
+    Group(byte[] rawId, String name, List<String> members, SecretKey key) {
+        this.id = GroupManager.hex(rawId);
+        this.rawId = rawId;
+        this.name = name;
+        this.members = List.copyOf(members);
+        this.key = key;
+    }
+
+    public String getId() { return id; } // Hex
+    public String getName() { return name; }
+
+    /* Every member, this node included. */
+    public List<String> getMembers() { return members; }
+
+    /* The conversation name group messages are stored under. */
+    public String getConversation() { return "#" + name; }
+}
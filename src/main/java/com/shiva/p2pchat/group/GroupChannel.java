@@ -0,0 +1,11 @@
+package com.shiva.p2pchat.group;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.shiva.p2pchat.model.Message;
+
+/* How groups reach a member: the node's outbound message path. */
+public interface GroupChannel {
+
+    CompletableFuture<Void> send(String username, Message.MessageType type, byte[] content);
+}
@@ -0,0 +1,234 @@
+package com.shiva.p2pchat.group;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.crypto.SecretKey;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Message;
+
+/* Group conversations with one shared AES key per group.
+
+ The creator wraps the group key once for each member with that member's RSA
+ public key and sends it in a GROUP_INVITE. After that a group message is
+ sealed once with the group key and the same bytes are queued to every
+ member, so each member gets them in parallel over its own connection. The
+ per-connection session encryption is skipped for GROUP_CHAT; sending to a
+ group costs one encryption, however many members it has.
+
+ GROUP_INVITE  group id (16 bytes), wrapped key length (unsigned short),
+               RSA-wrapped group key, name (modified UTF-8), member count
+               (unsigned short), members (modified UTF-8 each)
+ GROUP_CHAT    group id (16 bytes), then AES-GCM under the group key of:
+               sender (modified UTF-8), text (UTF-8, rest)
+
+ The sender is taken from inside the sealed part, not from the frame. Groups
+ last until the node stops. */
+public class GroupManager {
+
+    private static final int ID_LENGTH = 16;
+    private static final String NAME_PATTERN = "[\\w.-]+";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String localUsername;
+    private final GroupChannel channel;
+    private final Function<String, PublicKey> publicKeys;
+    private final PrivateKey privateKey;
+    private final Map<String, Group> groupsById = new ConcurrentHashMap<>();
+    private final Map<String, Group> groupsByName = new ConcurrentHashMap<>();
+
+    /* publicKeys returns a user's current public key, or null if they are not online. */
+    public GroupManager(String localUsername, GroupChannel channel, Function<String, PublicKey> publicKeys, PrivateKey privateKey) {
+        this.localUsername = localUsername;
+        this.channel = channel;
+        this.publicKeys = publicKeys;
+        this.privateKey = privateKey;
+    }
+
+    /* A decrypted group message. */
+    public static class GroupMessage {
+        private final Group group;
+        private final String sender;
+        private final String text;
+
+        GroupMessage(Group group, String sender, String text) {
+            this.group = group;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        public Group getGroup() { return group; }
+        public String getSender() { return sender; }
+        public String getText() { return text; }
+    }
+
+    /* Creates a group of this node and the given users and invites them. The
+     future completes once every invite is written, or fails if any is not. */
+    public CompletableFuture<Void> create(String name, Collection<String> users) throws Exception {
+        if (!name.matches(NAME_PATTERN)) {
+            throw new IllegalArgumentException("Group names may use letters, digits, '.', '-' and '_'.");
+        }
+        if (groupsByName.containsKey(name)) {
+            throw new IllegalArgumentException("Group '" + name + "' already exists.");
+        }
+        Set<String> members = new LinkedHashSet<>();
+        members.add(localUsername);
+        members.addAll(users);
+        if (members.size() < 2) {
+            throw new IllegalArgumentException("A group needs at least one other member.");
+        }
+        Map<String, PublicKey> keys = new LinkedHashMap<>();
+        for (String member : members) {
+            if (member.equals(localUsername)) {
+                continue;
+            }
+            PublicKey key = publicKeys.apply(member);
+            if (key == null) {
+                throw new IllegalArgumentException("User '" + member + "' is not online or discoverable.");
+            }
+            keys.put(member, key);
+        }
+
+        byte[] id = new byte[ID_LENGTH];
+        RANDOM.nextBytes(id);
+        Group group = new Group(id, name, new ArrayList<>(members), CryptoUtils.generateSessionKey());
+        if (groupsByName.putIfAbsent(name, group) != null) {
+            throw new IllegalArgumentException("Group '" + name + "' already exists.");
+        }
+        groupsById.put(group.getId(), group);
+
+        List<CompletableFuture<Void>> invites = new ArrayList<>();
+        for (Map.Entry<String, PublicKey> member : keys.entrySet()) {
+            byte[] invite = encodeInvite(id, CryptoUtils.wrapSessionKey(group.key, member.getValue()), group);
+            invites.add(channel.send(member.getKey(), Message.MessageType.GROUP_INVITE, invite));
+        }
+        return CompletableFuture.allOf(invites.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /* Joins the group described by a decrypted GROUP_INVITE and returns it. */
+    public Group join(String sender, byte[] content) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        byte[] id = new byte[ID_LENGTH];
+        in.readFully(id);
+        byte[] wrappedKey = new byte[in.readUnsignedShort()];
+        in.readFully(wrappedKey);
+        String name = in.readUTF();
+        int count = in.readUnsignedShort();
+        List<String> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            members.add(in.readUTF());
+        }
+        if (!members.contains(sender) || !members.contains(localUsername)) {
+            throw new IOException("Invite to '" + name + "' does not list its sender and this node");
+        }
+
+        Group existing = groupsById.get(hex(id));
+        if (existing != null) {
+            return existing; // A repeated invite
+        }
+        SecretKey key = CryptoUtils.unwrapSessionKey(wrappedKey, privateKey);
+        String localName = name.matches(NAME_PATTERN) ? name : "group";
+        // Names are chosen by each creator, so two groups can arrive with the same one.
+        Group group = new Group(id, localName, members, key);
+        if (groupsByName.putIfAbsent(localName, group) != null) {
+            group = new Group(id, localName + "-" + group.getId().substring(0, 8), members, key);
+            groupsByName.put(group.getName(), group);
+        }
+        groupsById.put(group.getId(), group);
+        return group;
+    }
+
+    /* Seals the text once and queues it to every other member. The future
+     fails if any member could not be reached; the rest still get it. */
+    public CompletableFuture<Void> send(String name, String text) throws Exception {
+        Group group = groupsByName.get(name);
+        if (group == null) {
+            throw new IllegalArgumentException("No group named '" + name + "'.");
+        }
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(plain);
+        out.writeUTF(localUsername);
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+
+        long encryptStart = System.nanoTime();
+        byte[] sealed = CryptoUtils.encryptSession(plain.toByteArray(), group.key);
+        Metrics.ENCRYPT_NANOS.recordSince(encryptStart);
+        byte[] content = ByteBuffer.allocate(ID_LENGTH + sealed.length).put(group.rawId).put(sealed).array();
+
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (String member : group.getMembers()) {
+            if (!member.equals(localUsername)) {
+                deliveries.add(channel.send(member, Message.MessageType.GROUP_CHAT, content));
+            }
+        }
+        return CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /* Opens a GROUP_CHAT body, or returns null if it is for a group this node is not in. */
+    public GroupMessage open(byte[] content) throws Exception {
+        if (content.length < ID_LENGTH) {
+            throw new IOException("Truncated group message");
+        }
+        Group group = groupsById.get(hex(Arrays.copyOf(content, ID_LENGTH)));
+        if (group == null) {
+            return null;
+        }
+        long decryptStart = System.nanoTime();
+        byte[] plain = CryptoUtils.decryptSession(Arrays.copyOfRange(content, ID_LENGTH, content.length), group.key);
+        Metrics.DECRYPT_NANOS.recordSince(decryptStart);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+        String sender = in.readUTF();
+        if (!group.getMembers().contains(sender)) {
+            throw new IOException("Message in '" + group.getName() + "' from non-member " + sender);
+        }
+        int offset = plain.length - in.available();
+        return new GroupMessage(group, sender, new String(plain, offset, plain.length - offset, StandardCharsets.UTF_8));
+    }
+
+    public List<Group> list() {
+        return new ArrayList<>(groupsByName.values());
+    }
+
+    private static byte[] encodeInvite(byte[] id, byte[] wrappedKey, Group group) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(id);
+        out.writeShort(wrappedKey.length);
+        out.write(wrappedKey);
+        out.writeUTF(group.getName());
+        out.writeShort(group.getMembers().size());
+        for (String member : group.getMembers()) {
+            out.writeUTF(member);
+        }
+        return bytes.toByteArray();
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,22 @@
+package com.shiva.p2pchat.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/* A monotonically increasing count; increments never contend on a lock. */
+public class Counter implements CounterMBean {
+
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,30 @@
+package com.shiva.p2pchat.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/* A value read on demand from the components that own it. Each node in the
+ process registers its own source, and the gauge reads their sum, the way
+ counters add up every node's events. */
+public class Gauge implements GaugeMBean {
+
+    private final List<LongSupplier> sources = new CopyOnWriteArrayList<>();
+
+    void addSource(LongSupplier source) {
+        sources.add(source);
+    }
+
+    void removeSource(LongSupplier source) {
+        sources.remove(source);
+    }
+
+    @Override
+    public long getValue() {
+        long sum = 0;
+        for (LongSupplier source : sources) {
+            sum += source.getAsLong();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,5 @@
+package com.shiva.p2pchat.metrics;
+
+public interface GaugeMBean {
+    long getValue();
+}
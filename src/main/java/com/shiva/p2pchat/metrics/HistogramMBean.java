@@ -0,0 +1,10 @@
+package com.shiva.p2pchat.metrics;
+
+public interface HistogramMBean {
+    long getCount();
+    double getMean();
+    long getMax();
+    long get50thPercentile();
+    long get99thPercentile();
+    long get999thPercentile();
+}
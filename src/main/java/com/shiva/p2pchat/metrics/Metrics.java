@@ -0,0 +1,36 @@
+package com.shiva.p2pchat.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* The process-wide registry and the metrics the node itself records. */
+public final class Metrics {
+
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final Histogram ENCRYPT_NANOS = REGISTRY.histogram("crypto.encryptNanos");
+    public static final Histogram DECRYPT_NANOS = REGISTRY.histogram("crypto.decryptNanos");
+    public static final Histogram CONNECT_NANOS = REGISTRY.histogram("connection.connectNanos");
+    public static final Histogram SEND_NANOS = REGISTRY.histogram("send.latencyNanos"); // Queued until written
+    public static final Counter MESSAGES_SENT = REGISTRY.counter("messages.sent");
+    public static final Counter MESSAGES_RECEIVED = REGISTRY.counter("messages.received");
+    public static final Counter SEND_FAILURES = REGISTRY.counter("messages.sendFailures");
+    public static final Counter BYTES_OUT = REGISTRY.counter("bytes.out");
+    public static final Counter BYTES_IN = REGISTRY.counter("bytes.in");
+    public static final Counter CONNECTION_ERRORS = REGISTRY.counter("connection.errors");
+    public static final Counter DISCOVERY_PARSED = REGISTRY.counter("discovery.packetsParsed");
+    public static final Counter DISCOVERY_DROPPED = REGISTRY.counter("discovery.packetsDropped");
+    public static final Counter RELAY_FORWARDED = REGISTRY.counter("relay.forwarded");
+    public static final Counter RELAY_DELIVERED = REGISTRY.counter("relay.delivered");
+    public static final Counter RELAY_DROPPED = REGISTRY.counter("relay.dropped"); // Duplicate, expired or unroutable
+    public static final Counter SESSIONS_RESUMED = REGISTRY.counter("connection.resumed");
+    public static final Counter RESUMES_REJECTED = REGISTRY.counter("connection.resumeRejected");
+
+    public static final AtomicLong INBOUND_CONNECTIONS = new AtomicLong();
+
+    static {
+        REGISTRY.gauge("connections.inbound", INBOUND_CONNECTIONS::get);
+    }
+
+    private Metrics() {
+    }
+}
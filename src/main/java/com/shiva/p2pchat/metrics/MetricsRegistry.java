@@ -0,0 +1,106 @@
+package com.shiva.p2pchat.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/* Named counters, gauges and histograms. Once exposed through JMX, every
+ metric (including ones created later) is registered as an MBean named
+ com.shiva.p2pchat:type=<Counter|Gauge|Histogram>,name=<name>. */
+public class MetricsRegistry {
+
+    private static final String JMX_DOMAIN = "com.shiva.p2pchat";
+
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+    private volatile boolean jmxEnabled = false;
+
+    public Counter counter(String name) {
+        return getOrCreate(name, Counter::new);
+    }
+
+    public Histogram histogram(String name) {
+        return getOrCreate(name, Histogram::new);
+    }
+
+    /* Adds a source to the named gauge, creating it if needed. Owners that
+     stop before the process does remove their source again with removeGauge. */
+    public Gauge gauge(String name, LongSupplier source) {
+        Gauge gauge = getOrCreate(name, Gauge::new);
+        gauge.addSource(source);
+        return gauge;
+    }
+
+    public void removeGauge(String name, LongSupplier source) {
+        Object metric = metrics.get(name);
+        if (metric instanceof Gauge) {
+            ((Gauge) metric).removeSource(source);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T getOrCreate(String name, Supplier<T> factory) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            T created = factory.get();
+            metric = metrics.putIfAbsent(name, created);
+            if (metric == null) {
+                register(name, created);
+                metric = created;
+            }
+        }
+        return (T) metric;
+    }
+
+    public synchronized void exposeViaJmx() {
+        if (jmxEnabled) {
+            return;
+        }
+        jmxEnabled = true;
+        metrics.forEach(this::register);
+    }
+
+    private void register(String name, Object metric) {
+        if (!jmxEnabled) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + metric.getClass().getSimpleName()
+                    + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metric, objectName);
+            }
+        } catch (Exception e) {
+            // JMX is a convenience; the metric still works without it.
+        }
+    }
+
+    /* One line per metric, sorted by name. Names ending in "Nanos" are shown in microseconds. */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        metrics.forEach((name, metric) -> {
+            if (metric instanceof Counter) {
+                lines.add(name + " = " + ((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                lines.add(name + " = " + ((Gauge) metric).getValue());
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                boolean nanos = name.endsWith("Nanos");
+                String label = nanos ? name.substring(0, name.length() - "Nanos".length()) + " (us)" : name;
+                double scale = nanos ? 1000.0 : 1.0;
+                lines.add(String.format("%s: count=%d mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f", label,
+                        histogram.getCount(), histogram.getMean() / scale, histogram.get50thPercentile() / scale,
+                        histogram.get99thPercentile() / scale, histogram.get999thPercentile() / scale,
+                        histogram.getMax() / scale));
+            }
+        });
+        return lines;
+    }
+}
@@ -2,19 +2,27 @@ package com.shiva.p2pchat.model;
 
 import java.security.PublicKey;
 
+/* A peer as remembered between runs (see ContactStore): where it was last
+ seen, with the key it used there, and when. */
 public class Contact {
     private final String username;
     private final String ipAddress;
     private final int port;
     private final transient PublicKey publicKey; 
     private final String publicKeyString; 
+    private final long lastSeen;
 
     public Contact(String username, String ipAddress, int port, PublicKey publicKey, String publicKeyString) {
+        this(username, ipAddress, port, publicKey, publicKeyString, System.currentTimeMillis());
+    }
+
+    public Contact(String username, String ipAddress, int port, PublicKey publicKey, String publicKeyString, long lastSeen) {
         this.username = username;
         this.ipAddress = ipAddress;
         this.port = port;
         this.publicKey = publicKey;
         this.publicKeyString = publicKeyString;
+        this.lastSeen = lastSeen;
     }
 
     // Getters
@@ -23,4 +31,5 @@ public class Contact {
     public int getPort() { return port; }
     public PublicKey getPublicKey() { return publicKey; }
     public String getPublicKeyString() { return publicKeyString; }
-}
\ No newline at end of file
+    public long getLastSeen() { return lastSeen; }
+}
@@ -7,22 +7,60 @@ public class Message implements Serializable {
     private static final long serialVersionUID = 2L;
 
     public enum MessageType {
-        REQUEST, CHAT, ACCEPT_REQUEST
+        REQUEST(1), CHAT(2), ACCEPT_REQUEST(3),
+        SESSION_KEY(4), // RSA-wrapped AES key, sent once at the start of a connection
+        FILE_OFFER(5), FILE_CHUNK(6), FILE_ACK(7), // File transfer, see FileTransferManager
+        GROUP_INVITE(8), // Group key for one member, see GroupManager
+        GROUP_CHAT(9),   // Sealed with the group key by the sender; no session encryption
+        PEER_TABLE(10), RELAY(11), // Gossip and forwarding between relays, see RelayManager
+        SESSION_TICKET(12), // Receiver -> sender, sealed with the session key; see TicketIssuer
+        SESSION_RESUME(13); // Replaces SESSION_KEY when the sender holds a ticket
+
+        private final byte code; // Stable on-the-wire identifier, independent of declaration order
+
+        MessageType(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte getCode() { return code; }
+
+        public static MessageType fromCode(byte code) {
+            for (MessageType type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown message type: " + code);
+        }
     }
 
+    public static final byte FLAG_COMPRESSED = 0x01; // Content was deflated before encryption
+
     private final MessageType type;
+    private final byte flags;
     private final String senderUsername;
     private final byte[] encryptedContent;
     private final long timestamp;
 
     public Message(MessageType type, String senderUsername, byte[] encryptedContent) {
+        this(type, senderUsername, encryptedContent, Instant.now().toEpochMilli());
+    }
+
+    public Message(MessageType type, String senderUsername, byte[] encryptedContent, long timestamp) {
+        this(type, (byte) 0, senderUsername, encryptedContent, timestamp);
+    }
+
+    public Message(MessageType type, byte flags, String senderUsername, byte[] encryptedContent, long timestamp) {
         this.type = type;
+        this.flags = flags;
         this.senderUsername = senderUsername;
         this.encryptedContent = encryptedContent;
-        this.timestamp = Instant.now().toEpochMilli();
+        this.timestamp = timestamp;
     }
 
     public MessageType getType() { return type; }
+    public byte getFlags() { return flags; }
+    public boolean isCompressed() { return (flags & FLAG_COMPRESSED) != 0; }
     public String getSenderUsername() { return senderUsername; }
     public byte[] getEncryptedContent() { return encryptedContent; }
     public long getTimestamp() { return timestamp; }
@@ -0,0 +1,97 @@
+package com.shiva.p2pchat.protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.shiva.p2pchat.model.Message;
+
+/* Reads frames written by MessageEncoder. Frame bodies are read into a buffer
+ that is reused between calls; only the payload is copied out per message.
+ Like the encoder, a decoder belongs to a single connection.
+
+ The buffer grows only as a large frame's bytes arrive, never on the length
+ prefix alone, and goes back to its initial size once the stream is quiet
+ after one, so an idle connection holds a few kilobytes whatever it was sent. */
+public class MessageDecoder {
+
+    private static final int INITIAL_LENGTH = 4096;
+
+    private byte[] frame = new byte[INITIAL_LENGTH];
+    private byte[] cachedSenderBytes = new byte[0];
+    private String cachedSender;
+    private int lastFrameLength;
+
+    public Message read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        int filled = 0;
+        while (filled < length) {
+            if (filled == frame.length) {
+                frame = Arrays.copyOf(frame, Math.min(length, frame.length * 2));
+            }
+            int read = in.read(frame, filled, Math.min(length, frame.length) - filled);
+            if (read < 0) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+            filled += read;
+        }
+        lastFrameLength = 4 + length;
+        Message message = decode(ByteBuffer.wrap(frame, 0, length));
+        if (frame.length > INITIAL_LENGTH && in.available() == 0) {
+            frame = new byte[INITIAL_LENGTH];
+        }
+        return message;
+    }
+
+    /* Bytes, including the length prefix, of the frame last returned by read. */
+    public int lastFrameLength() {
+        return lastFrameLength;
+    }
+
+    /* Decodes one frame body (everything after the length prefix). */
+    public Message decode(ByteBuffer body) throws IOException {
+        try {
+            Message.MessageType type = Message.MessageType.fromCode(body.get());
+            byte flags = body.get();
+            long timestamp = body.getLong();
+            String sender = readSender(body, body.getShort() & 0xFFFF);
+            int payloadLength = body.getInt();
+            if (payloadLength < 0 || payloadLength > body.remaining()) {
+                throw new IOException("Corrupt frame: payload length " + payloadLength);
+            }
+            byte[] payload = new byte[payloadLength];
+            body.get(payload);
+            return new Message(type, flags, sender, payload, timestamp);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt frame: " + e.getMessage(), e);
+        }
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < WireFormat.FIXED_HEADER_LENGTH || length > WireFormat.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    private String readSender(ByteBuffer body, int length) {
+        int start = body.position();
+        body.position(start + length);
+        // Reuse the previous String while the same peer keeps talking.
+        if (cachedSender != null && body.hasArray()
+                && Arrays.equals(cachedSenderBytes, 0, cachedSenderBytes.length,
+                        body.array(), body.arrayOffset() + start, body.arrayOffset() + start + length)) {
+            return cachedSender;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer senderView = body.duplicate();
+        senderView.position(start);
+        senderView.get(bytes);
+        cachedSenderBytes = bytes;
+        cachedSender = new String(bytes, StandardCharsets.UTF_8);
+        return cachedSender;
+    }
+}
@@ -0,0 +1,65 @@
+package com.shiva.p2pchat.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.shiva.p2pchat.model.Message;
+
+/* Writes Messages as length-prefixed binary frames (see WireFormat).
+ One encoder belongs to one connection: the frame buffer is reused between
+ calls, so an encoder must not be shared by concurrent writers. */
+public class MessageEncoder {
+
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private String cachedSender;
+    private byte[] cachedSenderBytes;
+
+    public void write(Message message, OutputStream out) throws IOException {
+        ByteBuffer frame = encode(message);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    /* Returns a view of the encoded frame, valid until the next call. */
+    public ByteBuffer encode(Message message) {
+        byte[] sender = senderBytes(message.getSenderUsername());
+        byte[] payload = message.getEncryptedContent();
+        int bodyLength = WireFormat.FIXED_HEADER_LENGTH + sender.length + payload.length;
+        if (bodyLength > WireFormat.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Message too large for a frame: " + bodyLength + " bytes");
+        }
+
+        ensureCapacity(4 + bodyLength);
+        buffer.clear();
+        buffer.putInt(bodyLength);
+        buffer.put(message.getType().getCode());
+        buffer.put(message.getFlags());
+        buffer.putLong(message.getTimestamp());
+        buffer.putShort((short) sender.length);
+        buffer.put(sender);
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private byte[] senderBytes(String sender) {
+        // A connection almost always carries a single sender, so skip re-encoding it.
+        if (!sender.equals(cachedSender)) {
+            byte[] bytes = sender.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Sender name too long");
+            }
+            cachedSender = sender;
+            cachedSenderBytes = bytes;
+        }
+        return cachedSenderBytes;
+    }
+
+    private void ensureCapacity(int required) {
+        if (buffer.capacity() < required) {
+            buffer = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+        }
+    }
+}
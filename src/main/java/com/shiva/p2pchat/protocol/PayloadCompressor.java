@@ -0,0 +1,105 @@
+package com.shiva.p2pchat.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Deflate for message payloads, applied before encryption (ciphertext does
+ not compress). Compressed layout: original length (int), deflate data.
+
+ Short payloads are sent as they are. The size threshold adapts per
+ connection: it doubles whenever compression saves too little (pasted
+ binary, file chunks of compressed formats) and drifts back down after a
+ run of skipped payloads, so incompressible traffic stops costing CPU.
+ Like the encoder, a compressor belongs to a single connection. */
+public class PayloadCompressor {
+
+    private static final int MIN_THRESHOLD = 256;
+    private static final int MAX_THRESHOLD = 1024 * 1024;
+    private static final int LARGE_PAYLOAD = 64 * 1024; // Above this, favour speed over ratio
+    private static final int RETRY_AFTER_SKIPS = 64;
+
+    private final Deflater deflater = new Deflater();
+    private byte[] output = new byte[8192];
+    private int threshold = MIN_THRESHOLD;
+    private int skipped = 0;
+
+    /* Returns the compressed form, or null if the payload should go uncompressed.
+     Content over WireFormat.MAX_MESSAGE_LENGTH is refused, since the
+     receiver would refuse to inflate it. */
+    public byte[] compress(byte[] content) {
+        WireFormat.checkMessageLength(content.length);
+        if (content.length < threshold) {
+            if (threshold > MIN_THRESHOLD && ++skipped >= RETRY_AFTER_SKIPS) {
+                threshold = Math.max(MIN_THRESHOLD, threshold / 2);
+                skipped = 0;
+            }
+            return null;
+        }
+
+        deflater.reset();
+        deflater.setLevel(content.length > LARGE_PAYLOAD ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+        deflater.setInput(content);
+        deflater.finish();
+        // Worth it only if it saves at least an eighth; stop early otherwise.
+        int limit = content.length - content.length / 8;
+        if (output.length < limit) {
+            output = new byte[limit];
+        }
+        int length = 0;
+        while (!deflater.finished() && length < limit) {
+            length += deflater.deflate(output, length, limit - length);
+        }
+        if (!deflater.finished()) {
+            threshold = Math.min(MAX_THRESHOLD, Math.max(threshold, content.length) * 2);
+            skipped = 0;
+            return null;
+        }
+        threshold = Math.max(MIN_THRESHOLD, threshold / 2);
+        return ByteBuffer.allocate(4 + length).putInt(content.length).put(output, 0, length).array();
+    }
+
+    public static byte[] decompress(byte[] compressed) throws IOException {
+        if (compressed.length < 4) {
+            throw new IOException("Truncated compressed payload");
+        }
+        int length = ByteBuffer.wrap(compressed).getInt();
+        // The declared size is checked first so a small payload cannot inflate without bound.
+        if (length < 0 || length > WireFormat.MAX_MESSAGE_LENGTH) {
+            throw new IOException("Invalid decompressed length: " + length);
+        }
+        byte[] content = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, 4, compressed.length - 4);
+            byte[] overflow = new byte[1];
+            int offset = 0;
+            while (!inflater.finished()) {
+                int inflated = offset < length
+                        ? inflater.inflate(content, offset, length - offset)
+                        : inflater.inflate(overflow);
+                if (offset == length && inflated > 0) {
+                    throw new IOException("Compressed payload longer than declared");
+                }
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                offset += inflated;
+            }
+            if (offset != length) {
+                throw new IOException("Compressed payload shorter than declared");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public void close() {
+        deflater.end();
+    }
+}
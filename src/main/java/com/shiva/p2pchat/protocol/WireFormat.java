@@ -0,0 +1,111 @@
+package com.shiva.p2pchat.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/* Binary framing used on peer connections.
+
+ Connection preamble (sender -> receiver): MAGIC (4 bytes), version, features
+ Reply (receiver -> sender): accepted version (0 = rejected), accepted features
+
+ Features: FEATURE_COMPRESSION - payloads may be deflated (see PayloadCompressor)
+           FEATURE_RESUMPTION  - the receiver answers SESSION_KEY with a SESSION_TICKET
+
+ A sender holding a ticket from the receiver sends SESSION_RESUME right
+ behind the preamble instead of SESSION_KEY, without waiting for the reply.
+ The receiver follows the preamble reply with RESUME_REJECTED, after which
+ the sender falls back to SESSION_KEY, or RESUME_ACCEPTED and a 16-byte
+ nonce of its own; the session key is derived from the ticket's secret and
+ both nonces (see CryptoUtils.deriveSessionKey).
+
+ Frame: length (int, bytes that follow)
+        type (byte), flags (byte, see Message.FLAG_*), timestamp (long),
+        sender length (unsigned short), sender (UTF-8),
+        payload length (int), payload */
+public final class WireFormat {
+
+    public static final int MAGIC = 0x50325043; // "P2PC"
+    public static final byte VERSION = 1;
+    public static final byte NO_FEATURES = 0;
+    public static final byte FEATURE_COMPRESSION = 0x01;
+    public static final byte FEATURE_RESUMPTION = 0x02;
+    public static final byte SUPPORTED_FEATURES = FEATURE_COMPRESSION | FEATURE_RESUMPTION;
+    public static final byte RESUME_ACCEPTED = 1;
+    public static final byte RESUME_REJECTED = 0;
+    // The largest frame sent is a file chunk: 64 KB of data, its chunk header and
+    // the session encryption overhead. The rest leaves room for the sender's name.
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 + 1024;
+    // The longest message content, before compression. Bigger than a frame, so
+    // text that compresses well (pasted logs) goes in one message.
+    public static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+    public static final int PREAMBLE_LENGTH = 4 + 1 + 1;
+    public static final int PREAMBLE_REPLY_LENGTH = 1 + 1;
+
+    // type + flags + timestamp + sender length + payload length
+    static final int FIXED_HEADER_LENGTH = 1 + 1 + 8 + 2 + 4;
+
+    private WireFormat() {
+    }
+
+    /* Throws with a message for the user if content is too long to send. */
+    public static void checkMessageLength(int length) {
+        if (length > MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("Message too long: " + length + " bytes, the limit is "
+                    + MAX_MESSAGE_LENGTH / 1024 + " KB.");
+        }
+    }
+
+    /* Whether a frame from this sender with this payload is within MAX_FRAME_LENGTH. */
+    public static boolean fitsFrame(String sender, int payloadLength) {
+        return FIXED_HEADER_LENGTH + sender.getBytes(StandardCharsets.UTF_8).length + payloadLength <= MAX_FRAME_LENGTH;
+    }
+
+    public static void writePreamble(DataOutputStream out, byte features) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(features);
+    }
+
+    /* Reads the receiver's reply and returns the features both sides agreed on. */
+    public static byte readPreambleReply(DataInputStream in) throws IOException {
+        byte version = in.readByte();
+        byte features = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Peer rejected wire version " + VERSION + " (replied " + version + ")");
+        }
+        return features;
+    }
+
+    /* Reads the start of a preamble; false means the other side is not speaking this framing. */
+    public static boolean readMagic(DataInputStream in) throws IOException {
+        return in.readInt() == MAGIC;
+    }
+
+    /* Answers a preamble whose MAGIC has already been consumed. */
+    public static byte acceptPreamble(DataInputStream in, DataOutputStream out, byte supportedFeatures) throws IOException {
+        byte version = in.readByte();
+        byte requestedFeatures = in.readByte();
+        ByteBuffer reply = ByteBuffer.allocate(PREAMBLE_REPLY_LENGTH);
+        try {
+            return acceptPreamble(version, requestedFeatures, supportedFeatures, reply);
+        } finally {
+            out.write(reply.array(), 0, reply.limit());
+            out.flush();
+        }
+    }
+
+    /* Non-blocking variant: fills reply (to be written by the caller) and
+     returns the agreed features, or throws after filling a rejection. */
+    public static byte acceptPreamble(byte version, byte requestedFeatures, byte supportedFeatures, ByteBuffer reply) throws IOException {
+        if (version != VERSION) {
+            reply.put((byte) 0).put(NO_FEATURES).flip();
+            throw new IOException("Unsupported wire version " + version);
+        }
+        byte agreed = (byte) (requestedFeatures & supportedFeatures);
+        reply.put(VERSION).put(agreed).flip();
+        return agreed;
+    }
+}
@@ -0,0 +1,12 @@
+package com.shiva.p2pchat.relay;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.model.Message;
+
+/* How relays reach a neighbour they can see directly: the node's outbound queue. */
+public interface RelayChannel {
+
+    CompletableFuture<Void> send(PeerDiscovery.DiscoveredPeer peer, Message.MessageType type, byte[] content);
+}
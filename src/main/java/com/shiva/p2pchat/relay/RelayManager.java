@@ -0,0 +1,345 @@
+package com.shiva.p2pchat.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.crypto.SecretKey;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.metrics.Metrics;
+import com.shiva.p2pchat.model.Message;
+import com.shiva.p2pchat.protocol.WireFormat;
+
+/* Reaches users outside this node's broadcast domain through other relays.
+
+ Relays are nodes started with relay enabled; they say so in their beacons,
+ and only relays take part, as senders, hops or destinations. Every
+ GOSSIP_INTERVAL_MS a relay sends each neighbouring relay (one it discovered
+ directly, on its own subnet or through a seed) a PEER_TABLE of the relays
+ it can reach and how many hops away they are, leaving out routes through
+ that neighbour. A user heard of this way gets a route through the
+ neighbour, which is kept while the neighbour keeps advertising it.
+
+ A message for a routed user is sealed for them alone: a fresh AES key
+ wrapped with their RSA public key, as for a connection's session key. It
+ travels as a RELAY and each hop forwards it unopened, so relays learn who
+ talks to whom but not what is said. GROUP_CHAT bodies are already sealed
+ with the group key and go as they are. The TTL stops a message after
+ MAX_HOPS hops, and every relay drops ids it has already seen, so stale
+ routes that point at each other cannot bounce a message around.
+
+ PEER_TABLE  entry count (unsigned short), then per entry: username
+             (modified UTF-8), hops (byte), Base64 public key (modified UTF-8)
+ RELAY       id (long), TTL (byte), inner type code (byte), timestamp (long),
+             origin, destination (modified UTF-8), wrapped key length
+             (unsigned short, 0 for GROUP_CHAT), wrapped key, sealed body (rest) */
+public class RelayManager {
+
+    public static final int MAX_HOPS = 4;
+    private static final long GOSSIP_INTERVAL_MS = 10_000;
+    private static final long ROUTE_TIMEOUT_MS = 3 * GOSSIP_INTERVAL_MS + 5_000;
+    private static final int MAX_ROUTES = 256;
+    private static final int MAX_TABLE_BYTES = WireFormat.MAX_FRAME_LENGTH - 1024; // Session encryption and frame header
+    private static final int SEEN_CAPACITY = 8192;
+    private static final int TTL_OFFSET = 8; // After the id
+    private static final int RELAY_HEADER_LENGTH = 8 + 1 + 1 + 8 + 2 + 2 + 2; // Fixed fields and the three length prefixes
+    private static final Set<Message.MessageType> RELAYED_TYPES = EnumSet.of(
+            Message.MessageType.REQUEST, Message.MessageType.CHAT, Message.MessageType.ACCEPT_REQUEST,
+            Message.MessageType.GROUP_INVITE, Message.MessageType.GROUP_CHAT);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String localUsername;
+    private final PeerDiscovery discovery;
+    private final RelayChannel channel;
+    private final PrivateKey privateKey;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final LongSupplier routesGauge = routes::size;
+    private final SeenFilter seen = new SeenFilter(SEEN_CAPACITY);
+    private final ScheduledExecutorService gossiper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "relay-gossip");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Route {
+        final String nextHop;
+        final int hops;
+        final String keyString;
+        final PublicKey publicKey;
+        volatile long lastSeen = System.currentTimeMillis();
+
+        Route(String nextHop, int hops, String keyString, PublicKey publicKey) {
+            this.nextHop = nextHop;
+            this.hops = hops;
+            this.keyString = keyString;
+            this.publicKey = publicKey;
+        }
+    }
+
+    /* A relayed message that has reached this node, ready to be handled as if
+     the origin had sent it directly. key is null for GROUP_CHAT. */
+    public static class Delivery {
+        private final Message message;
+        private final SecretKey key;
+
+        Delivery(Message message, SecretKey key) {
+            this.message = message;
+            this.key = key;
+        }
+
+        public Message getMessage() { return message; }
+        public SecretKey getKey() { return key; }
+    }
+
+    public RelayManager(String localUsername, PeerDiscovery discovery, RelayChannel channel, PrivateKey privateKey) {
+        this.localUsername = localUsername;
+        this.discovery = discovery;
+        this.channel = channel;
+        this.privateKey = privateKey;
+        Metrics.REGISTRY.gauge("relay.routes", routesGauge);
+    }
+
+    public void start() {
+        gossiper.scheduleWithFixedDelay(this::gossip, GOSSIP_INTERVAL_MS / 2, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        Metrics.REGISTRY.removeGauge("relay.routes", routesGauge);
+        gossiper.shutdownNow();
+    }
+
+    public boolean canReach(String username) {
+        return routes.containsKey(username);
+    }
+
+    /* Null if there is no route to the user. */
+    public PublicKey publicKeyOf(String username) {
+        Route route = routes.get(username);
+        return route == null ? null : route.publicKey;
+    }
+
+    /* Users reachable only through other relays. */
+    public Set<String> remoteUsers() {
+        return new TreeSet<>(routes.keySet());
+    }
+
+    /* Seals the content for the destination and queues it to the next hop. The
+     future completes once the next hop has it, not the destination. */
+    public CompletableFuture<Void> send(String destination, Message.MessageType type, byte[] content) {
+        Route route = routes.get(destination);
+        PeerDiscovery.DiscoveredPeer nextHop = route == null ? null : discovery.getPeer(route.nextHop);
+        if (nextHop == null || !RELAYED_TYPES.contains(type)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No relay route to '" + destination + "'"));
+        }
+        try {
+            boolean sealed = type != Message.MessageType.GROUP_CHAT;
+            int relayedLength = relayedLength(destination, sealed ? CryptoUtils.wrappedKeyLength(route.publicKey) : 0,
+                    sealed ? content.length + CryptoUtils.SESSION_OVERHEAD : content.length);
+            if (!WireFormat.fitsFrame(localUsername, relayedLength + CryptoUtils.SESSION_OVERHEAD)) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Message too large to relay: "
+                        + content.length + " bytes. Relayed messages must fit in "
+                        + WireFormat.MAX_FRAME_LENGTH / 1024 + " KB with their routing header, and are not compressed."));
+            }
+            byte[] wrappedKey = new byte[0];
+            byte[] body = content;
+            if (sealed) {
+                SecretKey key = CryptoUtils.generateSessionKey();
+                wrappedKey = CryptoUtils.wrapSessionKey(key, route.publicKey);
+                long encryptStart = System.nanoTime();
+                body = CryptoUtils.encryptSession(content, key);
+                Metrics.ENCRYPT_NANOS.recordSince(encryptStart);
+            }
+            long id = RANDOM.nextLong();
+            seen.add(id); // So it is not forwarded again if a stale route sends it back
+            byte[] relayed = encodeRelay(id, type, System.currentTimeMillis(), destination, wrappedKey, body);
+            return channel.send(nextHop, Message.MessageType.RELAY, relayed);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /* Handles a RELAY from a neighbour. Returns the inner message if this node
+     is the destination; otherwise forwards or drops it and returns null. */
+    public Delivery receive(String neighbour, byte[] content) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        long id = in.readLong();
+        int ttl = in.readUnsignedByte();
+        Message.MessageType type = Message.MessageType.fromCode(in.readByte());
+        long timestamp = in.readLong();
+        String origin = in.readUTF();
+        String destination = in.readUTF();
+        if (!RELAYED_TYPES.contains(type) || origin.equals(localUsername) || !seen.add(id)) {
+            Metrics.RELAY_DROPPED.increment();
+            return null;
+        }
+
+        if (destination.equals(localUsername)) {
+            byte[] wrappedKey = new byte[in.readUnsignedShort()];
+            in.readFully(wrappedKey);
+            byte[] body = new byte[in.available()];
+            in.readFully(body);
+            if (wrappedKey.length == 0 && type != Message.MessageType.GROUP_CHAT) {
+                throw new IOException("Relayed " + type + " from " + origin + " is not sealed");
+            }
+            SecretKey key = wrappedKey.length == 0 ? null : CryptoUtils.unwrapSessionKey(wrappedKey, privateKey);
+            Metrics.RELAY_DELIVERED.increment();
+            return new Delivery(new Message(type, origin, body, timestamp), key);
+        }
+
+        PeerDiscovery.DiscoveredPeer next = discovery.getPeer(destination);
+        if (next == null) {
+            Route route = routes.get(destination);
+            next = route == null || route.nextHop.equals(neighbour) ? null : discovery.getPeer(route.nextHop);
+        }
+        if (ttl <= 1 || next == null) {
+            Metrics.RELAY_DROPPED.increment();
+            return null;
+        }
+        byte[] forwarded = content.clone();
+        forwarded[TTL_OFFSET] = (byte) (ttl - 1);
+        channel.send(next, Message.MessageType.RELAY, forwarded).whenComplete((ignored, e) -> {
+            if (e != null) {
+                Metrics.RELAY_DROPPED.increment();
+            } else {
+                Metrics.RELAY_FORWARDED.increment();
+            }
+        });
+        return null;
+    }
+
+    /* Merges a neighbour's PEER_TABLE into the routes. Tables from relays this
+     node cannot see directly are ignored, since it could not use the routes. */
+    public void receiveTable(String neighbour, byte[] content) throws Exception {
+        if (discovery.getPeer(neighbour) == null) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String user = in.readUTF();
+            int hops = in.readUnsignedByte() + 1;
+            String keyString = in.readUTF();
+            if (hops > MAX_HOPS || user.equals(localUsername) || discovery.getPeer(user) != null) {
+                continue;
+            }
+            Route existing = routes.get(user);
+            if (existing != null && existing.nextHop.equals(neighbour) && existing.hops == hops
+                    && existing.keyString.equals(keyString)) {
+                existing.lastSeen = System.currentTimeMillis(); // Nothing changed
+                continue;
+            }
+            // Take the shorter route, or the neighbour's news about the route already through it.
+            boolean better = existing == null || hops < existing.hops || existing.nextHop.equals(neighbour);
+            if (!better || (existing == null && routes.size() >= MAX_ROUTES)) {
+                continue;
+            }
+            PublicKey key = existing != null && existing.keyString.equals(keyString)
+                    ? existing.publicKey : CryptoUtils.stringToPublicKey(keyString);
+            routes.put(user, new Route(neighbour, hops, keyString, key));
+        }
+    }
+
+    private void gossip() {
+        try {
+            long now = System.currentTimeMillis();
+            routes.entrySet().removeIf(entry -> now - entry.getValue().lastSeen > ROUTE_TIMEOUT_MS
+                    || discovery.getPeer(entry.getValue().nextHop) == null
+                    || discovery.getPeer(entry.getKey()) != null);
+
+            Map<String, PeerDiscovery.DiscoveredPeer> direct = discovery.getOnlinePeers();
+            for (Map.Entry<String, PeerDiscovery.DiscoveredPeer> neighbour : direct.entrySet()) {
+                if (neighbour.getValue().relay) {
+                    byte[] table = encodeTable(neighbour.getKey(), direct);
+                    channel.send(neighbour.getValue(), Message.MessageType.PEER_TABLE, table);
+                }
+            }
+        } catch (Exception e) {
+            // Next round tries again
+        }
+    }
+
+    // Every relay reachable from here except through the neighbour itself.
+    private byte[] encodeTable(String neighbour, Map<String, PeerDiscovery.DiscoveredPeer> direct) throws IOException {
+        List<String> users = new ArrayList<>();
+        List<Integer> hops = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, PeerDiscovery.DiscoveredPeer> peer : direct.entrySet()) {
+            if (peer.getValue().relay && !peer.getKey().equals(neighbour)) {
+                users.add(peer.getKey());
+                hops.add(1);
+                keys.add(CryptoUtils.keyToString(peer.getValue().publicKey));
+            }
+        }
+        for (Map.Entry<String, Route> route : routes.entrySet()) {
+            Route value = route.getValue();
+            if (!value.nextHop.equals(neighbour) && value.hops < MAX_HOPS && !direct.containsKey(route.getKey())) {
+                users.add(route.getKey());
+                hops.add(value.hops);
+                keys.add(value.keyString);
+            }
+        }
+        // Nearest first, and only as many as fit in one frame.
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entry);
+        int count = 0;
+        for (int i = 0; i < users.size() && count < MAX_ROUTES; i++) {
+            entry.reset();
+            entryOut.writeUTF(users.get(i));
+            entryOut.writeByte(hops.get(i));
+            entryOut.writeUTF(keys.get(i));
+            if (2 + entries.size() + entry.size() > MAX_TABLE_BYTES) {
+                break;
+            }
+            entry.writeTo(entries);
+            count++;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 + entries.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(count);
+        entries.writeTo(out);
+        return bytes.toByteArray();
+    }
+
+    // What encodeRelay will produce, so oversized messages fail before any key is wrapped.
+    private int relayedLength(String destination, int wrappedKeyLength, int bodyLength) {
+        return RELAY_HEADER_LENGTH + localUsername.getBytes(StandardCharsets.UTF_8).length
+                + destination.getBytes(StandardCharsets.UTF_8).length + wrappedKeyLength + bodyLength;
+    }
+
+    private byte[] encodeRelay(long id, Message.MessageType type, long timestamp, String destination,
+                               byte[] wrappedKey, byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(id);
+        out.writeByte(MAX_HOPS);
+        out.writeByte(type.getCode());
+        out.writeLong(timestamp);
+        out.writeUTF(localUsername);
+        out.writeUTF(destination);
+        out.writeShort(wrappedKey.length);
+        out.write(wrappedKey);
+        out.write(body);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,69 @@
+package com.shiva.p2pchat.relay;
+
+import java.util.Arrays;
+
+/* Relayed message ids seen recently, kept in two Bloom filters. Ids go into
+ the current filter and are looked up in both; once the current one holds
+ its capacity it becomes the previous one and the oldest is cleared. Memory
+ stays fixed however long the node runs, and an id is remembered for at
+ least one generation. A false positive drops a message that was never
+ seen; with 32 bits per id and six hashes that is about one in 20,000. */
+class SeenFilter {
+
+    private static final int BITS_PER_ID = 32;
+    private static final int HASHES = 6;
+
+    private final int capacity;
+    private final int mask;
+    private long[] current;
+    private long[] previous;
+    private int count;
+
+    SeenFilter(int capacity) {
+        this.capacity = capacity;
+        int bits = Integer.highestOneBit(capacity * BITS_PER_ID - 1) << 1;
+        this.mask = bits - 1;
+        this.current = new long[bits / 64];
+        this.previous = new long[bits / 64];
+    }
+
+    /* Records the id and returns true, or returns false if it was (probably) seen before. */
+    synchronized boolean add(long id) {
+        long hash = mix(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        if (contains(current, h1, h2) || contains(previous, h1, h2)) {
+            return false;
+        }
+        if (count == capacity) {
+            long[] cleared = previous;
+            Arrays.fill(cleared, 0L);
+            previous = current;
+            current = cleared;
+            count = 0;
+        }
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            current[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+        return true;
+    }
+
+    private boolean contains(long[] filter, int h1, int h2) {
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // SplitMix64 finaliser, so sequential or low-entropy ids still spread over the bits.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
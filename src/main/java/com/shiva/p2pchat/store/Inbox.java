@@ -0,0 +1,320 @@
+package com.shiva.p2pchat.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+/* Message requests waiting to be read or accepted, kept exactly as they
+ arrived: still encrypted, together with the session key needed to open
+ them later. Nothing is decrypted until the user looks at it.
+
+ Bodies held in memory are limited per sender and in total. Past either
+ budget the oldest bodies of the sender using the most memory are moved to a
+ spill file. The number of pending messages and the size of the spill file
+ are capped too; beyond those the oldest message of the busiest sender is
+ dropped, so a flood of requests cannot exhaust memory or disk. */
+public class Inbox implements Closeable {
+
+    private static final Path DEFAULT_SPILL_FILE = Paths.get("data/inbox/spill.dat");
+    public static final long DEFAULT_SENDER_MEMORY_BYTES = 64 * 1024;
+    public static final long DEFAULT_TOTAL_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_MESSAGES_PER_SENDER = 1000;
+    private static final int MAX_MESSAGES = 10_000;
+    private static final long DEFAULT_MAX_SPILL_BYTES = 64 * 1024 * 1024;
+
+    private final long senderMemoryBytes;
+    private final long totalMemoryBytes;
+    private final long maxSpillBytes;
+    private final FileChannel spill;
+    private final Map<String, SenderQueue> senders = new LinkedHashMap<>();
+    private long memoryBytes = 0;
+    private int messageCount = 0;
+    private long spillEnd = 0;
+    private int spilledCount = 0;
+    private long spilledBytes = 0; // Live bytes in the spill file; the rest is dropped or taken messages
+
+    public Inbox() throws IOException {
+        this(DEFAULT_SPILL_FILE, DEFAULT_SENDER_MEMORY_BYTES, DEFAULT_TOTAL_MEMORY_BYTES);
+    }
+
+    public Inbox(Path spillFile, long senderMemoryBytes, long totalMemoryBytes) throws IOException {
+        this(spillFile, senderMemoryBytes, totalMemoryBytes, DEFAULT_MAX_SPILL_BYTES);
+    }
+
+    Inbox(Path spillFile, long senderMemoryBytes, long totalMemoryBytes, long maxSpillBytes) throws IOException {
+        this.senderMemoryBytes = senderMemoryBytes;
+        this.totalMemoryBytes = totalMemoryBytes;
+        this.maxSpillBytes = maxSpillBytes;
+        Files.createDirectories(spillFile.toAbsolutePath().getParent());
+        // The inbox does not outlive the process, so leftovers from a previous run are discarded.
+        this.spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /* A pending request with its body loaded, ready to be decrypted.
+     A null session key means the body was encrypted with our RSA key. */
+    public static class PendingMessage {
+        private final long timestamp;
+        private final SecretKey sessionKey;
+        private final boolean compressed;
+        private final byte[] encryptedContent;
+
+        PendingMessage(long timestamp, SecretKey sessionKey, boolean compressed, byte[] encryptedContent) {
+            this.timestamp = timestamp;
+            this.sessionKey = sessionKey;
+            this.compressed = compressed;
+            this.encryptedContent = encryptedContent;
+        }
+
+        public long getTimestamp() { return timestamp; }
+        public SecretKey getSessionKey() { return sessionKey; }
+        public boolean isCompressed() { return compressed; }
+        public byte[] getEncryptedContent() { return encryptedContent; }
+    }
+
+    private static class Entry {
+        final long timestamp;
+        final SecretKey sessionKey;
+        final boolean compressed;
+        final int length;
+        byte[] body; // Null once spilled
+        long spillOffset;
+
+        Entry(long timestamp, SecretKey sessionKey, boolean compressed, byte[] body) {
+            this.timestamp = timestamp;
+            this.sessionKey = sessionKey;
+            this.compressed = compressed;
+            this.length = body.length;
+            this.body = body;
+        }
+    }
+
+    private static class SenderQueue {
+        final Deque<Entry> entries = new ArrayDeque<>();
+        long memoryBytes = 0;
+    }
+
+    public synchronized void add(String sender, long timestamp, byte[] encryptedContent, SecretKey sessionKey,
+                                 boolean compressed) throws IOException {
+        SenderQueue queue = senders.computeIfAbsent(sender, k -> new SenderQueue());
+        queue.entries.addLast(new Entry(timestamp, sessionKey, compressed, encryptedContent));
+        queue.memoryBytes += encryptedContent.length;
+        memoryBytes += encryptedContent.length;
+        messageCount++;
+
+        if (queue.entries.size() > MAX_MESSAGES_PER_SENDER) {
+            dropOldest(sender, queue);
+        }
+        while (messageCount > MAX_MESSAGES) {
+            String busiest = busiestSender(false);
+            dropOldest(busiest, senders.get(busiest));
+        }
+        if (queue.memoryBytes > senderMemoryBytes) {
+            spillUntil(sender, queue, senderMemoryBytes);
+        }
+        while (memoryBytes > totalMemoryBytes) {
+            String largest = busiestSender(true);
+            SenderQueue largestQueue = senders.get(largest);
+            spillUntil(largest, largestQueue, largestQueue.memoryBytes - (memoryBytes - totalMemoryBytes));
+        }
+    }
+
+    public synchronized boolean contains(String sender) {
+        return senders.containsKey(sender);
+    }
+
+    /* Pending message count per sender, in order of first arrival. */
+    public synchronized Map<String, Integer> counts() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        senders.forEach((sender, queue) -> counts.put(sender, queue.entries.size()));
+        return counts;
+    }
+
+    public synchronized int size() {
+        return messageCount;
+    }
+
+    // Bodies held on the heap
+    synchronized long memoryBytes() {
+        return memoryBytes;
+    }
+
+    // Bodies of pending messages in the spill file
+    synchronized long spilledBytes() {
+        return spilledBytes;
+    }
+
+    synchronized int spilledCount() {
+        return spilledCount;
+    }
+
+    synchronized long spillFileBytes() throws IOException {
+        return spill.size();
+    }
+
+    /* Loads a sender's pending messages, oldest first, leaving them in the inbox. */
+    public synchronized List<PendingMessage> peek(String sender) throws IOException {
+        List<PendingMessage> messages = new ArrayList<>();
+        SenderQueue queue = senders.get(sender);
+        if (queue != null) {
+            for (Entry entry : queue.entries) {
+                messages.add(new PendingMessage(entry.timestamp, entry.sessionKey, entry.compressed, load(entry)));
+            }
+        }
+        return messages;
+    }
+
+    /* Loads and removes a sender's pending messages, oldest first. */
+    public synchronized List<PendingMessage> take(String sender) throws IOException {
+        List<PendingMessage> messages = peek(sender);
+        SenderQueue queue = senders.remove(sender);
+        if (queue != null) {
+            queue.entries.forEach(this::forget);
+            memoryBytes -= queue.memoryBytes;
+        }
+        return messages;
+    }
+
+    private byte[] load(Entry entry) throws IOException {
+        if (entry.body != null) {
+            return entry.body;
+        }
+        ByteBuffer body = ByteBuffer.allocate(entry.length);
+        long offset = entry.spillOffset;
+        while (body.hasRemaining()) {
+            int read = spill.read(body, offset);
+            if (read < 0) {
+                throw new IOException("Inbox spill file truncated");
+            }
+            offset += read;
+        }
+        return body.array();
+    }
+
+    /* Moves the sender's oldest in-memory bodies to disk until it holds at most
+     target bytes. Spilled bodies are always the sender's oldest, so when the
+     spill file is full the sender's oldest message goes, keeping what is left
+     a contiguous run of the newest. */
+    private void spillUntil(String sender, SenderQueue queue, long target) throws IOException {
+        while (queue.memoryBytes > Math.max(0, target)) {
+            Entry entry = oldestInMemory(queue);
+            if (spillEnd + entry.length > maxSpillBytes && spilledBytes + entry.length <= maxSpillBytes) {
+                compactSpill();
+            }
+            if (spillEnd + entry.length > maxSpillBytes) {
+                // Spill file full: drop a message instead, this one if none of the sender's are on disk.
+                dropOldest(sender, queue);
+                continue;
+            }
+            ByteBuffer body = ByteBuffer.wrap(entry.body);
+            long offset = spillEnd;
+            while (body.hasRemaining()) {
+                offset += spill.write(body, offset);
+            }
+            entry.spillOffset = spillEnd;
+            spillEnd += entry.length;
+            spilledCount++;
+            spilledBytes += entry.length;
+            entry.body = null;
+            queue.memoryBytes -= entry.length;
+            memoryBytes -= entry.length;
+        }
+    }
+
+    private static Entry oldestInMemory(SenderQueue queue) {
+        for (Entry entry : queue.entries) {
+            if (entry.body != null) {
+                return entry;
+            }
+        }
+        throw new IllegalStateException("No message bodies in memory");
+    }
+
+    // Slides live spilled bodies down over the space of ones already gone.
+    private void compactSpill() throws IOException {
+        List<Entry> spilled = new ArrayList<>();
+        senders.values().forEach(queue -> queue.entries.stream().filter(e -> e.body == null).forEach(spilled::add));
+        spilled.sort((a, b) -> Long.compare(a.spillOffset, b.spillOffset));
+        long end = 0;
+        for (Entry entry : spilled) {
+            if (entry.spillOffset != end) {
+                ByteBuffer body = ByteBuffer.wrap(load(entry));
+                long offset = end;
+                while (body.hasRemaining()) {
+                    offset += spill.write(body, offset);
+                }
+                entry.spillOffset = end;
+            }
+            end += entry.length;
+        }
+        spillEnd = end;
+        spill.truncate(end);
+    }
+
+    private void dropOldest(String sender, SenderQueue queue) {
+        Entry oldest = queue.entries.pollFirst();
+        if (oldest.body != null) {
+            queue.memoryBytes -= oldest.length;
+            memoryBytes -= oldest.length;
+        }
+        forget(oldest);
+        removeIfEmpty(sender, queue);
+    }
+
+    private void forget(Entry entry) {
+        messageCount--;
+        if (entry.body == null) {
+            spilledBytes -= entry.length;
+        }
+        if (entry.body == null && --spilledCount == 0) {
+            // Nothing on disk is referenced any more; start the spill file over.
+            spillEnd = 0;
+            try {
+                spill.truncate(0);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void removeIfEmpty(String sender, SenderQueue queue) {
+        if (queue.entries.isEmpty()) {
+            senders.remove(sender);
+        }
+    }
+
+    private String busiestSender(boolean byMemory) {
+        String busiest = null;
+        long most = -1;
+        for (Map.Entry<String, SenderQueue> entry : senders.entrySet()) {
+            long load = byMemory ? entry.getValue().memoryBytes : entry.getValue().entries.size();
+            if (load > most) {
+                most = load;
+                busiest = entry.getKey();
+            }
+        }
+        return busiest;
+    }
+
+    @Override
+    public synchronized void close() {
+        senders.clear();
+        try {
+            spill.truncate(0);
+            spill.close();
+        } catch (IOException e) {
+        }
+    }
+}
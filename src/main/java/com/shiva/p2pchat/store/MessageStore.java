@@ -0,0 +1,319 @@
+package com.shiva.p2pchat.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/* Append-only chat history on disk.
+
+ Every message goes to the end of one shared log, split into memory-mapped
+ segments so writes are sequential and reads are plain memory copies; none of
+ it lives on the heap. Each conversation has an index file of log positions,
+ so a page of history is found without scanning the log.
+
+ Segment record: length (int, bytes that follow), timestamp (long),
+                 direction (byte), conversation length (unsigned short),
+                 conversation (UTF-8), text (UTF-8, rest of the record)
+ Index entry:    log position (long) */
+public class MessageStore implements Closeable {
+
+    private static final Path DEFAULT_DIRECTORY = Paths.get("data/messages");
+    private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_OPEN_INDEXES = 256;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    // timestamp + direction + conversation length
+    private static final int RECORD_HEADER_LENGTH = 8 + 1 + 2;
+
+    private final int segmentSize;
+    private final Path logDirectory;
+    private final Path indexDirectory;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private final long recoveredEnd; // Where the log ended at startup
+    private final Set<String> trimmed = new HashSet<>(); // Conversations whose index was checked against it
+    private final Map<String, ConversationIndex> indexes = new LinkedHashMap<String, ConversationIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ConversationIndex> eldest) {
+            if (size() > MAX_OPEN_INDEXES) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public MessageStore() throws IOException {
+        this(DEFAULT_DIRECTORY);
+    }
+
+    public MessageStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    MessageStore(Path directory, int segmentSize) throws IOException {
+        this.segmentSize = segmentSize;
+        this.logDirectory = directory.resolve("log");
+        this.indexDirectory = directory.resolve("index");
+        Files.createDirectories(logDirectory);
+        Files.createDirectories(indexDirectory);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(logDirectory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(base, Segment.map(file, base, 0));
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+            active.recover();
+        }
+        recoveredEnd = active == null ? 0 : active.base + active.writePosition;
+    }
+
+    /* Appends a message and returns its index within the conversation. */
+    public synchronized long append(String conversation, StoredMessage.Direction direction, long timestamp, String text) throws IOException {
+        byte[] conversationBytes = conversation.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        if (conversationBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Conversation name too long");
+        }
+        int length = RECORD_HEADER_LENGTH + conversationBytes.length + textBytes.length;
+        Segment segment = segmentWithRoom(4 + length);
+        long position = segment.base + segment.writePosition;
+
+        ByteBuffer record = segment.buffer.duplicate();
+        record.position(segment.writePosition + 4);
+        record.putLong(timestamp);
+        record.put(direction.getCode());
+        record.putShort((short) conversationBytes.length);
+        record.put(conversationBytes);
+        record.put(textBytes);
+        int next = segment.writePosition + 4 + length;
+        if (next + 4 <= segment.capacity()) {
+            // The rest of a record cut short by a crash may still be here; recovery must stop at this one.
+            segment.buffer.putInt(next, 0);
+        }
+        // Length last, so recovery never sees a record whose body was not written.
+        segment.buffer.putInt(segment.writePosition, length);
+        segment.writePosition = next;
+
+        return index(conversation, true).append(position);
+    }
+
+    public synchronized long count(String conversation) throws IOException {
+        ConversationIndex index = index(conversation, false);
+        return index == null ? 0 : index.count;
+    }
+
+    /* Reads up to limit messages of a conversation, oldest first, starting at fromIndex. */
+    public synchronized List<StoredMessage> read(String conversation, long fromIndex, int limit) throws IOException {
+        List<StoredMessage> messages = new ArrayList<>();
+        ConversationIndex index = index(conversation, false);
+        if (index == null) {
+            return messages;
+        }
+        long from = Math.max(0, fromIndex);
+        long to = Math.min(index.count, from + limit);
+        if (from >= to) {
+            return messages;
+        }
+        ByteBuffer positions = index.readPositions(from, (int) (to - from));
+        while (positions.hasRemaining()) {
+            long position = positions.getLong();
+            Segment segment = segments.floorEntry(position).getValue();
+            messages.add(segment.read((int) (position - segment.base)));
+        }
+        return messages;
+    }
+
+    private Segment segmentWithRoom(int recordLength) throws IOException {
+        if (active == null || active.capacity() - active.writePosition < recordLength) {
+            long base = active == null ? 0 : active.base + active.capacity();
+            Path file = logDirectory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+            active = Segment.map(file, base, Math.max(segmentSize, recordLength));
+            segments.put(base, active);
+        }
+        return active;
+    }
+
+    private ConversationIndex index(String conversation, boolean create) throws IOException {
+        ConversationIndex index = indexes.get(conversation);
+        if (index == null) {
+            Path file = indexDirectory.resolve(fileName(conversation) + INDEX_SUFFIX);
+            migrateIndex(indexDirectory, conversation, file);
+            if (!create && !Files.exists(file)) {
+                return null;
+            }
+            // Entries at or past the recovered end point at records lost in a crash, whose
+            // place later appends to any conversation may take. Only the first open in a run
+            // can find them: an index evicted and reopened holds only this run's entries past it.
+            index = ConversationIndex.open(file, trimmed.add(conversation) ? recoveredEnd : Long.MAX_VALUE);
+            indexes.put(conversation, index);
+        }
+        return index;
+    }
+
+    /* Usernames may contain characters that are not safe in file names, and
+     may be longer than a file name can be, so indexes are named by a hash. */
+    private static String fileName(String conversation) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(conversation.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JRE has SHA-256
+        }
+    }
+
+    // Indexes used to be named by the hex of the whole name; adopt one if it is there.
+    private static void migrateIndex(Path indexDirectory, String conversation, Path file) {
+        try {
+            Path legacy = indexDirectory.resolve(hex(conversation.getBytes(StandardCharsets.UTF_8)) + INDEX_SUFFIX);
+            if (!Files.exists(file) && Files.exists(legacy)) {
+                Files.move(legacy, file);
+            }
+        } catch (IOException | InvalidPathException e) {
+            // Too long to have existed, or unreadable; the conversation starts a new index.
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public synchronized void close() {
+        segments.values().forEach(segment -> segment.buffer.force());
+        indexes.values().forEach(ConversationIndex::close);
+        indexes.clear();
+    }
+
+    /* A fixed-size log file, mapped once. Unused space at the end is zero. */
+    private static class Segment {
+        final long base;
+        final MappedByteBuffer buffer;
+        int writePosition;
+
+        private Segment(long base, MappedByteBuffer buffer) {
+            this.base = base;
+            this.buffer = buffer;
+        }
+
+        static Segment map(Path file, long base, int minimumSize) throws IOException {
+            // The mapping stays valid after the channel is closed, so no descriptor is held per segment.
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = Math.max(channel.size(), minimumSize);
+                return new Segment(base, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        // Finds the end of the written records after a restart.
+        void recover() {
+            int position = 0;
+            while (position + 4 <= capacity()) {
+                int length = buffer.getInt(position);
+                if (length < RECORD_HEADER_LENGTH || length > capacity() - position - 4) {
+                    break;
+                }
+                position += 4 + length;
+            }
+            writePosition = position;
+        }
+
+        StoredMessage read(int offset) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset);
+            int length = record.getInt();
+            long timestamp = record.getLong();
+            StoredMessage.Direction direction = StoredMessage.Direction.fromCode(record.get());
+            byte[] conversation = new byte[record.getShort() & 0xFFFF];
+            record.get(conversation);
+            byte[] text = new byte[length - RECORD_HEADER_LENGTH - conversation.length];
+            record.get(text);
+            return new StoredMessage(new String(conversation, StandardCharsets.UTF_8), direction, timestamp,
+                    new String(text, StandardCharsets.UTF_8));
+        }
+    }
+
+    /* Log positions of one conversation's messages, in order. */
+    private static class ConversationIndex {
+        private final FileChannel channel;
+        private final ByteBuffer entry = ByteBuffer.allocate(Long.BYTES);
+        long count;
+
+        private ConversationIndex(FileChannel channel, long count) {
+            this.channel = channel;
+            this.count = count;
+        }
+
+        static ConversationIndex open(Path file, long logEnd) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ConversationIndex index = new ConversationIndex(channel, channel.size() / Long.BYTES);
+            // Drop entries written after the log itself was last saved.
+            while (index.count > 0 && index.readPositions(index.count - 1, 1).getLong() >= logEnd) {
+                index.count--;
+            }
+            channel.truncate(index.count * Long.BYTES);
+            return index;
+        }
+
+        long append(long position) throws IOException {
+            entry.clear();
+            entry.putLong(position).flip();
+            long offset = count * Long.BYTES;
+            while (entry.hasRemaining()) {
+                offset += channel.write(entry, offset);
+            }
+            return count++;
+        }
+
+        ByteBuffer readPositions(long from, int entries) throws IOException {
+            ByteBuffer positions = ByteBuffer.allocate(entries * Long.BYTES);
+            long offset = from * Long.BYTES;
+            while (positions.hasRemaining()) {
+                int read = channel.read(positions, offset);
+                if (read < 0) {
+                    throw new IOException("Truncated message index");
+                }
+                offset += read;
+            }
+            positions.flip();
+            return positions;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.shiva.p2pchat.store;
+
+/* One chat line as kept in the MessageStore. */
+public class StoredMessage {
+
+    public enum Direction {
+        INBOUND(0), OUTBOUND(1);
+
+        private final byte code;
+
+        Direction(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte getCode() { return code; }
+
+        public static Direction fromCode(byte code) {
+            return code == 0 ? INBOUND : OUTBOUND;
+        }
+    }
+
+    private final String conversation;
+    private final Direction direction;
+    private final long timestamp;
+    private final String text;
+
+    public StoredMessage(String conversation, Direction direction, long timestamp, String text) {
+        this.conversation = conversation;
+        this.direction = direction;
+        this.timestamp = timestamp;
+        this.text = text;
+    }
+
+    public String getConversation() { return conversation; }
+    public Direction getDirection() { return direction; }
+    public long getTimestamp() { return timestamp; }
+    public String getText() { return text; }
+}
@@ -0,0 +1,244 @@
+package com.shiva.p2pchat.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+import com.shiva.p2pchat.model.Message;
+
+/* Chunked file transfer over the ordinary peer connections, so every chunk
+ is sealed with the connection's AES-GCM session key like a chat message.
+
+ FILE_OFFER  sender -> receiver: id (long), size (long), file name (UTF-8, rest)
+ FILE_ACK    receiver -> sender: id (long), next chunk needed (int)
+             The first ACK accepts the offer and says where to resume.
+ FILE_CHUNK  sender -> receiver: id (long), index (int), data (CHUNK_SIZE, less for the last)
+
+ The id is derived from the recipient, path, size and modification time, so
+ offering the same file again after a failure or restart resumes it. */
+public class FileTransferManager {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int CHUNK_HEADER_LENGTH = 8 + 4;
+    private static final int MAX_POOLED_BUFFERS = 32;
+    private static final Path DEFAULT_DOWNLOAD_DIRECTORY = Paths.get("data/downloads");
+
+    private final TransferChannel channel;
+    private final ExecutorService workers;
+    private final Consumer<String> notifier;
+    private final Path downloadDirectory;
+    private final BufferPool buffers = new BufferPool(CHUNK_SIZE, MAX_POOLED_BUFFERS);
+    private final Map<Long, OutgoingTransfer> outgoing = new ConcurrentHashMap<>();
+    private final Map<Long, IncomingTransfer> incoming = new ConcurrentHashMap<>();
+
+    public FileTransferManager(TransferChannel channel, ExecutorService workers, Consumer<String> notifier) {
+        this(channel, workers, notifier, DEFAULT_DOWNLOAD_DIRECTORY);
+    }
+
+    public FileTransferManager(TransferChannel channel, ExecutorService workers, Consumer<String> notifier, Path downloadDirectory) {
+        this.channel = channel;
+        this.workers = workers;
+        this.notifier = notifier;
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    static int chunkCount(long size) {
+        long count = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (size < 0 || count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported file size: " + size);
+        }
+        return (int) count;
+    }
+
+    /* Offers a file to a peer; chunks start flowing once the peer accepts. */
+    public void sendFile(String username, Path path) throws Exception {
+        if (!Files.isRegularFile(path)) {
+            throw new IOException("Not a file: " + path);
+        }
+        long size = Files.size(path);
+        long id = transferId(username, path.toAbsolutePath(), size, Files.getLastModifiedTime(path).toMillis());
+        outgoing.computeIfAbsent(id, k -> new OutgoingTransfer(id, username, path, size, channel, buffers, this));
+
+        byte[] name = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer offer = ByteBuffer.allocate(8 + 8 + name.length).putLong(id).putLong(size).put(name);
+        channel.send(username, Message.MessageType.FILE_OFFER, offer.array());
+    }
+
+    /* Accepts every pending offer from the sender and returns how many there were. */
+    public int acceptFrom(String sender) throws IOException {
+        int accepted = 0;
+        for (IncomingTransfer transfer : incoming.values()) {
+            if (transfer.username.equals(sender) && !transfer.isAccepted()) {
+                int next = transfer.accept();
+                accepted++;
+                if (transfer.isComplete()) {
+                    finish(transfer);
+                }
+                sendAck(transfer, next);
+            }
+        }
+        return accepted;
+    }
+
+    /* Handles a decrypted FILE_* message. */
+    public void handle(String sender, Message.MessageType type, byte[] content) {
+        try {
+            ByteBuffer body = ByteBuffer.wrap(content);
+            switch (type) {
+                case FILE_OFFER:
+                    onOffer(sender, body);
+                    break;
+                case FILE_ACK:
+                    onAck(sender, body.getLong(), body.getInt());
+                    break;
+                case FILE_CHUNK:
+                    onChunk(sender, body.getLong(), body.getInt(), content);
+                    break;
+                default:
+                    break;
+            }
+        } catch (Exception e) {
+            notifier.accept("File transfer with " + sender + " failed: " + e.getMessage());
+        }
+    }
+
+    private void onOffer(String sender, ByteBuffer body) {
+        long id = body.getLong();
+        long size = body.getLong();
+        byte[] nameBytes = new byte[body.remaining()];
+        body.get(nameBytes);
+        String name = safeFileName(new String(nameBytes, StandardCharsets.UTF_8));
+
+        IncomingTransfer existing = incoming.get(id);
+        if (existing != null) {
+            if (existing.username.equals(sender) && existing.isAccepted()) {
+                sendAck(existing, existing.nextChunk()); // The sender restarted; tell it where to resume
+            }
+            return;
+        }
+        Path partFile = downloadDirectory.resolve(Long.toHexString(id) + ".part");
+        incoming.put(id, new IncomingTransfer(id, sender, name, size, partFile, buffers));
+        notifier.accept("'" + sender + "' wants to send '" + name + "' (" + formatSize(size) + "). "
+                + "Type 'getfile " + sender + "' to accept.");
+    }
+
+    private void onAck(String sender, long id, int nextChunk) {
+        OutgoingTransfer transfer = outgoing.get(id);
+        if (transfer == null || !transfer.username.equals(sender)) {
+            return;
+        }
+        if (transfer.onAck(nextChunk)) {
+            notifier.accept("'" + sender + "' accepted '" + transfer.path.getFileName() + "'"
+                    + (nextChunk > 0 ? ", resuming at " + percent(nextChunk, transfer.chunkCount) + "." : "."));
+            workers.execute(transfer);
+        }
+    }
+
+    private void onChunk(String sender, long id, int index, byte[] content) throws IOException {
+        IncomingTransfer transfer = incoming.get(id);
+        if (transfer == null || !transfer.username.equals(sender)) {
+            return;
+        }
+        int ack = transfer.write(index, content, CHUNK_HEADER_LENGTH, content.length - CHUNK_HEADER_LENGTH);
+        if (ack < 0) {
+            return;
+        }
+        if (transfer.isComplete()) {
+            finish(transfer);
+        }
+        sendAck(transfer, ack);
+    }
+
+    private void finish(IncomingTransfer transfer) throws IOException {
+        if (!incoming.remove(transfer.id, transfer)) {
+            return;
+        }
+        Path target = availableTarget(transfer.fileName);
+        transfer.finish(target);
+        notifier.accept("Received '" + target.getFileName() + "' from " + transfer.username + " (saved in " + downloadDirectory + ").");
+    }
+
+    private void sendAck(IncomingTransfer transfer, int nextChunk) {
+        ByteBuffer ack = ByteBuffer.allocate(8 + 4).putLong(transfer.id).putInt(nextChunk);
+        channel.send(transfer.username, Message.MessageType.FILE_ACK, ack.array());
+    }
+
+    void completed(OutgoingTransfer transfer) {
+        outgoing.remove(transfer.id, transfer);
+        notifier.accept("Sent '" + transfer.path.getFileName() + "' to " + transfer.username + ".");
+    }
+
+    void failed(OutgoingTransfer transfer, Exception e) {
+        outgoing.remove(transfer.id, transfer);
+        notifier.accept("Sending '" + transfer.path.getFileName() + "' to " + transfer.username + " failed: "
+                + e.getMessage() + ". Send it again to resume.");
+    }
+
+    /* One line per transfer in progress or waiting to be accepted. */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        outgoing.values().forEach(transfer -> lines.add("-> " + transfer.username + ": " + transfer.path.getFileName()
+                + " (" + formatSize(transfer.size) + ", " + percent(transfer.acked(), transfer.chunkCount) + ")"));
+        incoming.values().forEach(transfer -> lines.add("<- " + transfer.username + ": " + transfer.fileName
+                + " (" + formatSize(transfer.size) + ", "
+                + (transfer.isAccepted() ? percent(transfer.nextChunk(), transfer.chunkCount) : "waiting for 'getfile " + transfer.username + "'")
+                + ")"));
+        return lines;
+    }
+
+    public void close() {
+        workers.shutdownNow();
+        incoming.values().forEach(IncomingTransfer::close);
+    }
+
+    private Path availableTarget(String fileName) throws IOException {
+        Files.createDirectories(downloadDirectory);
+        Path target = downloadDirectory.resolve(fileName);
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        for (int i = 1; Files.exists(target); i++) {
+            target = downloadDirectory.resolve(base + " (" + i + ")" + extension);
+        }
+        return target;
+    }
+
+    // Offered names come from the network: keep only a plain file name.
+    private static String safeFileName(String name) {
+        String cleaned = name.replaceAll("[\\\\/:\\p{Cntrl}]", "_").trim();
+        if (cleaned.isEmpty() || cleaned.equals(".") || cleaned.equals("..")) {
+            return "file";
+        }
+        return cleaned;
+    }
+
+    private static long transferId(String username, Path path, long size, long modified) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((username + "\n" + path + "\n" + size + "\n" + modified).getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    private static String percent(int done, int total) {
+        return (total == 0 ? 100 : done * 100L / total) + "%";
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+}
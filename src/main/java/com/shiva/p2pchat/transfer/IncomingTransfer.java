@@ -0,0 +1,104 @@
+package com.shiva.p2pchat.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Receiving side of one file transfer. Chunks are written in order into a
+ .part file named after the transfer id; accepting an offer whose .part file
+ already exists resumes after the last complete chunk. */
+class IncomingTransfer {
+
+    private static final int ACK_EVERY = 2;
+
+    final long id;
+    final String username;
+    final String fileName;
+    final long size;
+    final int chunkCount;
+    private final Path partFile;
+    private final BufferPool buffers;
+    private FileChannel file; // Null until accepted
+    private int nextChunk = 0;
+
+    IncomingTransfer(long id, String username, String fileName, long size, Path partFile, BufferPool buffers) {
+        this.id = id;
+        this.username = username;
+        this.fileName = fileName;
+        this.size = size;
+        this.chunkCount = FileTransferManager.chunkCount(size);
+        this.partFile = partFile;
+        this.buffers = buffers;
+    }
+
+    synchronized boolean isAccepted() {
+        return file != null;
+    }
+
+    synchronized int nextChunk() {
+        return nextChunk;
+    }
+
+    /* Opens the .part file and returns the first chunk still needed. */
+    synchronized int accept() throws IOException {
+        if (file == null) {
+            Files.createDirectories(partFile.getParent());
+            file = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            nextChunk = (int) Math.min(chunkCount, file.size() / FileTransferManager.CHUNK_SIZE);
+            // Drop a partly written last chunk; it will be sent again.
+            file.truncate((long) nextChunk * FileTransferManager.CHUNK_SIZE);
+        }
+        return nextChunk;
+    }
+
+    /* Writes the chunk if it is the next one expected. Returns the next
+     expected chunk when an acknowledgement is due, or -1 if none is. */
+    synchronized int write(int index, byte[] content, int offset, int length) throws IOException {
+        if (file == null) {
+            return -1;
+        }
+        if (index != nextChunk) {
+            // A resend of something we already have, or a gap after a lost chunk.
+            return index < nextChunk ? nextChunk : -1;
+        }
+        long expected = Math.min(FileTransferManager.CHUNK_SIZE, size - (long) index * FileTransferManager.CHUNK_SIZE);
+        if (length != expected) {
+            throw new IOException("chunk " + index + " has the wrong size");
+        }
+        ByteBuffer buffer = buffers.acquire();
+        try {
+            buffer.put(content, offset, length).flip();
+            long position = (long) index * FileTransferManager.CHUNK_SIZE;
+            while (buffer.hasRemaining()) {
+                position += file.write(buffer, position);
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+        nextChunk++;
+        return nextChunk == chunkCount || nextChunk % ACK_EVERY == 0 ? nextChunk : -1;
+    }
+
+    synchronized boolean isComplete() {
+        return file != null && nextChunk == chunkCount;
+    }
+
+    /* Flushes the finished file and moves it to target. */
+    synchronized void finish(Path target) throws IOException {
+        file.force(false);
+        file.close();
+        Files.move(partFile, target);
+    }
+
+    synchronized void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
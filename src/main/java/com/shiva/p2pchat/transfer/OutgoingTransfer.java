@@ -0,0 +1,134 @@
+package com.shiva.p2pchat.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.shiva.p2pchat.model.Message;
+
+/* Sending side of one file transfer. Chunks are read straight from the file
+ into pooled buffers and sent with at most WINDOW chunks unacknowledged, so
+ memory use does not depend on the file size. If acknowledgements stop,
+ sending goes back to the last acknowledged chunk. */
+class OutgoingTransfer implements Runnable {
+
+    private static final int WINDOW = 8;
+    private static final long STALL_TIMEOUT_MS = 5000;
+    private static final int MAX_STALLS = 6;
+
+    final long id;
+    final String username;
+    final Path path;
+    final long size;
+    final int chunkCount;
+    private final TransferChannel channel;
+    private final BufferPool buffers;
+    private final FileTransferManager manager;
+
+    // A lock rather than synchronized: the send loop blocks while holding it.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    private int acked = 0;
+    private int nextToSend = 0;
+    private boolean started = false;
+
+    OutgoingTransfer(long id, String username, Path path, long size, TransferChannel channel,
+                     BufferPool buffers, FileTransferManager manager) {
+        this.id = id;
+        this.username = username;
+        this.path = path;
+        this.size = size;
+        this.chunkCount = FileTransferManager.chunkCount(size);
+        this.channel = channel;
+        this.buffers = buffers;
+        this.manager = manager;
+    }
+
+    /* Records the receiver's next expected chunk. Returns true if the send loop
+     should be started, which happens on the first acknowledgement (acceptance). */
+    boolean onAck(int nextChunk) {
+        lock.lock();
+        try {
+            if (nextChunk > acked || !started) {
+                acked = Math.min(Math.max(acked, nextChunk), chunkCount);
+                nextToSend = Math.max(nextToSend, acked);
+                progress.signalAll();
+            }
+            boolean start = !started;
+            started = true;
+            return start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int acked() {
+        lock.lock();
+        try {
+            return acked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            int stalls = 0;
+            lock.lock();
+            try {
+                while (acked < chunkCount) {
+                    if (nextToSend < chunkCount && nextToSend - acked < WINDOW) {
+                        int index = nextToSend++;
+                        lock.unlock();
+                        try {
+                            sendChunk(file, index);
+                        } finally {
+                            lock.lock();
+                        }
+                        continue;
+                    }
+                    int before = acked;
+                    progress.await(STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if (acked > before) {
+                        stalls = 0;
+                    } else if (++stalls > MAX_STALLS) {
+                        throw new IOException("receiver stopped responding");
+                    } else {
+                        nextToSend = acked; // Go back and resend everything unacknowledged
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            manager.completed(this);
+        } catch (Exception e) {
+            manager.failed(this, e);
+        }
+    }
+
+    private void sendChunk(FileChannel file, int index) throws IOException {
+        ByteBuffer buffer = buffers.acquire();
+        try {
+            long position = (long) index * FileTransferManager.CHUNK_SIZE;
+            buffer.limit((int) Math.min(FileTransferManager.CHUNK_SIZE, size - position));
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("file changed while sending");
+                }
+            }
+            buffer.flip();
+            byte[] content = new byte[FileTransferManager.CHUNK_HEADER_LENGTH + buffer.remaining()];
+            ByteBuffer.wrap(content).putLong(id).putInt(index).put(buffer);
+            // Lost chunks are resent after a stall, so a failed send needs no handling here.
+            channel.send(username, Message.MessageType.FILE_CHUNK, content);
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.shiva.p2pchat.transfer;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.shiva.p2pchat.model.Message;
+
+/* How the transfer engine reaches a peer: the node's outbound message path. */
+public interface TransferChannel {
+
+    CompletableFuture<Void> send(String username, Message.MessageType type, byte[] content);
+}
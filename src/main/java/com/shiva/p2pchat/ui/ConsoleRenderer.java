@@ -0,0 +1,204 @@
+package com.shiva.p2pchat.ui;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/* Writes everything that arrives from the network to the console, on one
+ thread of its own. Network threads only queue an event and return, so a
+ burst of incoming messages never waits on the console or on whatever the
+ user's command is printing.
+
+ The renderer takes an event, then keeps collecting while more arrive within
+ LINGER_MS, up to MAX_BATCH, and writes the whole batch with one print under
+ the print lock. Within a batch, requests are counted per sender ("12 new
+ requests from 'bob'") and joins and leaves are listed on one line each; the
+ prompt is printed once at the end instead of after every line. If the queue
+ is full the event is dropped and counted rather than blocking the sender;
+ messages are already in the history or inbox by the time they are shown.
+
+ stop() queues a marker behind everything already queued and waits (up to
+ STOP_TIMEOUT_MS, without holding the print lock) for the renderer to write
+ the rest and end, so the last events are on screen before the process exits. */
+public class ConsoleRenderer implements Runnable {
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int MAX_BATCH = 512;
+    private static final long LINGER_MS = 20;
+    private static final int MAX_NAMES = 3; // Per presence line before "and N others"
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private enum Kind { HEADER, SYSTEM, ERROR, CHAT, NOTICE, REQUEST, JOINED, LEFT }
+
+    private static class Event {
+        final Kind kind;
+        final String user;
+        final String text;
+
+        Event(Kind kind, String user, String text) {
+            this.kind = kind;
+            this.user = user;
+            this.text = text;
+        }
+    }
+
+    private static final Event STOP = new Event(Kind.SYSTEM, null, null);
+
+    private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final Object printLock;
+    private final Supplier<String> prompt;
+    private volatile boolean running = true;
+    private boolean finished = false; // Guarded by printLock
+
+    /* prompt gives the prompt to show after each batch, or null for none (headless). */
+    public ConsoleRenderer(Object printLock, Supplier<String> prompt) {
+        this.printLock = printLock;
+        this.prompt = prompt;
+    }
+
+    public void header(String title) { enqueue(Kind.HEADER, null, title); }
+
+    public void system(String message) { enqueue(Kind.SYSTEM, null, message); }
+
+    public void error(String message) { enqueue(Kind.ERROR, null, message); }
+
+    public void chat(String user, String message) { enqueue(Kind.CHAT, user, message); }
+
+    /* Something the user should act on, such as a file offer. */
+    public void notice(String message) { enqueue(Kind.NOTICE, null, message); }
+
+    public void request(String fromUser) { enqueue(Kind.REQUEST, fromUser, null); }
+
+    public void joined(String user) { enqueue(Kind.JOINED, user, null); }
+
+    public void left(String user) { enqueue(Kind.LEFT, user, null); }
+
+    private void enqueue(Kind kind, String user, String text) {
+        if (!queue.offer(new Event(kind, user, text))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Event> batch = new ArrayList<>();
+        try {
+            boolean stopping = false;
+            while (!stopping) {
+                batch.add(queue.take());
+                Event next;
+                while (batch.size() < MAX_BATCH && !batch.contains(STOP)
+                        && (next = queue.poll(LINGER_MS, TimeUnit.MILLISECONDS)) != null) {
+                    batch.add(next);
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                }
+                stopping = batch.remove(STOP) || !running;
+                if (stopping) {
+                    queue.drainTo(batch); // Whatever is left, in one last batch
+                    batch.remove(STOP);
+                }
+                if (!batch.isEmpty()) {
+                    String output = render(batch);
+                    synchronized (printLock) {
+                        System.out.print(output + (prompt == null || stopping ? "" : prompt.get()));
+                        System.out.flush();
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stopping without a flush
+        } finally {
+            synchronized (printLock) {
+                finished = true;
+                printLock.notifyAll();
+            }
+        }
+    }
+
+    /* May be called with the print lock held; waiting releases it so the
+     renderer can write what is left. */
+    public void stop() {
+        running = false;
+        queue.offer(STOP); // If the queue is full the renderer is not waiting and sees running instead
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+        synchronized (printLock) {
+            long remaining;
+            while (!finished && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    printLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private String render(List<Event> batch) {
+        StringBuilder out = new StringBuilder();
+        Map<String, Integer> requests = new LinkedHashMap<>();
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Event event : batch) {
+            switch (event.kind) {
+                case HEADER:
+                    out.append(UI.formatHeader(event.text));
+                    break;
+                case SYSTEM:
+                    out.append(UI.formatSystem(event.text));
+                    break;
+                case ERROR:
+                    out.append(UI.formatError(event.text));
+                    break;
+                case CHAT:
+                    out.append(UI.formatChat(event.user, event.text));
+                    break;
+                case NOTICE:
+                    out.append(notification(event.text));
+                    break;
+                case REQUEST:
+                    requests.merge(event.user, 1, Integer::sum);
+                    break;
+                case JOINED:
+                    joined.add(event.user);
+                    break;
+                case LEFT:
+                    left.add(event.user);
+                    break;
+            }
+        }
+        if (!joined.isEmpty()) {
+            out.append(UI.formatSystem(names(joined) + " joined the network."));
+        }
+        if (!left.isEmpty()) {
+            out.append(UI.formatSystem(names(left) + " left the network."));
+        }
+        String hint = prompt == null ? "" : " Type 'requests' to view.";
+        requests.forEach((user, count) -> out.append(notification(
+                (count == 1 ? "New request" : count + " new requests") + " from '" + user + "'." + hint)));
+        int lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            out.append(UI.formatSystem(lost + " updates were not shown; see 'requests' and 'history'."));
+        }
+        return out.toString();
+    }
+
+    private String notification(String message) {
+        return prompt == null ? UI.formatSystem(message) : UI.formatNotification(message);
+    }
+
+    private static String names(List<String> users) {
+        if (users.size() <= MAX_NAMES) {
+            return String.join(", ", users);
+        }
+        return String.join(", ", users.subList(0, MAX_NAMES)) + " and " + (users.size() - MAX_NAMES) + " others";
+    }
+}
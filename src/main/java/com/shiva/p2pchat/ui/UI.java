@@ -14,30 +14,52 @@ public class UI {
     public static final String WHITE = "\u001B[37m";
 
     // Prompts
-    public static final String MAIN_PROMPT = BOLD + CYAN + "\n(online | requests | chat <user> <msg> | exit) > " + RESET;
+    public static final String MAIN_PROMPT = BOLD + CYAN + "\n(online | requests | chat <user> <msg> | history <user> [page] |\n sendfile <user> <path> | getfile <user> | files |\n group <name> <users> | gchat <group> <msg> | groups | stats | exit) > " + RESET;
     public static final String INBOX_PROMPT = BOLD + CYAN + "\n(accept <user> | read <user> | back) > " + RESET;
     public static final String CHAT_PROMPT = CYAN + "You: " + RESET;
 
     public static void printHeader(String title) {
-        String line = "=================================================";
-        System.out.println(BOLD + PURPLE + line + RESET);
-        System.out.println(BOLD + PURPLE + "=== " + WHITE + title + PURPLE + " ===" + RESET);
-        System.out.println(BOLD + PURPLE + line + RESET);
+        System.out.print(formatHeader(title));
     }
 
     public static void printSystem(String message) {
-        System.out.println(YELLOW + "[SYSTEM] " + message + RESET);
+        System.out.print(formatSystem(message));
     }
 
     public static void printError(String message) {
-        System.out.println(BOLD + RED + "[ERROR] " + message + RESET);
+        System.out.print(formatError(message));
     }
 
     public static void printChat(String user, String message) {
-        System.out.println(BOLD + GREEN + "\n[" + user + "]: " + RESET + WHITE + message + RESET);
+        System.out.print(formatChat(user, message));
     }
     
     public static void printNotification(String message) {
-        System.out.print("\r" + YELLOW + "[!] " + message + RESET + "\n" + MAIN_PROMPT);
+        System.out.print(formatNotification(message) + MAIN_PROMPT);
+    }
+
+    // The same output as text, for ConsoleRenderer to write in batches.
+
+    public static String formatHeader(String title) {
+        String line = "=================================================";
+        return BOLD + PURPLE + line + RESET + "\n"
+                + BOLD + PURPLE + "=== " + WHITE + title + PURPLE + " ===" + RESET + "\n"
+                + BOLD + PURPLE + line + RESET + "\n";
+    }
+
+    public static String formatSystem(String message) {
+        return YELLOW + "[SYSTEM] " + message + RESET + "\n";
+    }
+
+    public static String formatError(String message) {
+        return BOLD + RED + "[ERROR] " + message + RESET + "\n";
+    }
+
+    public static String formatChat(String user, String message) {
+        return BOLD + GREEN + "\n[" + user + "]: " + RESET + WHITE + message + RESET + "\n";
+    }
+
+    public static String formatNotification(String message) {
+        return "\r" + YELLOW + "[!] " + message + RESET + "\n";
     }
 }
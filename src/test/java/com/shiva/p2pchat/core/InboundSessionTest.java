@@ -0,0 +1,115 @@
+package com.shiva.p2pchat.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.shiva.p2pchat.model.Message;
+
+class InboundSessionTest {
+
+    private final InboundDispatcher dispatcher = new InboundDispatcher(Executors.newFixedThreadPool(4));
+
+    @AfterEach
+    void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void eachSenderIsHandledInOrder() throws InterruptedException {
+        String[] senders = {"alice", "bob", "carol"};
+        int perSender = 2000;
+        Map<String, List<Integer>> handled = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(senders.length * perSender);
+        List<InboundSession> sessions = new ArrayList<>();
+        for (String sender : senders) {
+            handled.put(sender, new ArrayList<>()); // Only ever touched by the worker draining that sender
+            sessions.add(new InboundSession(dispatcher, message -> {
+                handled.get(message.getSenderUsername()).add(ByteBuffer.wrap(message.getEncryptedContent()).getInt());
+                done.countDown();
+            }));
+        }
+
+        for (int i = 0; i < perSender; i++) {
+            for (int s = 0; s < senders.length; s++) {
+                InboundSession session = sessions.get(s);
+                session.awaitCapacity();
+                session.submit(message(senders[s], i));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (String sender : senders) {
+            List<Integer> order = handled.get(sender);
+            assertEquals(perSender, order.size(), sender);
+            for (int i = 0; i < perSender; i++) {
+                assertEquals(i, order.get(i), sender + " message " + i);
+            }
+        }
+    }
+
+    @Test
+    void fullSessionHoldsTheReaderUntilWorkDrains() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        InboundSession session = new InboundSession(dispatcher, message -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < InboundSession.MAX_QUEUED; i++) {
+            assertFalse(session.isFull(), "full after " + i);
+            session.submit(message("alice", i));
+        }
+        assertTrue(session.isFull());
+
+        CountDownLatch readerResumed = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try {
+                session.awaitCapacity();
+                readerResumed.countDown();
+            } catch (InterruptedException e) {
+                // Test failed already
+            }
+        });
+        reader.start();
+        CountDownLatch nioResumed = new CountDownLatch(1);
+        session.resumeWhenDrained(nioResumed::countDown);
+
+        assertFalse(readerResumed.await(200, TimeUnit.MILLISECONDS), "reader went on while full");
+        assertEquals(1, nioResumed.getCount());
+
+        release.countDown();
+        assertTrue(readerResumed.await(5, TimeUnit.SECONDS));
+        assertTrue(nioResumed.await(5, TimeUnit.SECONDS));
+        reader.join();
+    }
+
+    @Test
+    void drainedSessionResumesAtOnce() {
+        InboundSession session = new InboundSession(dispatcher, message -> { });
+        AtomicBoolean resumed = new AtomicBoolean();
+
+        session.resumeWhenDrained(() -> resumed.set(true));
+
+        assertTrue(resumed.get());
+    }
+
+    private static Message message(String sender, int index) {
+        return new Message(Message.MessageType.CHAT, sender, ByteBuffer.allocate(4).putInt(index).array());
+    }
+}
@@ -0,0 +1,127 @@
+package com.shiva.p2pchat.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.model.Message;
+
+class OutboundQueueTest {
+
+    private final RecordingConnections connections = new RecordingConnections();
+    private final OutboundQueue queue = new OutboundQueue(connections, Executors.newFixedThreadPool(4));
+
+    @AfterEach
+    void shutdown() {
+        queue.shutdown();
+        connections.closeAll();
+    }
+
+    @Test
+    void eachPeerGetsItsMessagesInOrder() throws Exception {
+        List<PeerDiscovery.DiscoveredPeer> peers = List.of(peer(9001), peer(9002), peer(9003));
+        int perPeer = 1000;
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+
+        for (int i = 0; i < perPeer; i++) {
+            for (PeerDiscovery.DiscoveredPeer peer : peers) {
+                sent.add(queue.send(peer, Message.MessageType.CHAT, content(i)));
+            }
+        }
+
+        CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        for (PeerDiscovery.DiscoveredPeer peer : peers) {
+            List<Integer> written = connections.written.get(peer.getId());
+            assertEquals(perPeer, written.size(), peer.getId());
+            for (int i = 0; i < perPeer; i++) {
+                assertEquals(i, written.get(i), peer.getId() + " message " + i);
+            }
+        }
+        assertTrue(connections.maxConcurrent.get() > 1, "peers should be served in parallel");
+    }
+
+    @Test
+    void failedWriteFailsOnlyItsOwnMessage() throws Exception {
+        PeerDiscovery.DiscoveredPeer peer = peer(9001);
+        connections.failing = 2;
+
+        CompletableFuture<Void> first = queue.send(peer, Message.MessageType.CHAT, content(1));
+        CompletableFuture<Void> failed = queue.send(peer, Message.MessageType.CHAT, content(2));
+        CompletableFuture<Void> third = queue.send(peer, Message.MessageType.CHAT, content(3));
+
+        third.get(5, TimeUnit.SECONDS);
+        first.get(5, TimeUnit.SECONDS);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertSame(RecordingConnections.FAILURE, e.getCause());
+        assertEquals(List.of(1, 3), connections.written.get(peer.getId()));
+    }
+
+    @Test
+    void peerCanBeSentToAgainAfterItsQueueDrains() throws Exception {
+        PeerDiscovery.DiscoveredPeer peer = peer(9001);
+        queue.send(peer, Message.MessageType.CHAT, content(1)).get(5, TimeUnit.SECONDS);
+        Thread.sleep(50); // Let the drained queue retire
+
+        queue.send(peer, Message.MessageType.CHAT, content(2)).get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of(1, 2), connections.written.get(peer.getId()));
+    }
+
+    private static PeerDiscovery.DiscoveredPeer peer(int port) {
+        return new PeerDiscovery.DiscoveredPeer("10.0.0.1", port, null);
+    }
+
+    private static byte[] content(int index) {
+        return ByteBuffer.allocate(4).putInt(index).array();
+    }
+
+    /* Records what each peer was sent instead of connecting anywhere. */
+    private static class RecordingConnections extends ConnectionManager {
+        static final IOException FAILURE = new IOException("connection reset");
+
+        final Map<String, List<Integer>> written = new ConcurrentHashMap<>();
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        volatile int failing = -1;
+
+        RecordingConnections() {
+            super("alice");
+        }
+
+        @Override
+        public void send(PeerDiscovery.DiscoveredPeer peer, Message.MessageType type, byte[] content) throws Exception {
+            int now = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(now, Math::max);
+            try {
+                int index = ByteBuffer.wrap(content).getInt();
+                if (index == failing) {
+                    throw FAILURE;
+                }
+                if (index % 100 == 0) {
+                    Thread.sleep(1); // Give other peers' workers a chance to overlap
+                }
+                // One worker per peer at a time, so no lock is needed for its list.
+                written.computeIfAbsent(peer.getId(), id -> new ArrayList<>()).add(index);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.shiva.p2pchat.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.Test;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+
+class TicketIssuerTest {
+
+    private final TicketIssuer issuer = new TicketIssuer();
+
+    @Test
+    void bothSidesDeriveTheSameKey() throws Exception {
+        SecretKey secret = CryptoUtils.generateSessionKey();
+        byte[] ticket = issuer.issue("alice", secret);
+        byte[] senderNonce = InboundSession.newResumeNonce();
+        byte[] receiverNonce = InboundSession.newResumeNonce();
+
+        SecretKey redeemed = issuer.redeem("alice", ticket, senderNonce, receiverNonce);
+
+        assertArrayEquals(CryptoUtils.deriveSessionKey(secret, senderNonce, receiverNonce).getEncoded(), redeemed.getEncoded());
+    }
+
+    @Test
+    void replayedResumeGetsAnotherKey() throws Exception {
+        byte[] ticket = issuer.issue("alice", CryptoUtils.generateSessionKey());
+        byte[] senderNonce = InboundSession.newResumeNonce();
+
+        // The same SESSION_RESUME twice, as a replay would send it; each time
+        // the receiver picks a fresh nonce of its own.
+        SecretKey first = issuer.redeem("alice", ticket, senderNonce, InboundSession.newResumeNonce());
+        SecretKey replayed = issuer.redeem("alice", ticket, senderNonce, InboundSession.newResumeNonce());
+
+        assertFalse(Arrays.equals(first.getEncoded(), replayed.getEncoded()));
+    }
+
+    @Test
+    void ticketsRedeemOnlyForTheirPeer() throws Exception {
+        byte[] ticket = issuer.issue("alice", CryptoUtils.generateSessionKey());
+        byte[] nonce = InboundSession.newResumeNonce();
+
+        assertNull(issuer.redeem("mallory", ticket, nonce, nonce));
+        byte[] tampered = ticket.clone();
+        tampered[tampered.length - 1] ^= 1;
+        assertNull(issuer.redeem("alice", tampered, nonce, nonce));
+        assertNull(new TicketIssuer().redeem("alice", ticket, nonce, nonce));
+    }
+}
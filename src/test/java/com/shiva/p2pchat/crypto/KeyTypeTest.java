@@ -0,0 +1,33 @@
+package com.shiva.p2pchat.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.junit.jupiter.api.Test;
+
+class KeyTypeTest {
+
+    @Test
+    void recognisesTheKeysNodesUse() throws Exception {
+        KeyPair rsa = CryptoUtils.generateKeyPair(KeyType.RSA);
+        KeyPair x25519 = CryptoUtils.generateKeyPair(KeyType.X25519);
+
+        assertEquals(KeyType.RSA, KeyType.of(rsa.getPublic()));
+        assertEquals(KeyType.RSA, KeyType.of(rsa.getPrivate()));
+        assertEquals(KeyType.X25519, KeyType.of(x25519.getPublic()));
+        assertEquals(KeyType.X25519, KeyType.of(x25519.getPrivate()));
+        assertEquals(KeyType.X25519, KeyType.of(KeyPairGenerator.getInstance("X25519").generateKeyPair().getPublic()));
+    }
+
+    @Test
+    void refusesOtherKinds() throws Exception {
+        for (String algorithm : new String[] {"EC", "DSA", "X448"}) {
+            KeyPair pair = KeyPairGenerator.getInstance(algorithm).generateKeyPair();
+            assertThrows(IllegalArgumentException.class, () -> KeyType.of(pair.getPublic()), algorithm);
+            assertThrows(IllegalArgumentException.class, () -> KeyType.of(pair.getPrivate()), algorithm);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.shiva.p2pchat.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class BeaconScheduleTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final BeaconSchedule schedule = new BeaconSchedule(now::get);
+
+    @Test
+    void intervalGrowsWithTheLanAndIsClamped() {
+        assertEquals(BeaconSchedule.MIN_INTERVAL_MS, schedule.interval(0));
+        assertEquals(BeaconSchedule.MIN_INTERVAL_MS, schedule.interval(19));
+        assertEquals(10_000, schedule.interval(39));
+        assertEquals(BeaconSchedule.MAX_INTERVAL_MS, schedule.interval(119));
+        assertEquals(BeaconSchedule.MAX_INTERVAL_MS, schedule.interval(10_000));
+    }
+
+    @Test
+    void churnHalvesTheIntervalForAWhile() {
+        schedule.changed();
+        assertEquals(10_000, schedule.interval(79));
+        assertEquals(BeaconSchedule.MIN_INTERVAL_MS, schedule.interval(39)); // Halving does not go below the floor
+
+        now.addAndGet(BeaconSchedule.CHURN_WINDOW_MS - 1);
+        assertEquals(10_000, schedule.interval(79));
+        now.incrementAndGet();
+        assertEquals(20_000, schedule.interval(79));
+    }
+
+    @Test
+    void jitterStaysWithinItsBounds() {
+        long interval = 20_000;
+        long low = (long) (interval * (1 - BeaconSchedule.JITTER));
+        long high = (long) (interval * (1 + BeaconSchedule.JITTER));
+
+        assertEquals(low, BeaconSchedule.jittered(interval, 0));
+        assertEquals(interval, BeaconSchedule.jittered(interval, 0.5));
+        assertTrue(BeaconSchedule.jittered(interval, Math.nextDown(1.0)) <= high);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 10_000; i++) {
+            long wait = BeaconSchedule.jittered(interval);
+            min = Math.min(min, wait);
+            max = Math.max(max, wait);
+        }
+        assertTrue(min >= low && max <= high, min + ".." + max);
+        // Spread over most of the range, so nodes that start together drift apart.
+        assertTrue(max - min > (high - low) * 9 / 10, min + ".." + max);
+    }
+}
@@ -0,0 +1,125 @@
+package com.shiva.p2pchat.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.shiva.p2pchat.model.Contact;
+
+class ContactStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private final long now = System.currentTimeMillis();
+
+    @Test
+    void savedContactsLoadBackMostRecentFirst() throws IOException {
+        ContactStore store = new ContactStore(directory.resolve("contacts.bin"));
+        store.save(List.of(contact("alice", 3000), contact("bob", 1000), contact("carol", 2000)));
+
+        List<Contact> loaded = store.load();
+
+        assertEquals(List.of("bob", "carol", "alice"), usernames(loaded));
+        Contact bob = loaded.get(0);
+        assertEquals("192.168.1.2", bob.getIpAddress());
+        assertEquals(port("bob"), bob.getPort());
+        assertEquals(now - 1000, bob.getLastSeen());
+        assertEquals(key("bob"), bob.getPublicKeyString());
+        assertNull(bob.getPublicKey());
+    }
+
+    @Test
+    void onlyTheMostRecentContactsAreKept() throws IOException {
+        ContactStore store = new ContactStore(directory.resolve("contacts.bin"));
+        List<Contact> contacts = new ArrayList<>();
+        for (int i = 0; i < ContactStore.MAX_CONTACTS + 10; i++) {
+            contacts.add(contact("user" + i, i * 1000L));
+        }
+        store.save(contacts);
+
+        List<Contact> loaded = store.load();
+
+        assertEquals(ContactStore.MAX_CONTACTS, loaded.size());
+        assertEquals("user0", loaded.get(0).getUsername());
+        assertEquals("user" + (ContactStore.MAX_CONTACTS - 1), loaded.get(loaded.size() - 1).getUsername());
+    }
+
+    @Test
+    void contactsOlderThanTheMaximumAgeAreDropped() throws IOException {
+        ContactStore store = new ContactStore(directory.resolve("contacts.bin"));
+        store.save(List.of(contact("alice", 1000), contact("bob", ContactStore.MAX_AGE_MS + 60_000)));
+
+        assertEquals(List.of("alice"), usernames(store.load()));
+    }
+
+    @Test
+    void truncatedFileKeepsTheContactsReadBeforeTheDamage() throws IOException {
+        Path file = directory.resolve("contacts.bin");
+        ContactStore store = new ContactStore(file);
+        store.save(List.of(contact("alice", 1000), contact("bob", 2000), contact("carol", 3000)));
+        byte[] full = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(full, full.length - 5)); // Cuts into carol's key
+
+        assertEquals(List.of("alice", "bob"), usernames(store.load()));
+
+        // The next save starts the file over.
+        store.save(List.of(contact("dave", 500)));
+        assertEquals(List.of("dave"), usernames(store.load()));
+    }
+
+    @Test
+    void unreadableFilesLoadNothing() throws IOException {
+        Path file = directory.resolve("contacts.bin");
+        ContactStore store = new ContactStore(file);
+        assertTrue(store.load().isEmpty(), "missing file");
+
+        Files.write(file, "not a contact file".getBytes(StandardCharsets.UTF_8));
+        assertTrue(store.load().isEmpty(), "wrong magic");
+
+        Files.write(file, new byte[] {0x50, 0x32});
+        assertTrue(store.load().isEmpty(), "shorter than the header");
+    }
+
+    @Test
+    void saveReplacesTheFileAndLeavesNoTemporary() throws IOException {
+        Path file = directory.resolve("nested/contacts.bin");
+        ContactStore store = new ContactStore(file);
+        store.save(List.of(contact("alice", 1000)));
+        store.save(List.of(contact("bob", 1000)));
+
+        assertEquals(List.of("bob"), usernames(store.load()));
+        assertFalse(Files.exists(file.resolveSibling("contacts.bin.tmp")));
+    }
+
+    private Contact contact(String username, long age) {
+        return new Contact(username, "192.168.1." + (username.charAt(0) - 'a' + 1), port(username), null, key(username), now - age);
+    }
+
+    private static int port(String username) {
+        return 9000 + Math.abs(username.hashCode() % 1000);
+    }
+
+    private static String key(String username) {
+        return Base64.getEncoder().encodeToString(("key of " + username).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> usernames(List<Contact> contacts) {
+        List<String> usernames = new ArrayList<>();
+        contacts.forEach(contact -> usernames.add(contact.getUsername()));
+        return usernames;
+    }
+}
@@ -0,0 +1,87 @@
+package com.shiva.p2pchat.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+class DiscoveryPacketTest {
+
+    private static final byte[] KEY = new byte[294]; // The size of an RSA-2048 X.509 key
+    private static final int NAME_LENGTH_OFFSET = 9;
+
+    @Test
+    void everyTypeRoundTrips() {
+        DiscoveryPacket beacon = decode(DiscoveryPacket.beacon(DiscoveryPacket.FLAG_RELAY, 5000, 12, "alice", "ab12cd"));
+        assertEquals(DiscoveryPacket.BEACON, beacon.type);
+        assertTrue(beacon.has(DiscoveryPacket.FLAG_RELAY));
+        assertEquals(5000, beacon.port);
+        assertEquals(12, beacon.intervalSeconds);
+        assertEquals("alice", beacon.username);
+        assertEquals("ab12cd", beacon.fingerprint);
+
+        Arrays.fill(KEY, (byte) 7);
+        DiscoveryPacket response = decode(DiscoveryPacket.keyResponse((byte) 0, 65535, 30, "bob", KEY));
+        assertEquals(DiscoveryPacket.KEY_RESPONSE, response.type);
+        assertEquals(65535, response.port);
+        assertEquals(Base64.getEncoder().encodeToString(KEY), response.keyString);
+
+        DiscoveryPacket request = decode(DiscoveryPacket.keyRequest("carol"));
+        assertEquals(DiscoveryPacket.KEY_REQUEST, request.type);
+        assertEquals("carol", request.username);
+    }
+
+    @Test
+    void truncatedPacketsDecodeToNull() {
+        byte[][] packets = {
+                DiscoveryPacket.beacon((byte) 0, 5000, 12, "alice", "ab12cd"),
+                DiscoveryPacket.keyResponse((byte) 0, 5000, 12, "alice", KEY),
+                DiscoveryPacket.keyRequest("alice"),
+        };
+        for (byte[] packet : packets) {
+            for (int cut = 0; cut < packet.length; cut++) {
+                assertNull(decode(Arrays.copyOf(packet, cut)), "type " + packet[3] + " cut at " + cut);
+            }
+        }
+    }
+
+    @Test
+    void lengthsPastTheEndDecodeToNull() {
+        byte[] beacon = DiscoveryPacket.beacon((byte) 0, 5000, 12, "alice", "ab12cd");
+        byte[] longName = beacon.clone();
+        longName[NAME_LENGTH_OFFSET] = (byte) 255;
+        assertNull(decode(longName));
+        byte[] longFingerprint = beacon.clone();
+        longFingerprint[NAME_LENGTH_OFFSET + 1 + 5] = 7;
+        assertNull(decode(longFingerprint));
+
+        byte[] response = DiscoveryPacket.keyResponse((byte) 0, 5000, 12, "alice", KEY);
+        ByteBuffer.wrap(response).putShort(NAME_LENGTH_OFFSET + 1 + 5, (short) 0xFFFF);
+        assertNull(decode(response));
+    }
+
+    @Test
+    void otherDatagramsDecodeToNull() {
+        byte[] beacon = DiscoveryPacket.beacon((byte) 0, 5000, 12, "alice", "ab12cd");
+        byte[] badMagic = beacon.clone();
+        badMagic[0] ^= 1;
+        byte[] badVersion = beacon.clone();
+        badVersion[2]++;
+        byte[] badType = beacon.clone();
+        badType[3] = 99;
+
+        assertNull(decode(badMagic));
+        assertNull(decode(badVersion));
+        assertNull(decode(badType));
+        assertNull(decode(new byte[0]));
+    }
+
+    private static DiscoveryPacket decode(byte[] datagram) {
+        return DiscoveryPacket.decode(ByteBuffer.wrap(datagram));
+    }
+}
@@ -0,0 +1,177 @@
+package com.shiva.p2pchat.group;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.model.Message;
+
+class GroupManagerTest {
+
+    private static final Map<String, KeyPair> KEYS = new ConcurrentHashMap<>();
+
+    private final Map<String, GroupManager> nodes = new ConcurrentHashMap<>();
+    private final Map<String, Group> joined = new ConcurrentHashMap<>();
+    private final List<Sent> sent = new ArrayList<>();
+
+    @BeforeAll
+    static void generateKeys() throws Exception {
+        for (String user : new String[] {"alice", "bob", "carol", "dave"}) {
+            KEYS.put(user, CryptoUtils.generateKeyPair());
+        }
+    }
+
+    @Test
+    void inviteGivesEveryMemberTheGroupKey() throws Exception {
+        GroupManager alice = node("alice");
+        node("bob");
+        node("carol");
+
+        alice.create("team", List.of("bob", "carol")).join();
+
+        Group created = alice.list().get(0);
+        assertEquals(List.of("alice", "bob", "carol"), created.getMembers());
+        for (String member : new String[] {"bob", "carol"}) {
+            Group group = joined.get(member);
+            assertEquals(created.getId(), group.getId(), member);
+            assertEquals("team", group.getName(), member);
+            assertEquals(created.getMembers(), group.getMembers(), member);
+            assertEquals(created.key, group.key, member);
+        }
+    }
+
+    @Test
+    void groupMessageIsSealedOnceAndOpenedByEveryMember() throws Exception {
+        GroupManager alice = node("alice");
+        node("bob");
+        node("carol");
+        alice.create("team", List.of("bob", "carol")).join();
+        sent.clear();
+
+        alice.send("team", "lunch at noon?").join();
+
+        assertEquals(2, sent.size());
+        assertSame(sent.get(0).content, sent.get(1).content, "one encryption for every member");
+        for (Sent message : sent) {
+            assertEquals(Message.MessageType.GROUP_CHAT, message.type);
+            GroupManager.GroupMessage opened = nodes.get(message.to).open(message.content);
+            assertEquals("alice", opened.getSender(), message.to);
+            assertEquals("lunch at noon?", opened.getText(), message.to);
+            assertEquals(joined.get(message.to), opened.getGroup(), message.to);
+        }
+    }
+
+    @Test
+    void onlyMembersCanOpenGroupMessages() throws Exception {
+        GroupManager alice = node("alice");
+        node("bob");
+        GroupManager dave = node("dave");
+        alice.create("team", List.of("bob")).join();
+        sent.clear();
+        alice.send("team", "members only").join();
+        byte[] content = sent.get(0).content;
+
+        assertNull(dave.open(content), "not in the group");
+
+        byte[] tampered = content.clone();
+        tampered[tampered.length - 1] ^= 1;
+        assertThrows(GeneralSecurityException.class, () -> nodes.get("bob").open(tampered));
+        assertThrows(IOException.class, () -> nodes.get("bob").open(new byte[8]));
+    }
+
+    @Test
+    void inviteMustListItsSenderAndTheRecipient() throws Exception {
+        GroupManager alice = node("alice");
+        GroupManager bob = node("bob");
+        node("carol");
+        alice.create("team", List.of("bob", "carol")).join();
+        byte[] invite = sent.stream().filter(message -> message.to.equals("bob")).findFirst().orElseThrow().content;
+
+        assertThrows(IOException.class, () -> bob.join("dave", invite));
+        assertThrows(IOException.class, () -> node("dave").join("alice", invite));
+        assertSame(joined.get("bob"), bob.join("alice", invite), "a repeated invite joins nothing new");
+        assertEquals(1, bob.list().size());
+    }
+
+    @Test
+    void invitedGroupWithATakenNameIsRenamed() throws Exception {
+        GroupManager alice = node("alice");
+        GroupManager bob = node("bob");
+        node("carol");
+        bob.create("team", List.of("carol")).join();
+
+        alice.create("team", List.of("bob")).join();
+
+        Group invited = joined.get("bob");
+        assertNotEquals("team", invited.getName());
+        assertTrue(invited.getName().startsWith("team-"), invited.getName());
+        assertEquals(2, bob.list().size());
+    }
+
+    @Test
+    void createRejectsBadNamesAndUnknownUsers() throws Exception {
+        GroupManager alice = node("alice");
+        node("bob");
+
+        assertThrows(IllegalArgumentException.class, () -> alice.create("two words", List.of("bob")));
+        assertThrows(IllegalArgumentException.class, () -> alice.create("solo", List.of()));
+        assertThrows(IllegalArgumentException.class, () -> alice.create("team", List.of("bob", "zoe")));
+        alice.create("team", List.of("bob")).join();
+        assertThrows(IllegalArgumentException.class, () -> alice.create("team", List.of("bob")));
+        assertThrows(IllegalArgumentException.class, () -> alice.send("other", "hello"));
+    }
+
+    /* A node whose invites are joined on arrival, as InboundSession does. */
+    private GroupManager node(String username) {
+        GroupChannel channel = (to, type, content) -> {
+            synchronized (sent) {
+                sent.add(new Sent(to, type, content));
+            }
+            GroupManager recipient = nodes.get(to);
+            if (type == Message.MessageType.GROUP_INVITE && recipient != null) {
+                try {
+                    joined.put(to, recipient.join(username, content));
+                } catch (Exception e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }
+            return CompletableFuture.completedFuture(null);
+        };
+        GroupManager manager = new GroupManager(username, channel, this::onlineKey, KEYS.get(username).getPrivate());
+        nodes.put(username, manager);
+        return manager;
+    }
+
+    private PublicKey onlineKey(String username) {
+        return nodes.containsKey(username) ? KEYS.get(username).getPublic() : null;
+    }
+
+    private static class Sent {
+        final String to;
+        final Message.MessageType type;
+        final byte[] content;
+
+        Sent(String to, Message.MessageType type, byte[] content) {
+            this.to = to;
+            this.type = type;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.shiva.p2pchat.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.function.LongSupplier;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsRegistryTest {
+
+    @Test
+    void gaugeSumsTheSourcesOfEveryNode() {
+        MetricsRegistry registry = new MetricsRegistry();
+        LongSupplier first = () -> 3;
+        LongSupplier second = () -> 4;
+
+        Gauge gauge = registry.gauge("inbox.depth", first);
+        registry.gauge("inbox.depth", second);
+        assertEquals(7, gauge.getValue());
+        assertTrue(registry.report().contains("inbox.depth = 7"));
+
+        registry.removeGauge("inbox.depth", first);
+        assertEquals(4, gauge.getValue());
+        registry.removeGauge("inbox.depth", second);
+        assertEquals(0, gauge.getValue());
+    }
+}
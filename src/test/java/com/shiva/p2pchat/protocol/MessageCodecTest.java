@@ -0,0 +1,151 @@
+package com.shiva.p2pchat.protocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.shiva.p2pchat.model.Message;
+
+class MessageCodecTest {
+
+    private final MessageEncoder encoder = new MessageEncoder();
+    private final MessageDecoder decoder = new MessageDecoder();
+
+    @Test
+    void everyTypeRoundTrips() throws IOException {
+        for (Message.MessageType type : Message.MessageType.values()) {
+            byte[] payload = new byte[type.getCode() * 7];
+            Arrays.fill(payload, type.getCode());
+            Message sent = new Message(type, Message.FLAG_COMPRESSED, "alice", payload, 1_700_000_000_000L + type.getCode());
+
+            Message received = decoder.read(stream(frame(sent)));
+
+            assertEquals(type, received.getType());
+            assertEquals(Message.FLAG_COMPRESSED, received.getFlags());
+            assertEquals("alice", received.getSenderUsername());
+            assertEquals(sent.getTimestamp(), received.getTimestamp());
+            assertArrayEquals(payload, received.getEncryptedContent());
+            assertEquals(frame(sent).length, decoder.lastFrameLength());
+        }
+    }
+
+    @Test
+    void framesFollowOneAnotherOnAStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encoder.write(new Message(Message.MessageType.CHAT, "alice", new byte[] {1}), bytes);
+        encoder.write(new Message(Message.MessageType.CHAT, "bob", new byte[] {2, 3}), bytes);
+        DataInputStream in = stream(bytes.toByteArray());
+
+        assertEquals("alice", decoder.read(in).getSenderUsername());
+        Message second = decoder.read(in);
+        assertEquals("bob", second.getSenderUsername());
+        assertArrayEquals(new byte[] {2, 3}, second.getEncryptedContent());
+    }
+
+    @Test
+    void largestFrameRoundTripsAndTheDecoderKeepsWorking() throws IOException {
+        byte[] chunk = new byte[64 * 1024 + 12 + 28];
+        new Random(1).nextBytes(chunk);
+        Message big = new Message(Message.MessageType.FILE_CHUNK, "alice", chunk);
+
+        assertArrayEquals(chunk, decoder.read(stream(frame(big))).getEncryptedContent());
+        Message small = new Message(Message.MessageType.CHAT, "alice", new byte[] {9});
+        assertArrayEquals(new byte[] {9}, decoder.read(stream(frame(small))).getEncryptedContent());
+    }
+
+    @Test
+    void truncatedFrameFails() {
+        byte[] frame = frame(new Message(Message.MessageType.CHAT, "alice", new byte[100]));
+        for (int cut : new int[] {2, 4, 10, frame.length - 1}) {
+            byte[] truncated = Arrays.copyOf(frame, cut);
+            assertThrows(EOFException.class, () -> decoder.read(stream(truncated)), "cut at " + cut);
+        }
+    }
+
+    @Test
+    void payloadLongerThanItsFrameIsRejected() {
+        byte[] frame = frame(new Message(Message.MessageType.CHAT, "alice", new byte[10]));
+        ByteBuffer body = ByteBuffer.wrap(frame, 4, frame.length - 4).slice();
+        body.putInt(body.limit() - 14, 11); // Payload length field, just ahead of the payload
+
+        assertThrows(IOException.class, () -> decoder.decode(body));
+    }
+
+    @Test
+    void unknownTypeIsRejected() {
+        byte[] frame = frame(new Message(Message.MessageType.CHAT, "alice", new byte[1]));
+        frame[4] = 99;
+
+        assertThrows(IOException.class, () -> decoder.read(stream(frame)));
+    }
+
+    @Test
+    void overLengthFramesAreRejectedBeforeReading() {
+        for (int length : new int[] {-1, 0, WireFormat.FIXED_HEADER_LENGTH - 1, WireFormat.MAX_FRAME_LENGTH + 1, Integer.MAX_VALUE}) {
+            byte[] prefix = ByteBuffer.allocate(4).putInt(length).array();
+            IOException e = assertThrows(IOException.class, () -> decoder.read(stream(prefix)));
+            assertFalse(e instanceof EOFException, "length " + length + " should fail on the prefix alone");
+        }
+    }
+
+    @Test
+    void encoderRefusesFramesOverTheCap() {
+        Message tooBig = new Message(Message.MessageType.CHAT, "alice", new byte[WireFormat.MAX_FRAME_LENGTH]);
+
+        assertThrows(IllegalArgumentException.class, () -> encoder.encode(tooBig));
+    }
+
+    @Test
+    void preambleAgreesOnCommonFeatures() throws IOException {
+        ByteArrayOutputStream preamble = new ByteArrayOutputStream();
+        WireFormat.writePreamble(new DataOutputStream(preamble), WireFormat.SUPPORTED_FEATURES);
+        DataInputStream in = stream(preamble.toByteArray());
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+
+        assertTrue(WireFormat.readMagic(in));
+        byte agreed = WireFormat.acceptPreamble(in, new DataOutputStream(reply), WireFormat.FEATURE_COMPRESSION);
+
+        assertEquals(WireFormat.FEATURE_COMPRESSION, agreed);
+        assertEquals(WireFormat.FEATURE_COMPRESSION, WireFormat.readPreambleReply(stream(reply.toByteArray())));
+    }
+
+    @Test
+    void badMagicIsNotAPreamble() throws IOException {
+        byte[] serialized = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05, WireFormat.VERSION, 0};
+
+        assertFalse(WireFormat.readMagic(stream(serialized)));
+    }
+
+    @Test
+    void badVersionIsRejectedOnBothSides() throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataInputStream in = stream(new byte[] {(byte) (WireFormat.VERSION + 1), WireFormat.SUPPORTED_FEATURES});
+
+        assertThrows(IOException.class, () -> WireFormat.acceptPreamble(in, new DataOutputStream(reply), WireFormat.SUPPORTED_FEATURES));
+        // The rejection still goes back, so the sender fails fast instead of timing out.
+        assertThrows(IOException.class, () -> WireFormat.readPreambleReply(stream(reply.toByteArray())));
+    }
+
+    private byte[] frame(Message message) {
+        ByteBuffer frame = encoder.encode(message);
+        return Arrays.copyOfRange(frame.array(), frame.arrayOffset() + frame.position(), frame.arrayOffset() + frame.limit());
+    }
+
+    private static DataInputStream stream(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,86 @@
+package com.shiva.p2pchat.protocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class PayloadCompressorTest {
+
+    private final PayloadCompressor compressor = new PayloadCompressor();
+
+    @AfterEach
+    void close() {
+        compressor.close();
+    }
+
+    @Test
+    void pastedLogLargerThanAFrameRoundTrips() throws IOException {
+        byte[] log = log(200_005);
+
+        byte[] compressed = compressor.compress(log);
+
+        assertTrue(compressed.length < WireFormat.MAX_FRAME_LENGTH, "compressed to " + compressed.length);
+        assertArrayEquals(log, PayloadCompressor.decompress(compressed));
+    }
+
+    @Test
+    void messageAtTheLimitRoundTrips() throws IOException {
+        byte[] log = log(WireFormat.MAX_MESSAGE_LENGTH);
+
+        assertArrayEquals(log, PayloadCompressor.decompress(compressor.compress(log)));
+    }
+
+    @Test
+    void messageOverTheLimitIsRefusedOnBothSides() {
+        byte[] log = log(WireFormat.MAX_MESSAGE_LENGTH + 1);
+
+        assertThrows(IllegalArgumentException.class, () -> compressor.compress(log));
+        // A sender that skips the check gets nothing past the receiver.
+        byte[] declared = ByteBuffer.allocate(4 + 1).putInt(WireFormat.MAX_MESSAGE_LENGTH + 1).array();
+        assertThrows(IOException.class, () -> PayloadCompressor.decompress(declared));
+    }
+
+    @Test
+    void shortAndIncompressibleContentIsLeftAlone() {
+        assertNull(compressor.compress(new byte[100]));
+        assertNotNull(compressor.compress(log(4096)));
+        byte[] noise = new byte[4096];
+        new Random(1).nextBytes(noise);
+        assertNull(compressor.compress(noise));
+        // The threshold has moved past 4 KB, so even text that size is skipped for a while.
+        assertNull(compressor.compress(log(4096)));
+    }
+
+    @Test
+    void lengthThatDisagreesWithTheDataIsRejected() {
+        byte[] compressed = compressor.compress(log(10_000));
+        byte[] longer = compressed.clone();
+        ByteBuffer.wrap(longer).putInt(10_001);
+        byte[] shorter = compressed.clone();
+        ByteBuffer.wrap(shorter).putInt(9_999);
+
+        assertThrows(IOException.class, () -> PayloadCompressor.decompress(longer));
+        assertThrows(IOException.class, () -> PayloadCompressor.decompress(shorter));
+        assertThrows(IOException.class, () -> PayloadCompressor.decompress(Arrays.copyOf(compressed, compressed.length / 2)));
+    }
+
+    // Repetitive like real logs, but not a single repeated byte.
+    private static byte[] log(int length) {
+        StringBuilder text = new StringBuilder(length + 64);
+        for (int i = 0; text.length() < length; i++) {
+            text.append("2026-10-17 12:00:").append(i % 60).append(" INFO request ").append(i).append(" served\n");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,237 @@
+package com.shiva.p2pchat.relay;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.shiva.p2pchat.crypto.CryptoUtils;
+import com.shiva.p2pchat.discovery.PeerDiscovery;
+import com.shiva.p2pchat.model.Message;
+import com.shiva.p2pchat.protocol.WireFormat;
+
+class RelayManagerTest {
+
+    private static final int TTL_OFFSET = 8;
+
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final List<Hop> hops = new ArrayList<>(); // Every RELAY handed to a channel, in order
+
+    @AfterEach
+    void stop() {
+        nodes.values().forEach(node -> {
+            node.relay.stop();
+            node.discovery.stop();
+        });
+    }
+
+    @Test
+    void messageIsForwardedSealedThroughAnIntermediateRelay() throws Exception {
+        Node alice = node("alice");
+        Node bob = node("bob");
+        Node carol = node("carol");
+        link(alice, bob);
+        link(bob, carol);
+        advertise(alice, bob, carol, 1);
+        byte[] text = "hello carol".getBytes();
+
+        alice.relay.send("carol", Message.MessageType.CHAT, text).get();
+
+        assertEquals(2, hops.size());
+        assertEquals("alice->bob", hops.get(0).path());
+        assertEquals("bob->carol", hops.get(1).path());
+        assertEquals(RelayManager.MAX_HOPS - 1, hops.get(1).content[TTL_OFFSET]);
+        assertTrue(bob.delivered.isEmpty());
+        RelayManager.Delivery delivery = carol.delivered.get(0);
+        assertEquals("alice", delivery.getMessage().getSenderUsername());
+        assertEquals(Message.MessageType.CHAT, delivery.getMessage().getType());
+        assertArrayEquals(text, CryptoUtils.decryptSession(delivery.getMessage().getEncryptedContent(), delivery.getKey()));
+    }
+
+    @Test
+    void messageStopsWhenItsTtlRunsOut() throws Exception {
+        // alice - bob - carol - dave, with alice three hops from dave.
+        Node alice = node("alice");
+        Node bob = node("bob");
+        Node carol = node("carol");
+        Node dave = node("dave");
+        link(alice, bob);
+        link(bob, carol);
+        link(carol, dave);
+        advertise(bob, carol, dave, 1);
+        advertise(alice, bob, dave, 2);
+
+        alice.relay.send("dave", Message.MessageType.CHAT, new byte[] {1}).get();
+        assertEquals(3, hops.size());
+        assertEquals(1, dave.delivered.size());
+        assertEquals(RelayManager.MAX_HOPS - 2, hops.get(2).content[TTL_OFFSET]);
+
+        // The same message as if it had already come further: bob passes it
+        // on with a TTL of 1, and carol, not its destination, drops it.
+        byte[] late = hops.get(0).content.clone();
+        late[0]++; // Another id, so it is not dropped as a repeat instead
+        late[TTL_OFFSET] = 2;
+        hops.clear();
+        bob.relay.receive("alice", late);
+
+        assertEquals(1, hops.size());
+        assertEquals("bob->carol", hops.get(0).path());
+        assertEquals(1, hops.get(0).content[TTL_OFFSET]);
+        assertEquals(1, dave.delivered.size());
+    }
+
+    @Test
+    void repeatedIdIsNotForwardedAgain() throws Exception {
+        Node alice = node("alice");
+        Node bob = node("bob");
+        Node carol = node("carol");
+        link(alice, bob);
+        link(bob, carol);
+        advertise(alice, bob, carol, 1);
+
+        alice.relay.send("carol", Message.MessageType.CHAT, new byte[] {1}).get();
+        bob.relay.receive("alice", hops.get(0).content);
+
+        assertEquals(2, hops.size());
+        assertEquals(1, carol.delivered.size());
+    }
+
+    @Test
+    void messageThatFitsDirectlyButNotOnceRelayedIsRefused() throws Exception {
+        Node alice = node("alice");
+        Node bob = node("bob");
+        Node carol = node("carol");
+        link(alice, bob);
+        link(bob, carol);
+        advertise(alice, bob, carol, 1);
+        int direct = WireFormat.MAX_FRAME_LENGTH;
+        while (!WireFormat.fitsFrame("alice", direct + CryptoUtils.SESSION_OVERHEAD)) {
+            direct--;
+        }
+
+        CompletableFuture<Void> tooLarge = alice.relay.send("carol", Message.MessageType.CHAT, new byte[direct]);
+
+        ExecutionException e = assertThrows(ExecutionException.class, tooLarge::get);
+        assertTrue(e.getCause() instanceof IllegalArgumentException, e.getCause().toString());
+        assertTrue(e.getCause().getMessage().contains("too large to relay"), e.getCause().getMessage());
+        assertTrue(hops.isEmpty());
+
+        // The largest message that does fit still arrives whole.
+        int relayed = direct;
+        CompletableFuture<Void> sent;
+        do {
+            relayed -= 16;
+            sent = alice.relay.send("carol", Message.MessageType.CHAT, new byte[relayed]);
+        } while (sent.isCompletedExceptionally());
+        sent.get();
+        assertEquals(relayed, CryptoUtils.decryptSession(carol.delivered.get(0).getMessage().getEncryptedContent(),
+                carol.delivered.get(0).getKey()).length);
+    }
+
+    private Node node(String name) throws Exception {
+        Node node = new Node(name, CryptoUtils.generateKeyPair());
+        nodes.put(name, node);
+        return node;
+    }
+
+    private static void link(Node a, Node b) {
+        a.discovery.peers.put(b.name, b.self);
+        b.discovery.peers.put(a.name, a.self);
+    }
+
+    // What via would gossip to from: that it reaches to, hops away.
+    private static void advertise(Node from, Node via, Node to, int hops) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(1);
+        out.writeUTF(to.name);
+        out.writeByte(hops);
+        out.writeUTF(CryptoUtils.keyToString(to.keys.getPublic()));
+        from.relay.receiveTable(via.name, bytes.toByteArray());
+        assertTrue(from.relay.canReach(to.name));
+    }
+
+    private Node nodeAt(PeerDiscovery.DiscoveredPeer peer) {
+        return nodes.values().stream().filter(node -> node.self == peer).findFirst().orElseThrow();
+    }
+
+    private static class Hop {
+        final String from;
+        final String to;
+        final byte[] content;
+
+        Hop(String from, String to, byte[] content) {
+            this.from = from;
+            this.to = to;
+            this.content = content;
+        }
+
+        String path() {
+            return from + "->" + to;
+        }
+    }
+
+    private class Node {
+        final String name;
+        final KeyPair keys;
+        final PeerDiscovery.DiscoveredPeer self;
+        final FakeDiscovery discovery;
+        final RelayManager relay;
+        final List<RelayManager.Delivery> delivered = new ArrayList<>();
+
+        Node(String name, KeyPair keys) {
+            this.name = name;
+            this.keys = keys;
+            this.self = new PeerDiscovery.DiscoveredPeer("10.0.0." + (nodes.size() + 1), 9000, keys.getPublic(), null, true);
+            this.discovery = new FakeDiscovery(name, CryptoUtils.keyToString(keys.getPublic()));
+            // Synchronous delivery, so a send has gone as far as it will by the time it returns.
+            this.relay = new RelayManager(name, discovery, (peer, type, content) -> {
+                Node next = nodeAt(peer);
+                try {
+                    if (type == Message.MessageType.RELAY) {
+                        hops.add(new Hop(name, next.name, content.clone()));
+                        RelayManager.Delivery delivery = next.relay.receive(name, content);
+                        if (delivery != null) {
+                            next.delivered.add(delivery);
+                        }
+                    }
+                    return CompletableFuture.completedFuture(null);
+                } catch (Exception e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }, keys.getPrivate());
+        }
+    }
+
+    /* Discovery that sees exactly the peers the test links, and never touches the network. */
+    private static class FakeDiscovery extends PeerDiscovery {
+        final Map<String, DiscoveredPeer> peers = new HashMap<>();
+
+        FakeDiscovery(String username, String publicKey) {
+            super(username, 0, 0, publicKey);
+        }
+
+        @Override
+        public DiscoveredPeer getPeer(String username) {
+            return peers.get(username);
+        }
+
+        @Override
+        public Map<String, DiscoveredPeer> getOnlinePeers() {
+            return new HashMap<>(peers);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.shiva.p2pchat.relay;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.function.LongUnaryOperator;
+
+import org.junit.jupiter.api.Test;
+
+class SeenFilterTest {
+
+    private static final int CAPACITY = 8192;
+
+    @Test
+    void idsAreRememberedForAtLeastOneGeneration() {
+        SeenFilter filter = new SeenFilter(CAPACITY);
+        long[] first = ids(new Random(1), CAPACITY);
+        long[] second = ids(new Random(2), CAPACITY);
+
+        assertTrue(falseDrops(filter, first) <= 2);
+        for (long id : first) {
+            assertFalse(filter.add(id), "missed a current id");
+        }
+        // The first id of this batch rotates the filter; the first batch moves to previous.
+        assertTrue(falseDrops(filter, second) <= 2);
+        for (long id : first) {
+            assertFalse(filter.add(id), "missed a previous-generation id");
+        }
+        for (long id : second) {
+            assertFalse(filter.add(id), "missed a current id after rotation");
+        }
+    }
+
+    @Test
+    void idsAreForgottenAfterTwoRotations() {
+        SeenFilter filter = new SeenFilter(CAPACITY);
+        long[] old = ids(new Random(3), CAPACITY);
+        falseDrops(filter, old);
+        falseDrops(filter, ids(new Random(4), CAPACITY));
+        falseDrops(filter, ids(new Random(5), CAPACITY));
+
+        int forgotten = 0;
+        for (long id : old) {
+            if (filter.add(id)) {
+                forgotten++;
+            }
+        }
+        // Re-adding them refills the filter, which rotates out the rest, so nearly all count as new.
+        assertTrue(forgotten > CAPACITY * 0.99, forgotten + " of " + CAPACITY + " forgotten");
+    }
+
+    @Test
+    void freshIdsAreRarelyDropped() {
+        // Documented as about one in 20,000 with both generations full; allow twice that.
+        Random random = new Random(6);
+        assertFalsePositiveRateBelow(i -> random.nextLong(), 1.0 / 10_000);
+        // Sequential ids, as a relay that numbers its own messages would produce.
+        assertFalsePositiveRateBelow(i -> i, 1.0 / 10_000);
+    }
+
+    private static void assertFalsePositiveRateBelow(LongUnaryOperator id, double bound) {
+        SeenFilter filter = new SeenFilter(CAPACITY);
+        int total = 50 * CAPACITY;
+        int dropped = 0;
+        for (long i = 0; i < total; i++) {
+            if (!filter.add(id.applyAsLong(i))) {
+                dropped++;
+            }
+        }
+        double rate = (double) dropped / total;
+        assertTrue(rate < bound, "false positive rate " + rate);
+    }
+
+    // Every id is new, so each one refused is a false positive.
+    private static int falseDrops(SeenFilter filter, long[] ids) {
+        int dropped = 0;
+        for (long id : ids) {
+            if (!filter.add(id)) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    private static long[] ids(Random random, int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = random.nextLong();
+        }
+        return ids;
+    }
+}
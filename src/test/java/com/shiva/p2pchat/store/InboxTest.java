@@ -0,0 +1,152 @@
+package com.shiva.p2pchat.store;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InboxTest {
+
+    @TempDir
+    Path directory;
+
+    private Inbox inbox;
+
+    @AfterEach
+    void close() {
+        if (inbox != null) {
+            inbox.close();
+        }
+    }
+
+    @Test
+    void senderOverItsBudgetSpillsItsOldestBodies() throws IOException {
+        inbox = new Inbox(directory.resolve("spill.dat"), 1000, 1_000_000);
+        List<byte[]> sent = add("alice", 10, 300);
+
+        assertEquals(10, inbox.size());
+        assertEquals(900, inbox.memoryBytes());
+        assertEquals(7, inbox.spilledCount());
+        assertEquals(2100, inbox.spilledBytes());
+        assertBodies(sent, inbox.peek("alice"));
+        assertBodies(sent, inbox.take("alice"));
+        assertEmpty();
+    }
+
+    @Test
+    void inboxOverItsTotalSpillsFromTheLargestSender() throws IOException {
+        inbox = new Inbox(directory.resolve("spill.dat"), 1000, 2000);
+        List<byte[]> alice = add("alice", 3, 300);
+        List<byte[]> bob = add("bob", 3, 300);
+        List<byte[]> carol = add("carol", 2, 300);
+
+        assertTrue(inbox.memoryBytes() <= 2000, "memory " + inbox.memoryBytes());
+        assertEquals(2400, inbox.memoryBytes() + inbox.spilledBytes());
+        assertEquals(8, inbox.size());
+        assertBodies(alice, inbox.take("alice"));
+        assertBodies(bob, inbox.take("bob"));
+        assertBodies(carol, inbox.take("carol"));
+        assertEmpty();
+    }
+
+    @Test
+    void fullSpillFileDropsTheOldestMessages() throws IOException {
+        inbox = new Inbox(directory.resolve("spill.dat"), 300, 1_000_000, 1000);
+        List<byte[]> sent = add("alice", 10, 200);
+
+        assertTrue(inbox.spillFileBytes() <= 1000, "spill file " + inbox.spillFileBytes());
+        int pending = inbox.size();
+        assertTrue(pending < 10);
+        List<Inbox.PendingMessage> kept = inbox.take("alice");
+        assertEquals(pending, kept.size());
+        // Whatever survived is still in order, unchanged, and includes the newest.
+        assertBodies(sent.subList(sent.size() - kept.size(), sent.size()), kept);
+        assertEmpty();
+    }
+
+    @Test
+    void compactionReusesTheSpaceOfTakenMessages() throws IOException {
+        inbox = new Inbox(directory.resolve("spill.dat"), 100, 1_000_000, 1000);
+        add("alice", 4, 200);
+        List<byte[]> bob = add("bob", 1, 200);
+        assertEquals(1000, inbox.spillFileBytes());
+
+        inbox.take("alice");
+        assertEquals(200, inbox.spilledBytes());
+        List<byte[]> carol = add("carol", 3, 200);
+
+        // Without compaction carol's first message would not have fitted.
+        assertEquals(4, inbox.size());
+        assertEquals(800, inbox.spillFileBytes());
+        assertBodies(bob, inbox.peek("bob"));
+        assertBodies(carol, inbox.peek("carol"));
+        assertBodies(bob, inbox.take("bob"));
+        assertBodies(carol, inbox.take("carol"));
+        assertEmpty();
+    }
+
+    @Test
+    void senderPastTheMessageCapLosesItsOldest() throws IOException {
+        inbox = new Inbox(directory.resolve("spill.dat"), 1_000_000, 1_000_000);
+        List<byte[]> sent = add("alice", 1001, 4);
+
+        assertEquals(1000, inbox.size());
+        assertBodies(sent.subList(1, sent.size()), inbox.take("alice"));
+        assertEmpty();
+    }
+
+    @Test
+    void peekLeavesMessagesAndTakeRemovesOnlyThatSender() throws IOException {
+        inbox = new Inbox(directory.resolve("spill.dat"), 500, 1_000_000);
+        List<byte[]> alice = add("alice", 5, 200);
+        List<byte[]> bob = add("bob", 2, 50);
+
+        assertBodies(alice, inbox.peek("alice"));
+        assertBodies(alice, inbox.peek("alice"));
+        assertEquals(7, inbox.size());
+        assertBodies(bob, inbox.take("bob"));
+        assertEquals(5, inbox.size());
+        assertEquals(List.of("alice"), new ArrayList<>(inbox.counts().keySet()));
+        assertBodies(alice, inbox.take("alice"));
+        assertEmpty();
+    }
+
+    // Distinct bodies, so a body returned for the wrong message shows up.
+    private List<byte[]> add(String sender, int count, int length) throws IOException {
+        List<byte[]> bodies = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] body = new byte[length];
+            Arrays.fill(body, (byte) (sender.hashCode() + i));
+            body[0] = (byte) i;
+            body[length - 1] = (byte) (i >> 8);
+            bodies.add(body);
+            inbox.add(sender, i, body, null, false);
+        }
+        return bodies;
+    }
+
+    private static void assertBodies(List<byte[]> expected, List<Inbox.PendingMessage> messages) {
+        assertEquals(expected.size(), messages.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), messages.get(i).getEncryptedContent(), "message " + i);
+        }
+    }
+
+    private void assertEmpty() throws IOException {
+        assertEquals(0, inbox.size());
+        assertEquals(0, inbox.memoryBytes());
+        assertEquals(0, inbox.spilledBytes());
+        assertEquals(0, inbox.spilledCount());
+        assertEquals(0, inbox.spillFileBytes());
+        assertTrue(inbox.counts().isEmpty());
+    }
+}
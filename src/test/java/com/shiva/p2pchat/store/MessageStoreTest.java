@@ -0,0 +1,227 @@
+package com.shiva.p2pchat.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageStoreTest {
+
+    private static final int SMALL_SEGMENT = 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void messagesSurviveAReopen() throws IOException {
+        try (MessageStore store = new MessageStore(directory)) {
+            store.append("alice", StoredMessage.Direction.INBOUND, 1, "hello");
+            store.append("bob", StoredMessage.Direction.OUTBOUND, 2, "hi bob");
+            store.append("alice", StoredMessage.Direction.OUTBOUND, 3, "hello back");
+        }
+        try (MessageStore store = new MessageStore(directory)) {
+            assertEquals(2, store.count("alice"));
+            assertEquals(List.of("hello", "hello back"), texts(store.read("alice", 0, 10)));
+            assertEquals(List.of("hi bob"), texts(store.read("bob", 0, 10)));
+            assertEquals(0, store.count("carol"));
+        }
+    }
+
+    @Test
+    void recordCutShortByACrashIsDropped() throws IOException {
+        try (MessageStore store = new MessageStore(directory)) {
+            store.append("alice", StoredMessage.Direction.INBOUND, 1, "one");
+            store.append("alice", StoredMessage.Direction.INBOUND, 2, "two");
+        }
+        // A crash after the body was written but before its length: the body
+        // is in the log, the length still zero, and the index may hold its position.
+        Path segment = onlyFile(directory.resolve("log"));
+        long logEnd;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int end = 0;
+            while (log.getInt(end) != 0) {
+                end += 4 + log.getInt(end);
+            }
+            log.position(end + 4);
+            log.putLong(3).put(StoredMessage.Direction.INBOUND.getCode()).putShort((short) 5)
+                    .put("alice".getBytes(StandardCharsets.UTF_8)).put("three".getBytes(StandardCharsets.UTF_8));
+            // The unfinished record was longer than the one that will replace it,
+            // and what is left of it looks like another record's length.
+            log.putInt(64).put(new byte[64]);
+            log.force();
+            logEnd = end;
+        }
+        try (FileChannel index = FileChannel.open(onlyFile(directory.resolve("index")), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            index.write(ByteBuffer.allocate(Long.BYTES).putLong(0, logEnd));
+        }
+
+        try (MessageStore store = new MessageStore(directory)) {
+            assertEquals(2, store.count("alice"));
+            assertEquals(List.of("one", "two"), texts(store.read("alice", 0, 10)));
+            assertEquals(2, store.append("alice", StoredMessage.Direction.INBOUND, 4, "three"));
+        }
+        try (MessageStore store = new MessageStore(directory)) {
+            assertEquals(List.of("one", "two", "three"), texts(store.read("alice", 0, 10)));
+            // Had recovery walked into the leftover, this would be written after it.
+            assertEquals(3, store.append("alice", StoredMessage.Direction.INBOUND, 5, "four"));
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int records = 0;
+            for (int position = 0; log.getInt(position) != 0; position += 4 + log.getInt(position)) {
+                records++;
+            }
+            assertEquals(4, records);
+        }
+    }
+
+    @Test
+    void staleIndexEntryIsNotTakenByAnotherConversation() throws IOException {
+        try (MessageStore store = new MessageStore(directory)) {
+            store.append("alice", StoredMessage.Direction.INBOUND, 1, "one");
+            store.append("alice", StoredMessage.Direction.INBOUND, 2, "two");
+            store.append("bob", StoredMessage.Direction.INBOUND, 3, "hi bob");
+        }
+        // A crash lost alice's third record, but her index had already recorded
+        // it, at what is now the end of the log.
+        long logEnd = logEnd(onlyFile(directory.resolve("log")));
+        Path aliceIndex = null;
+        try (Stream<Path> files = Files.list(directory.resolve("index"))) {
+            for (Path file : files.collect(Collectors.toList())) {
+                if (Files.size(file) == 2 * Long.BYTES) {
+                    aliceIndex = file;
+                }
+            }
+        }
+        try (FileChannel index = FileChannel.open(aliceIndex, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            index.write(ByteBuffer.allocate(Long.BYTES).putLong(0, logEnd));
+        }
+
+        try (MessageStore store = new MessageStore(directory)) {
+            // Bob's next record goes where alice's lost one was, before her index is opened.
+            store.append("bob", StoredMessage.Direction.INBOUND, 4, "bob again");
+            assertEquals(List.of("one", "two"), texts(store.read("alice", 0, 10)));
+            assertEquals(2, store.append("alice", StoredMessage.Direction.INBOUND, 5, "three"));
+
+            // Reopened after eviction, the index keeps what this run appended.
+            for (int i = 0; i < 300; i++) {
+                store.append("user" + i, StoredMessage.Direction.INBOUND, 6, "filler");
+            }
+            assertEquals(List.of("one", "two", "three"), texts(store.read("alice", 0, 10)));
+        }
+        try (MessageStore store = new MessageStore(directory)) {
+            assertEquals(List.of("one", "two", "three"), texts(store.read("alice", 0, 10)));
+            assertEquals(List.of("hi bob", "bob again"), texts(store.read("bob", 0, 10)));
+        }
+    }
+
+    @Test
+    void pagesAreRightAcrossSegmentBoundaries() throws IOException {
+        List<String> alice = new ArrayList<>();
+        List<String> bob = new ArrayList<>();
+        try (MessageStore store = new MessageStore(directory, SMALL_SEGMENT)) {
+            for (int i = 0; i < 200; i++) {
+                String text = "message " + i + " " + "x".repeat(i % 37);
+                if (i % 3 == 0) {
+                    bob.add(text);
+                    store.append("bob", StoredMessage.Direction.OUTBOUND, i, text);
+                } else {
+                    alice.add(text);
+                    store.append("alice", StoredMessage.Direction.INBOUND, i, text);
+                }
+            }
+            // One record bigger than a whole segment gets a segment of its own.
+            String big = "y".repeat(3 * SMALL_SEGMENT);
+            alice.add(big);
+            store.append("alice", StoredMessage.Direction.INBOUND, 200, big);
+            alice.add("after the big one");
+            store.append("alice", StoredMessage.Direction.INBOUND, 201, "after the big one");
+
+            assertPages(store, "alice", alice);
+            assertPages(store, "bob", bob);
+        }
+        try (Stream<Path> files = Files.list(directory.resolve("log"))) {
+            assertTrue(files.count() > 10, "expected the log to span many segments");
+        }
+        try (MessageStore store = new MessageStore(directory, SMALL_SEGMENT)) {
+            assertPages(store, "alice", alice);
+            assertPages(store, "bob", bob);
+        }
+    }
+
+    @Test
+    void longNamesGetShortIndexFiles() throws IOException {
+        String name = "u".repeat(300); // Hex of this alone is longer than most file systems allow
+        try (MessageStore store = new MessageStore(directory)) {
+            store.append(name, StoredMessage.Direction.INBOUND, 1, "hi");
+        }
+        try (MessageStore store = new MessageStore(directory)) {
+            assertEquals(List.of("hi"), texts(store.read(name, 0, 1)));
+        }
+        assertTrue(onlyFile(directory.resolve("index")).getFileName().toString().length() <= 68);
+    }
+
+    @Test
+    void indexNamedTheOldWayIsAdopted() throws IOException {
+        try (MessageStore store = new MessageStore(directory)) {
+            store.append("alice", StoredMessage.Direction.INBOUND, 1, "from before");
+        }
+        Path index = onlyFile(directory.resolve("index"));
+        Files.move(index, index.resolveSibling("616c696365.idx")); // "alice" in hex
+
+        try (MessageStore store = new MessageStore(directory)) {
+            assertEquals(List.of("from before"), texts(store.read("alice", 0, 1)));
+        }
+    }
+
+    // Every window of every size, the way history pages slice a conversation.
+    private static void assertPages(MessageStore store, String conversation, List<String> expected) throws IOException {
+        assertEquals(expected.size(), store.count(conversation));
+        for (int size : new int[] {1, 7, 20}) {
+            for (int from = 0; from < expected.size(); from++) {
+                int to = Math.min(expected.size(), from + size);
+                List<StoredMessage> page = store.read(conversation, from, size);
+                assertEquals(expected.subList(from, to), texts(page), conversation + " from " + from);
+                page.forEach(message -> assertEquals(conversation, message.getConversation()));
+            }
+        }
+    }
+
+    private static List<String> texts(List<StoredMessage> messages) {
+        return messages.stream().map(StoredMessage::getText).collect(Collectors.toList());
+    }
+
+    private static long logEnd(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = 0;
+            while (log.getInt(end) != 0) {
+                end += 4 + log.getInt(end);
+            }
+            return end;
+        }
+    }
+
+    private static Path onlyFile(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> all = files.collect(Collectors.toList());
+            assertEquals(1, all.size(), "files in " + directory);
+            return all.get(0);
+        }
+    }
+}
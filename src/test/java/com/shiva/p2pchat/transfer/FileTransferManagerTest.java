@@ -0,0 +1,206 @@
+package com.shiva.p2pchat.transfer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.shiva.p2pchat.model.Message;
+
+class FileTransferManagerTest {
+
+    private static final int CHUNK = FileTransferManager.CHUNK_SIZE;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void interruptedTransferResumesFromTheRecordedChunk() throws Exception {
+        Path source = file("photo.bin", 10L * CHUNK + 1234);
+        Path downloads = directory.resolve("downloads");
+        Link link = new Link();
+
+        // First attempt: the connection drops when chunk 3 is sent, after 0-2 reached the .part file.
+        CountDownLatch dropped = new CountDownLatch(1);
+        link.dropFrom = 3;
+        link.onDrop = dropped::countDown;
+        ExecutorService firstWorkers = Executors.newCachedThreadPool();
+        link.alice = new FileTransferManager(link.channel("alice"), firstWorkers, link::note);
+        link.bob = new FileTransferManager(link.channel("bob"), Executors.newCachedThreadPool(), link::note, downloads);
+        link.alice.sendFile("bob", source);
+        assertEquals(1, link.bob.acceptFrom("alice"));
+        assertTrue(dropped.await(10, TimeUnit.SECONDS));
+
+        // Both ends restart; the receiver keeps its .part file.
+        link.alice.close();
+        link.bob.close();
+        assertTrue(firstWorkers.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(3L * CHUNK, Files.size(partFile(downloads)));
+
+        link.dropFrom = Integer.MAX_VALUE;
+        link.chunks.clear();
+        CountDownLatch received = link.expect("Received");
+        link.alice = new FileTransferManager(link.channel("alice"), Executors.newCachedThreadPool(), link::note);
+        link.bob = new FileTransferManager(link.channel("bob"), Executors.newCachedThreadPool(), link::note, downloads);
+        link.alice.sendFile("bob", source);
+        assertEquals(1, link.bob.acceptFrom("alice"));
+
+        assertTrue(received.await(10, TimeUnit.SECONDS), link.notes.toString());
+        assertEquals(3, link.chunks.get(0), "first chunk sent after resuming");
+        assertFalse(link.chunks.contains(2));
+        assertArrayEquals(sha256(source), sha256(downloads.resolve("photo.bin")));
+        link.close();
+    }
+
+    @Test
+    void completedFileHasTheSendersHash() throws Exception {
+        Path source = file("notes.txt", 5L * CHUNK + 17);
+        Path downloads = directory.resolve("downloads");
+        Link link = new Link();
+        link.duplicate = true; // Every chunk arrives twice, as after a resend
+        CountDownLatch received = link.expect("Received");
+        CountDownLatch sent = link.expect("Sent");
+        link.alice = new FileTransferManager(link.channel("alice"), Executors.newCachedThreadPool(), link::note);
+        link.bob = new FileTransferManager(link.channel("bob"), Executors.newCachedThreadPool(), link::note, downloads);
+
+        link.alice.sendFile("bob", source);
+        link.bob.acceptFrom("alice");
+
+        assertTrue(received.await(10, TimeUnit.SECONDS), link.notes.toString());
+        assertTrue(sent.await(10, TimeUnit.SECONDS), link.notes.toString());
+        Path target = downloads.resolve("notes.txt");
+        assertEquals(Files.size(source), Files.size(target));
+        assertArrayEquals(sha256(source), sha256(target));
+        try (Stream<Path> files = Files.list(downloads)) {
+            assertEquals(List.of(target), files.collect(Collectors.toList()));
+        }
+        link.close();
+    }
+
+    @Test
+    void partlyWrittenChunkIsSentAgain() throws IOException {
+        long size = 3L * CHUNK + 10;
+        byte[] data = random(size);
+        Path partFile = directory.resolve("downloads/1.part");
+        BufferPool buffers = new BufferPool(CHUNK, 4);
+
+        IncomingTransfer first = new IncomingTransfer(1, "alice", "data.bin", size, partFile, buffers);
+        assertEquals(0, first.accept());
+        first.write(0, data, 0, CHUNK);
+        first.close();
+        // Half of chunk 1 made it to disk before the process died.
+        Files.write(partFile, Arrays.copyOfRange(data, CHUNK, CHUNK + CHUNK / 2), StandardOpenOption.APPEND);
+
+        IncomingTransfer resumed = new IncomingTransfer(1, "alice", "data.bin", size, partFile, buffers);
+        assertEquals(1, resumed.accept());
+        assertEquals(CHUNK, Files.size(partFile));
+        for (int index = 1; index < 4; index++) {
+            int offset = index * CHUNK;
+            resumed.write(index, data, offset, (int) Math.min(CHUNK, size - offset));
+        }
+        assertTrue(resumed.isComplete());
+        Path target = directory.resolve("data.bin");
+        resumed.finish(target);
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(Files.exists(partFile));
+    }
+
+    private Path file(String name, long size) throws IOException {
+        Path path = directory.resolve("outbox").resolve(name);
+        Files.createDirectories(path.getParent());
+        return Files.write(path, random(size));
+    }
+
+    private static byte[] random(long size) {
+        byte[] data = new byte[(int) size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static Path partFile(Path downloads) throws IOException {
+        try (Stream<Path> files = Files.list(downloads)) {
+            return files.filter(path -> path.toString().endsWith(".part")).findFirst().orElseThrow();
+        }
+    }
+
+    private static byte[] sha256(Path path) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path));
+    }
+
+    /* Two nodes, alice sending to bob, connected in memory. Delivery is
+     synchronous, on the sending thread. */
+    private static class Link {
+
+        volatile FileTransferManager alice;
+        volatile FileTransferManager bob;
+        volatile int dropFrom = Integer.MAX_VALUE;
+        volatile Runnable onDrop = () -> { };
+        volatile boolean duplicate;
+        final List<Integer> chunks = new CopyOnWriteArrayList<>();
+        final List<String> notes = new CopyOnWriteArrayList<>();
+        private final Map<String, CountDownLatch> expectations = new ConcurrentHashMap<>();
+
+        TransferChannel channel(String from) {
+            return (to, type, content) -> {
+                FileTransferManager target = to.equals("bob") ? bob : alice;
+                if (type == Message.MessageType.FILE_CHUNK) {
+                    int index = ByteBuffer.wrap(content).getInt(8);
+                    if (index >= dropFrom) {
+                        onDrop.run();
+                        return CompletableFuture.failedFuture(new IOException("connection lost"));
+                    }
+                    chunks.add(index);
+                    if (duplicate) {
+                        target.handle(from, type, content);
+                    }
+                }
+                target.handle(from, type, content);
+                return CompletableFuture.completedFuture(null);
+            };
+        }
+
+        /* Returns a latch released by the next notification starting with prefix. */
+        CountDownLatch expect(String prefix) {
+            CountDownLatch latch = new CountDownLatch(1);
+            expectations.put(prefix, latch);
+            return latch;
+        }
+
+        void note(String line) {
+            notes.add(line);
+            expectations.forEach((prefix, latch) -> {
+                if (line.startsWith(prefix)) {
+                    latch.countDown();
+                }
+            });
+        }
+
+        void close() {
+            alice.close();
+            bob.close();
+        }
+    }
+}